@@ -62,6 +62,42 @@ public final class Compiler {
         case "--debug-emulator":
           driver.enableDebugEmulator();
           break;
+        case "--closure-emulator":
+          driver.enableClosureEmulator();
+          break;
+        case "--profile-emulator":
+          driver.setEmulatorProfilePrefix(args[++i]);
+          break;
+        case "--no-pic":
+          driver.setPositionIndependent(false);
+          break;
+        case "--layout-profile":
+          driver.enableLayoutProfile();
+          break;
+        case "--peephole":
+          driver.setPeepholeRules(args[++i]);
+          break;
+        case "--codegen-jobs":
+          driver.setCodeGenJobs(Integer.parseInt(args[++i]));
+          break;
+        case "-c":
+          driver.enableObjectOutput();
+          break;
+        case "-o":
+          driver.setOutputFile(args[++i]);
+          break;
+        case "-O0":
+          driver.setOptimizationLevel(0);
+          break;
+        case "-O1":
+          driver.setOptimizationLevel(1);
+          break;
+        case "-O2":
+          driver.setOptimizationLevel(2);
+          break;
+        case "--print-regalloc":
+          driver.enablePrintAllocation();
+          break;
         case "--read-ast":
           try {
             driver.readAST(new FileInputStream(args[i + 1]));
@@ -96,6 +132,30 @@ public final class Compiler {
           driver.setEmulatorInputFile(inputFile);
           break;
         }
+        case "--trace-emulator":
+          driver.setEmulatorTraceFile(args[++i]);
+          break;
+        case "--decode-trace":
+          driver.setDecodeTraceFile(args[++i]);
+          break;
+        case "--emulator-checkpoint":
+          driver.setEmulatorCheckpointFile(args[++i]);
+          break;
+        case "--emulator-restore":
+          driver.setEmulatorRestoreFile(args[++i]);
+          break;
+        case "--emulator-batch":
+          driver.addEmulatorBatchInput(args[++i]);
+          break;
+        case "--emulator-jobs":
+          driver.setEmulatorJobs(Integer.parseInt(args[++i]));
+          break;
+        case "--emulator-max-instructions":
+          driver.setEmulatorInstructionLimit(Long.parseLong(args[++i]));
+          break;
+        case "--emulator-timeout":
+          driver.setEmulatorTimeLimit(Long.parseLong(args[++i]));
+          break;
         default:
           if (arg.startsWith("-"))
             throw new RuntimeException(String.format("unrecognized command line option '%s'", arg));
@@ -130,7 +190,34 @@ public final class Compiler {
     System.out.println("--print-ir\t\t\tDump dot compatible representation of IR.");
     System.out.println("--emulator\t\t\tRun Emulator on IR.");
     System.out.println("--debug-emulator\t\tRun Emulator on IR with debugging turned on.");
+    System.out.println("--closure-emulator\t\tRun Emulator on IR as pre-bound closures.");
+    System.out.println("--profile-emulator <prefix>\tRun Emulator on IR and write a profile to"
+        + " <prefix>.folded and <prefix>.json.");
+    System.out
+        .println("--trace-emulator <trace file>\tRun Emulator on IR and write a binary trace.");
+    System.out.println("--decode-trace <trace file>\tPrint a trace of the program as text.");
     System.out.println("--emulator-input <input file>\tInput File for the emulator");
+    System.out.println(
+        "--emulator-checkpoint <file>\tSave the emulator state there if it stops at a limit.");
+    System.out.println("--emulator-restore <file>\tContinue the emulator from a saved state.");
+    System.out.println(
+        "--emulator-batch <input file>\tRun Emulator on this input too, writing <input>.result.");
+    System.out.println("--emulator-jobs <n>\t\tRun n batch inputs at a time.");
+    System.out.println(
+        "--emulator-max-instructions <n>\tStop the emulator after about n instructions.");
+    System.out.println("--emulator-timeout <ms>\t\tStop the emulator after ms milliseconds.");
+    System.out.println(
+        "-O0, -O1, -O2\t\t\tStack slots only, linear scan (default) or graph coloring.");
+    System.out.println("--no-pic\t\t\tAddress globals relative to %rip rather than by the GOT.");
+    System.out.println(
+        "--layout-profile\t\tLay out blocks by an emulator run on the emulator input.");
+    System.out.println(
+        "--peephole <rules>\t\tApply only these peephole rules, comma separated, or none.");
+    System.out.println("--codegen-jobs <n>\t\tGenerate the code of n functions at a time.");
+    System.out.println("-c\t\t\t\tWrite an ELF object, a.o by default, rather than assembly.");
+    System.out.println("-o <file>\t\t\tWrite the assembly or object to <file>.");
+    System.out.println(
+        "--print-regalloc\t\tPrint spills, eliminated moves and instructions per function.");
     System.out.println("--read-ast <input file>\t\tRead serialized version of AST in,");
     System.out.println("--read-type <input file>\tRead serialized version of type-checked AST in,");
     System.out.println("--read-ir <input file>\t\tRead serialized version of IR/CFG in,");
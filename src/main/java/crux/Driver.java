@@ -7,9 +7,14 @@ import crux.pt.CruxLexer;
 import crux.pt.CruxParser;
 import crux.ast.types.TypeChecker;
 import crux.ir.ASTLower;
+import crux.ir.Checkpoint;
 import crux.printing.IRPrinter;
 import crux.ir.Program;
+import crux.ir.DecodedProgram;
 import crux.ir.Emulator;
+import crux.ir.EmulatorBatch;
+import crux.ir.EmulatorProfile;
+import crux.ir.TraceDecoder;
 import crux.backend.CodeGen;
 import crux.printing.ASTPrinter;
 import crux.printing.ParseTreePrinter;
@@ -18,6 +23,10 @@ import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
 
 import java.io.*;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.function.Supplier;
 
 enum State {
@@ -46,7 +55,17 @@ public final class Driver {
   private boolean typeCheck = false;
   private boolean printIR = false;
   private boolean runEmulator = false;
+  private boolean debugEmulator = false;
+  private String emulatorProfilePrefix = null;
+  private boolean closureEmulator = false;
   private boolean serialize = false;
+  private int optimizationLevel = 1;
+  private boolean printAllocation = false;
+  private boolean layoutProfile = false;
+  private boolean positionIndependent = true;
+  private String outputFile = null;
+  private boolean objectOutput = false;
+  private List<String> peepholeRules = null;
 
   // Set this flag to false if earlier stages in your compiler do not work.
   private final boolean supportsEndToEnd = false;
@@ -55,10 +74,21 @@ public final class Driver {
   private InputStream inputStream;
   private String emulatorInputFile = null;
   private InputStream emulatorInputStream = null;
+  private long emulatorInstructionLimit = -1;
+  private long emulatorTimeLimit = -1;
+  private String emulatorTraceFile = null;
+  private String decodeTraceFile = null;
+  private String emulatorCheckpointFile = null;
+  private String emulatorRestoreFile = null;
+  private final List<Path> emulatorBatchInputs = new ArrayList<>();
+  private int emulatorJobs = Runtime.getRuntime().availableProcessors();
+  private int codegenJobs = Runtime.getRuntime().availableProcessors();
 
   private CruxParser.ProgramContext parseTree;
   private DeclarationList ast;
   private Program irProgram;
+  /** The emulator run the code generator lays out blocks by, see {@link #enableLayoutProfile}. */
+  private EmulatorProfile irProfile;
   private Stage startStage = Stage.PARSE;
 
 
@@ -111,7 +141,71 @@ public final class Driver {
 
   public void enableDebugEmulator() {
     runEmulator = true;
-    Emulator.DEBUG = true;
+    debugEmulator = true;
+  }
+
+  public void enableClosureEmulator() {
+    runEmulator = true;
+    closureEmulator = true;
+  }
+
+  /**
+   * Makes the emulator profile the run and write the profile to the prefix followed by .folded, for
+   * flame graphs, and by .json, see {@link EmulatorProfile}.
+   */
+  public void setEmulatorProfilePrefix(String prefix) {
+    runEmulator = true;
+    emulatorProfilePrefix = prefix;
+  }
+
+  /**
+   * Sets the optimization level of the code generator, see {@link CodeGen#setOptimizationLevel}.
+   */
+  public void setOptimizationLevel(int level) {
+    optimizationLevel = level;
+  }
+
+  public void enablePrintAllocation() {
+    printAllocation = true;
+  }
+
+  /**
+   * Chooses how the generated code addresses globals, see {@link CodeGen#setPositionIndependent}.
+   */
+  public void setPositionIndependent(boolean pic) {
+    positionIndependent = pic;
+  }
+
+  /**
+   * Makes the driver profile a run of the emulator on the emulator input before generating code,
+   * so that the blocks are laid out by how often each branch went which way, see
+   * {@link CodeGen#setLayoutProfile}.
+   */
+  public void enableLayoutProfile() {
+    layoutProfile = true;
+  }
+
+  /**
+   * Chooses the peephole rules the code generator applies, given as a comma-separated list of
+   * their names or as "none", see {@link CodeGen#setPeepholeRules}.
+   */
+  public void setPeepholeRules(String rules) {
+    peepholeRules = rules.equals("none") ? List.of() : List.of(rules.split(","));
+  }
+
+  /**
+   * Makes the code generator write an ELF object rather than assembly, see
+   * {@link CodeGen#setObjectOutput}.
+   */
+  public void enableObjectOutput() {
+    objectOutput = true;
+  }
+
+  /**
+   * Makes the code generator write the assembly or object to the given file.
+   */
+  public void setOutputFile(String outputFile) {
+    this.outputFile = outputFile;
   }
 
   public boolean hasInputFile() {
@@ -138,6 +232,68 @@ public final class Driver {
     emulatorInputStream = inputStream;
   }
 
+  public void setEmulatorInstructionLimit(long instructions) {
+    emulatorInstructionLimit = instructions;
+  }
+
+  public void setEmulatorTimeLimit(long millis) {
+    emulatorTimeLimit = millis;
+  }
+
+  /**
+   * Makes the emulator write a binary trace of the run to the given file, see
+   * {@link TraceDecoder}.
+   */
+  public void setEmulatorTraceFile(String traceFile) {
+    runEmulator = true;
+    emulatorTraceFile = traceFile;
+  }
+
+  /**
+   * Makes the emulator save its state to the given file if the run stops at a limit, see
+   * {@link Checkpoint}. The run is interpreted then, without the JIT or the closure engine, and
+   * cannot be profiled.
+   */
+  public void setEmulatorCheckpointFile(String checkpointFile) {
+    runEmulator = true;
+    emulatorCheckpointFile = checkpointFile;
+  }
+
+  /**
+   * Makes the emulator continue from the state saved in the given file, rather than start main.
+   */
+  public void setEmulatorRestoreFile(String checkpointFile) {
+    runEmulator = true;
+    emulatorRestoreFile = checkpointFile;
+  }
+
+  /**
+   * Prints a trace written by the emulator for the input program, rather than running it.
+   */
+  public void setDecodeTraceFile(String traceFile) {
+    decodeTraceFile = traceFile;
+  }
+
+  /**
+   * Adds an input of a batch run, see {@link EmulatorBatch}. With batch inputs, the emulator runs
+   * on each of them instead of the emulator input.
+   */
+  public void addEmulatorBatchInput(String inputFile) {
+    runEmulator = true;
+    emulatorBatchInputs.add(Path.of(inputFile));
+  }
+
+  public void setEmulatorJobs(int jobs) {
+    emulatorJobs = jobs;
+  }
+
+  /**
+   * Sets how many functions the code generator works on at a time, see {@link CodeGen#setJobs}.
+   */
+  public void setCodeGenJobs(int jobs) {
+    codegenJobs = jobs;
+  }
+
   public boolean hasEmulatorInputFile() {
     return emulatorInputFile != null;
   }
@@ -331,22 +487,174 @@ public final class Driver {
 
   private State emitASM() {
     var codegen = new CodeGen(irProgram);
-    codegen.genCode();
+    codegen.setOptimizationLevel(optimizationLevel);
+    codegen.setPositionIndependent(positionIndependent);
+    if (printAllocation)
+      codegen.setAllocationReport(out);
+    if (irProfile != null)
+      codegen.setLayoutProfile(irProfile);
+    codegen.setObjectOutput(objectOutput);
+    codegen.setJobs(codegenJobs);
+    if (outputFile != null)
+      codegen.setOutput(Path.of(outputFile));
+    if (peepholeRules != null) {
+      try {
+        codegen.setPeepholeRules(peepholeRules);
+      } catch (IllegalArgumentException e) {
+        err.println(e.getMessage());
+        return State.Error;
+      }
+    }
+    try {
+      codegen.genCode();
+    } catch (UncheckedIOException e) {
+      err.println(String.format("Failed to write %s: %s", objectOutput ? "object" : "assembly",
+          e.getCause().getMessage()));
+      return State.Error;
+    }
 
     return State.Finished;
   }
 
   private State emulator() {
+    if (decodeTraceFile != null)
+      return decodeTrace();
+    if (runEmulator && !emulatorBatchInputs.isEmpty())
+      return batchEmulator();
     if (runEmulator) {
+      if (emulatorProfilePrefix != null && (emulatorCheckpointFile != null || emulatorRestoreFile != null)) {
+        err.println("Cannot profile a checkpointed or restored emulator run");
+        return State.Error;
+      }
       var emulatorInput = openEmulatorInput();
       var emulator = new Emulator(irProgram, emulatorInput, out);
-      emulator.run();
+      configureEmulator(emulator);
+      if (emulatorProfilePrefix != null)
+        emulator.enableProfile();
+      if (emulatorCheckpointFile != null)
+        emulator.disableJit();
+      if (emulatorRestoreFile != null) {
+        try (var checkpoint = new FileInputStream(emulatorRestoreFile)) {
+          emulator.restore(Checkpoint.read(checkpoint));
+        } catch (IOException e) {
+          err.println(String.format("Failed to restore emulator checkpoint '%s': %s",
+              emulatorRestoreFile, e.getMessage()));
+          return State.Error;
+        }
+      }
+      Emulator.Outcome outcome;
+      if (emulatorTraceFile != null) {
+        try (var trace = new FileOutputStream(emulatorTraceFile)) {
+          emulator.enableTrace(trace);
+          outcome = emulator.run();
+        } catch (IOException e) {
+          err.println("Failed to write emulator trace");
+          return State.Error;
+        }
+      } else {
+        outcome = emulator.run();
+      }
+      if (emulatorProfilePrefix != null) {
+        String profileFile = emulatorProfilePrefix + ".folded";
+        try (var folded = new PrintStream(new FileOutputStream(profileFile))) {
+          emulator.getProfile().writeFolded(folded);
+          profileFile = emulatorProfilePrefix + ".json";
+          try (var json = new PrintStream(new FileOutputStream(profileFile))) {
+            emulator.getProfile().writeJson(json);
+          }
+        } catch (IOException e) {
+          err.println(String.format("Failed to write emulator profile '%s': %s", profileFile,
+              e.getMessage()));
+        }
+      }
+      if (outcome != Emulator.Outcome.FINISHED) {
+        err.println("Emulator stopped: " + outcome);
+        if (emulatorCheckpointFile != null) {
+          try (var checkpoint = new FileOutputStream(emulatorCheckpointFile)) {
+            emulator.checkpoint().write(checkpoint);
+          } catch (IOException e) {
+            err.println("Failed to write emulator checkpoint");
+          }
+        }
+        return State.Error;
+      }
       return State.Finished;
     }
+    if (layoutProfile)
+      return profileLayout();
 
     return State.Continue;
   }
 
+  /**
+   * Runs the emulator with profiling on the emulator input, ignoring what the program prints, and
+   * keeps the profile for the code generator.
+   */
+  private State profileLayout() {
+    var emulator = new Emulator(irProgram, openEmulatorInput(), OutputStream.nullOutputStream());
+    configureEmulator(emulator);
+    emulator.enableProfile();
+    var outcome = emulator.run();
+    if (outcome != Emulator.Outcome.FINISHED) {
+      err.println("Emulator stopped: " + outcome);
+      return State.Error;
+    }
+    irProfile = emulator.getProfile();
+    return State.Continue;
+  }
+
+  private State decodeTrace() {
+    try (var trace = new FileInputStream(decodeTraceFile)) {
+      new TraceDecoder(new DecodedProgram(irProgram)).decode(trace, out);
+      return State.Finished;
+    } catch (IOException e) {
+      err.println(
+          String.format("Failed to decode trace '%s': %s", decodeTraceFile, e.getMessage()));
+      return State.Error;
+    }
+  }
+
+  /**
+   * Runs the emulator on every batch input and prints how each run ended.
+   */
+  private State batchEmulator() {
+    if (emulatorProfilePrefix != null || emulatorTraceFile != null || emulatorCheckpointFile != null) {
+      err.println("Cannot profile, trace or checkpoint a batch of emulator runs");
+      return State.Error;
+    }
+    var batch = new EmulatorBatch(new DecodedProgram(irProgram), emulatorJobs);
+    List<EmulatorBatch.Result> results;
+    try {
+      results = batch.run(emulatorBatchInputs, this::configureEmulator);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      err.println("Emulator batch interrupted");
+      return State.Error;
+    }
+    var state = State.Finished;
+    for (var r : results) {
+      if (r.error != null)
+        out.println(r.input + ": error: " + r.error.getMessage());
+      else
+        out.println(r.input + ": " + r.outcome);
+      if (!r.isFinished())
+        state = State.Error;
+    }
+    return state;
+  }
+
+  private void configureEmulator(Emulator emulator) {
+    if (debugEmulator)
+      emulator.enableDebug();
+    // Only an interpreted run can be checkpointed or continued from a checkpoint
+    if (closureEmulator && emulatorCheckpointFile == null && emulatorRestoreFile == null)
+      emulator.useClosureEngine();
+    if (emulatorInstructionLimit >= 0)
+      emulator.setInstructionLimit(emulatorInstructionLimit);
+    if (emulatorTimeLimit >= 0)
+      emulator.setTimeLimit(Duration.ofMillis(emulatorTimeLimit));
+  }
+
   private CharStream openInput() {
     if (inputStream == null) {
       try {
@@ -0,0 +1,104 @@
+package crux.backend;
+
+import crux.ir.Variable;
+
+import java.util.*;
+
+/**
+ * Where the variables of one function live: each one either in a register or in a stack slot of
+ * the frame. Slot n is at -8*n(%rbp). The callee-saved registers the function uses get a slot
+ * each as well, in which the prologue saves them.
+ */
+final class Allocation {
+  private final HashMap<Variable, Register> registers = new HashMap<>();
+  private final HashMap<Variable, Integer> slots = new HashMap<>();
+  private final EnumMap<Register, Integer> saved = new EnumMap<>(Register.class);
+  private int numSlots = 0;
+
+  /**
+   * Returns the allocation of -O0, which puts every variable in a slot of its own.
+   */
+  static Allocation onStack(Liveness liveness) {
+    var allocation = new Allocation();
+    for (Variable v : liveness.variables) {
+      allocation.spill(v);
+    }
+    allocation.finish();
+    return allocation;
+  }
+
+  void assign(Variable v, Register r) {
+    registers.put(v, r);
+    if (r.isCalleeSaved() && !saved.containsKey(r))
+      saved.put(r, 0);
+  }
+
+  void spill(Variable v) {
+    registers.remove(v);
+    slots.put(v, ++numSlots);
+  }
+
+  /**
+   * Gives a variable neither a register nor a slot, as its value is cheaper to compute again
+   * wherever it is needed.
+   */
+  void rematerialize(Variable v) {
+    registers.remove(v);
+  }
+
+  /**
+   * Puts a variable in the slot of another spilled one, which is never live at the same time.
+   */
+  void share(Variable v, Variable with) {
+    registers.remove(v);
+    slots.put(v, slots.get(with));
+  }
+
+  /**
+   * Gives the saved callee-saved registers their slots, after all variables have been assigned.
+   */
+  void finish() {
+    for (Register r : saved.keySet()) {
+      saved.put(r, ++numSlots);
+    }
+  }
+
+  /**
+   * Returns the register of a variable, or null if it lives in a stack slot.
+   */
+  Register register(Variable v) {
+    return registers.get(v);
+  }
+
+  /**
+   * Returns the operand through which instructions access a variable.
+   */
+  Operand location(Variable v) {
+    Register r = registers.get(v);
+    if (r != null)
+      return Operand.of(r);
+    return Operand.memory(-8 * slots.get(v), Register.RBP);
+  }
+
+  /**
+   * Returns the callee-saved registers the function uses, with the slots they are saved in.
+   */
+  Map<Register, Integer> savedRegisters() {
+    return saved;
+  }
+
+  int numRegisters() {
+    return registers.size();
+  }
+
+  int numSpilled() {
+    return slots.size();
+  }
+
+  /**
+   * Returns the number of slots the frame needs, rounded up to keep the stack 16-byte aligned.
+   */
+  int frameSlots() {
+    return (numSlots + 1) & ~1;
+  }
+}
@@ -0,0 +1,314 @@
+package crux.backend;
+
+/**
+ * A line of the assembly {@link CodeGen} produces: an instruction with its operands, a label or
+ * one of the few directives the code needs. Lines are immutable; a pass that rewrites the code
+ * replaces them in the {@link Assembly}.
+ * <p>
+ * The operands of an instruction are in AT&T order, the destination last.
+ */
+final class AsmLine {
+  enum Kind {
+    INSTRUCTION,
+    LABEL,
+    /** {@code .globl}, which exports a label. */
+    GLOBAL,
+    /** {@code .comm}, which reserves the zeroed storage of a global. */
+    COMMON,
+    /** {@code .p2align 4,,10}, which starts a fetch block unless that takes over 10 bytes. */
+    ALIGN
+  }
+
+  enum Op {
+    MOVQ,
+    MOVABSQ,
+    MOVZBQ,
+    LEAQ,
+    ADDQ,
+    SUBQ,
+    IMULQ,
+    IDIVQ,
+    CQTO,
+    SALQ,
+    SARQ,
+    SHRQ,
+    INCQ,
+    DECQ,
+    NEGQ,
+    XORQ,
+    CMPQ,
+    TESTQ,
+    PUSHQ,
+    ENTER,
+    LEAVE,
+    RET,
+    CALL,
+    JMP,
+    /** A conditional jump, {@code jcc}. */
+    J,
+    /** {@code setcc}, which sets a byte to whether a condition holds. */
+    SET;
+
+    final String mnemonic = name().toLowerCase();
+  }
+
+  /** The condition codes of the comparisons the code generator emits. */
+  enum Condition {
+    E,
+    NE,
+    L,
+    LE,
+    G,
+    GE;
+
+    final String suffix = name().toLowerCase();
+
+    /** Returns the condition that holds exactly when this one does not. */
+    Condition negate() {
+      switch (this) {
+        case E:
+          return NE;
+        case NE:
+          return E;
+        case L:
+          return GE;
+        case LE:
+          return G;
+        case G:
+          return LE;
+        default:
+          return L;
+      }
+    }
+  }
+
+  private static final Operand[] NONE = new Operand[0];
+
+  final Kind kind;
+  /** The operation of an instruction, or null. */
+  final Op op;
+  /** The condition of a {@code jcc} or {@code setcc}, or null. */
+  final Condition condition;
+  final Operand[] operands;
+  /** The label or symbol a line that is not an instruction is about. */
+  final String name;
+  /** The size in bytes of the storage of a {@code .comm}. */
+  final long size;
+  /** How many arguments a call passes in registers, which it reads. */
+  final int arguments;
+
+  private AsmLine(Kind kind, Op op, Condition condition, Operand[] operands, String name,
+      long size, int arguments) {
+    this.kind = kind;
+    this.op = op;
+    this.condition = condition;
+    this.operands = operands;
+    this.name = name;
+    this.size = size;
+    this.arguments = arguments;
+  }
+
+  static AsmLine instruction(Op op, Operand... operands) {
+    return new AsmLine(Kind.INSTRUCTION, op, null, operands, null, 0, 0);
+  }
+
+  static AsmLine conditional(Op op, Condition condition, Operand... operands) {
+    return new AsmLine(Kind.INSTRUCTION, op, condition, operands, null, 0, 0);
+  }
+
+  static AsmLine call(String function, int arguments) {
+    return new AsmLine(Kind.INSTRUCTION, Op.CALL, null, new Operand[] {Operand.symbol(function)},
+        null, 0, Math.min(arguments, Register.ARGUMENTS.length));
+  }
+
+  static AsmLine label(String name) {
+    return new AsmLine(Kind.LABEL, null, null, NONE, name, 0, 0);
+  }
+
+  static AsmLine global(String name) {
+    return new AsmLine(Kind.GLOBAL, null, null, NONE, name, 0, 0);
+  }
+
+  static AsmLine common(String name, long size) {
+    return new AsmLine(Kind.COMMON, null, null, NONE, name, size, 0);
+  }
+
+  static AsmLine align() {
+    return new AsmLine(Kind.ALIGN, null, null, NONE, null, 0, 0);
+  }
+
+  boolean isInstruction() {
+    return kind == Kind.INSTRUCTION;
+  }
+
+  boolean is(Op op) {
+    return this.op == op;
+  }
+
+  Operand operand(int n) {
+    return operands[n];
+  }
+
+  /**
+   * Returns whether the instruction sets its last operand without reading it first.
+   */
+  private boolean overwrites() {
+    switch (op) {
+      case MOVQ:
+      case MOVABSQ:
+      case MOVZBQ:
+      case LEAQ:
+        return true;
+      case IMULQ:
+        return operands.length == 3;
+      case XORQ:
+        // xor of a register with itself only zeroes it
+        return operands[0].isRegister() && operands[0].equals(operands[1]);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns whether the instruction writes its last operand.
+   */
+  private boolean writesLast() {
+    switch (op) {
+      case CMPQ:
+      case TESTQ:
+      case PUSHQ:
+      case IDIVQ:
+      case CALL:
+      case JMP:
+      case J:
+        return false;
+      case IMULQ:
+        return operands.length > 1;
+      default:
+        return operands.length > 0;
+    }
+  }
+
+  /**
+   * Returns whether an instruction reads a register, through its operands or implicitly, as
+   * {@code idiv} reads %rax and %rdx and a call the registers of its arguments.
+   */
+  boolean reads(Register r) {
+    int last = operands.length - 1;
+    for (int n = 0; n <= last; n++) {
+      Operand o = operands[n];
+      if (o.isMemory() ? o.reads(r) : o.register == r && (n < last || !overwrites()))
+        return true;
+    }
+    switch (op) {
+      case CQTO:
+        return r == Register.RAX;
+      case IDIVQ:
+        return r == Register.RAX || r == Register.RDX;
+      case IMULQ:
+        return operands.length == 1 && r == Register.RAX;
+      case CALL:
+        for (int a = 0; a < arguments; a++) {
+          if (Register.ARGUMENTS[a] == r)
+            return true;
+        }
+        return r == Register.RSP;
+      case RET:
+        return r == Register.RAX || r == Register.RSP;
+      case ENTER:
+      case LEAVE:
+      case PUSHQ:
+        return r == Register.RSP || r == Register.RBP;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns whether an instruction writes a register, as its destination or implicitly, as a call
+   * clobbers the caller-saved registers.
+   */
+  boolean writes(Register r) {
+    if (writesLast() && operands[operands.length - 1].kind != Operand.Kind.MEMORY
+        && operands[operands.length - 1].register == r)
+      return true;
+    switch (op) {
+      case CQTO:
+        return r == Register.RDX;
+      case IDIVQ:
+        return r == Register.RAX || r == Register.RDX;
+      case IMULQ:
+        return operands.length == 1 && (r == Register.RAX || r == Register.RDX);
+      case CALL:
+        return !r.isCalleeSaved() && r != Register.RBP;
+      case RET:
+      case ENTER:
+      case LEAVE:
+      case PUSHQ:
+        return r == Register.RSP || r == Register.RBP;
+      default:
+        return false;
+    }
+  }
+
+  boolean readsFlags() {
+    return op == Op.J || op == Op.SET;
+  }
+
+  boolean writesFlags() {
+    switch (op) {
+      case ADDQ:
+      case SUBQ:
+      case IMULQ:
+      case IDIVQ:
+      case SALQ:
+      case SARQ:
+      case SHRQ:
+      case INCQ:
+      case DECQ:
+      case NEGQ:
+      case XORQ:
+      case CMPQ:
+      case TESTQ:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Appends the line in AT&T syntax, without the line break. Instructions and directives are
+   * indented, labels are not.
+   */
+  void appendTo(StringBuilder sb) {
+    switch (kind) {
+      case INSTRUCTION:
+        sb.append("    ").append(op.mnemonic);
+        if (condition != null)
+          sb.append(condition.suffix);
+        for (int n = 0; n < operands.length; n++) {
+          sb.append(n == 0 ? " " : ", ");
+          operands[n].appendTo(sb);
+        }
+        break;
+      case LABEL:
+        sb.append(name).append(':');
+        break;
+      case GLOBAL:
+        sb.append("    .globl ").append(name);
+        break;
+      case COMMON:
+        sb.append("    .comm ").append(name).append(", ").append(size).append(", 8");
+        break;
+      default:
+        sb.append("    .p2align 4,,10");
+    }
+  }
+
+  @Override
+  public String toString() {
+    var sb = new StringBuilder();
+    appendTo(sb);
+    return sb.toString();
+  }
+}
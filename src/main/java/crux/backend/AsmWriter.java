@@ -0,0 +1,52 @@
+package crux.backend;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes {@link Assembly} out as the text gas assembles. Every line is formatted into the same
+ * builder and copied into a buffer of bytes, which goes to the stream whenever it fills up, so
+ * that writing a large program takes neither a string nor a system call per line. The assembly is
+ * all ASCII.
+ */
+final class AsmWriter {
+  private final OutputStream out;
+  private final byte[] buffer = new byte[1 << 16];
+  private int position = 0;
+  private final StringBuilder line = new StringBuilder(80);
+
+  AsmWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  void write(Assembly assembly) throws IOException {
+    for (AsmLine l : assembly.lines) {
+      write(l);
+    }
+  }
+
+  void write(AsmLine l) throws IOException {
+    line.setLength(0);
+    l.appendTo(line);
+    line.append('\n');
+    int length = line.length();
+    for (int n = 0; n < length; n++) {
+      if (position == buffer.length)
+        drain();
+      buffer[position++] = (byte) line.charAt(n);
+    }
+  }
+
+  /**
+   * Writes out what is buffered and flushes the stream, which is left open.
+   */
+  void flush() throws IOException {
+    drain();
+    out.flush();
+  }
+
+  private void drain() throws IOException {
+    out.write(buffer, 0, position);
+    position = 0;
+  }
+}
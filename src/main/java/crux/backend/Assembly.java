@@ -0,0 +1,45 @@
+package crux.backend;
+
+import java.util.*;
+
+/**
+ * The assembly of a program as a list of {@link AsmLine}s, in the order {@link CodeGen} emits
+ * them. Passes after code generation rewrite the list in place; an {@link AsmWriter} writes it out
+ * once they are done.
+ */
+final class Assembly {
+  final List<AsmLine> lines = new ArrayList<>();
+
+  void add(AsmLine line) {
+    lines.add(line);
+  }
+
+  void emit(AsmLine.Op op, Operand... operands) {
+    lines.add(AsmLine.instruction(op, operands));
+  }
+
+  void emit(AsmLine.Op op, AsmLine.Condition condition, Operand... operands) {
+    lines.add(AsmLine.conditional(op, condition, operands));
+  }
+
+  void label(String name) {
+    lines.add(AsmLine.label(name));
+  }
+
+  int size() {
+    return lines.size();
+  }
+
+  /**
+   * Returns how many of the lines from index from up to to are instructions, leaving out labels
+   * and directives.
+   */
+  int instructions(int from, int to) {
+    int count = 0;
+    for (int n = from; n < to; n++) {
+      if (lines.get(n).isInstruction())
+        count++;
+    }
+    return count;
+  }
+}
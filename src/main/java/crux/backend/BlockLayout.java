@@ -0,0 +1,331 @@
+package crux.backend;
+
+import crux.ir.EmulatorProfile;
+import crux.ir.Instruction;
+import crux.ir.insts.JumpInst;
+import crux.ir.insts.ReturnInst;
+
+import java.util.*;
+
+/**
+ * Decides the order the blocks of a function are emitted in, so that as many of the edges that
+ * are taken often as possible fall through, in the manner of Pettis and Hansen. A block is a run
+ * of instructions that is only entered at the top and only left at the bottom.
+ * <p>
+ * Every edge between blocks gets a weight: with an {@link EmulatorProfile}, how often it was taken
+ * on that run; without one, an estimate that makes every loop ten times as frequent as the code
+ * around it and leaves a loop one time in ten where a branch can stay in it. Going through the
+ * edges from the heaviest down, two chains of blocks are joined if the edge goes from the end of
+ * one to the start of the other. An edge back to the header of a loop wins over an edge out of
+ * the header with the same weight, which rotates the loop: its condition ends up at the bottom,
+ * where it jumps back to the top and falls through when the loop is done. The chains are then
+ * placed starting with the one of the entry, each time going on with the chain the heaviest edge
+ * from the code placed so far leads to.
+ * <p>
+ * The first instruction of every loop that is executed gets aligned, so that the loop starts a
+ * fetch block.
+ */
+final class BlockLayout {
+  /** The instructions in the order they are emitted. */
+  final List<Instruction> order = new ArrayList<>();
+  private final HashSet<Instruction> aligned = new HashSet<>();
+
+  private final Liveness liveness;
+  /** The instructions of each block, by their index in the order of the liveness. */
+  private final List<int[]> blocks = new ArrayList<>();
+  private final int[] blockOf;
+  /** The weight of each edge out of a block, by the index of the successor. */
+  private final double[][] weights;
+
+  /**
+   * Lays out the blocks of the instruction graph of a liveness, using the branch counts of a
+   * profile if there is one.
+   */
+  BlockLayout(Liveness liveness, BranchFusion fusion, EmulatorProfile profile) {
+    this.liveness = liveness;
+    int n = liveness.order.size();
+    blockOf = new int[n];
+    findBlocks();
+    var loops = new Loops(liveness);
+    weights = new double[blocks.size()][];
+    for (int b = 0; b < blocks.size(); b++) {
+      weights[b] = profile == null ? estimate(b, loops) : measure(b, fusion, profile);
+    }
+    if (n == 0)
+      return;
+
+    place(chain(loops));
+    var indices = new HashMap<Instruction, Integer>();
+    for (int k = 0; k < n; k++) {
+      indices.put(liveness.order.get(k), k);
+    }
+    for (int k = 0; k < n; k++) {
+      if (!loops.isHeader(k))
+        continue;
+      if (profile != null && profile.count(liveness.order.get(k)) == 0)
+        continue;
+      // The loop starts wherever its first block went
+      BitSet body = loops.body(k);
+      for (Instruction inst : order) {
+        if (body.get(indices.get(inst))) {
+          aligned.add(inst);
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Splits the instructions into blocks: an instruction starts one unless it is the only
+   * successor of the only instruction that leads to it.
+   */
+  private void findBlocks() {
+    int n = liveness.order.size();
+    var predecessors = new int[n];
+    for (int k = 0; k < n; k++) {
+      for (int s : exits(k)) {
+        predecessors[s]++;
+      }
+    }
+    var continues = new BitSet();
+    for (int k = 0; k < n; k++) {
+      int[] next = exits(k);
+      if (next.length == 1 && next[0] != 0 && next[0] != k && predecessors[next[0]] == 1)
+        continues.set(next[0]);
+    }
+    for (int k = 0; k < n; k++) {
+      if (continues.get(k))
+        continue;
+      var block = new ArrayList<Integer>();
+      for (int m = k;; m = exits(m)[0]) {
+        block.add(m);
+        blockOf[m] = blocks.size();
+        int[] next = exits(m);
+        if (next.length != 1 || !continues.get(next[0]))
+          break;
+      }
+      blocks.add(block.stream().mapToInt(Integer::intValue).toArray());
+    }
+  }
+
+  /**
+   * Returns the successors of the k-th instruction, where a return has none: the instruction
+   * graph goes on after it, but the code does not.
+   */
+  private int[] exits(int k) {
+    return liveness.order.get(k) instanceof ReturnInst ? new int[0] : liveness.successors(k);
+  }
+
+  private int last(int b) {
+    int[] block = blocks.get(b);
+    return block[block.length - 1];
+  }
+
+  private int[] successors(int b) {
+    int[] next = exits(last(b));
+    var targets = new int[next.length];
+    for (int n = 0; n < next.length; n++) {
+      targets[n] = blockOf[next[n]];
+    }
+    return targets;
+  }
+
+  /**
+   * Returns how often each edge out of a block was taken on the profiled run. The branch of a
+   * comparison fused with a jump is the jump's, scaled to how often the comparison ran.
+   */
+  private double[] measure(int b, BranchFusion fusion, EmulatorProfile profile) {
+    Instruction inst = liveness.order.get(last(b));
+    int[] next = exits(last(b));
+    double count = profile.count(inst);
+    if (next.length == 1)
+      return new double[] {count};
+    if (next.length == 0)
+      return new double[0];
+    double taken;
+    if (inst instanceof JumpInst) {
+      taken = profile.taken((JumpInst) inst);
+    } else {
+      JumpInst jump = fusion.jump(inst);
+      long jumps = profile.count(jump);
+      taken = jumps == 0 ? 0 : count * profile.taken(jump) / jumps;
+      if (fusion.isNegated(inst))
+        taken = count - taken;
+    }
+    return new double[] {count - taken, taken};
+  }
+
+  /**
+   * Guesses how often each edge out of a block is taken from the loops it is in.
+   */
+  private double[] estimate(int b, Loops loops) {
+    int k = last(b);
+    int[] next = exits(k);
+    double frequency = Math.pow(10, Math.min(loops.depth(k), 8));
+    if (next.length == 1)
+      return new double[] {frequency};
+    if (next.length == 0)
+      return new double[0];
+    boolean leaves0 = leavesLoop(k, next[0], loops);
+    boolean leaves1 = leavesLoop(k, next[1], loops);
+    if (leaves0 == leaves1)
+      return new double[] {frequency / 2, frequency / 2};
+    return leaves0 ? new double[] {frequency / 10, frequency * 9 / 10}
+        : new double[] {frequency * 9 / 10, frequency / 10};
+  }
+
+  /**
+   * Returns whether the edge from the k-th instruction to the s-th leaves a loop k is in.
+   */
+  private boolean leavesLoop(int k, int s, Loops loops) {
+    for (int h = 0; h < liveness.order.size(); h++) {
+      BitSet body = loops.isHeader(h) ? loops.body(h) : null;
+      if (body != null && body.get(k) && !body.get(s))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Joins the blocks into chains along the heaviest edges and returns the blocks of each chain.
+   */
+  private int[][] chain(Loops loops) {
+    int count = blocks.size();
+    var edges = new ArrayList<int[]>();
+    for (int b = 0; b < count; b++) {
+      int[] next = successors(b);
+      for (int n = 0; n < next.length; n++) {
+        edges.add(new int[] {b, n, next[n]});
+      }
+    }
+    edges.sort(Comparator.<int[]>comparingDouble(e -> -weights[e[0]][e[1]])
+        .thenComparing(e -> !isBackEdge(e[0], e[2], loops))
+        .thenComparingInt(e -> e[0])
+        .thenComparingInt(e -> e[1]));
+
+    var next = new int[count];
+    var previous = new int[count];
+    Arrays.fill(next, -1);
+    Arrays.fill(previous, -1);
+    var head = new int[count];
+    for (int b = 0; b < count; b++) {
+      head[b] = b;
+    }
+    for (int[] e : edges) {
+      int from = e[0];
+      int to = e[2];
+      if (to == 0 || next[from] >= 0 || previous[to] >= 0 || find(head, from) == find(head, to))
+        continue;
+      next[from] = to;
+      previous[to] = from;
+      head[find(head, to)] = find(head, from);
+    }
+
+    var chains = new ArrayList<int[]>();
+    for (int b = 0; b < count; b++) {
+      if (previous[b] >= 0)
+        continue;
+      var chain = new ArrayList<Integer>();
+      for (int c = b; c >= 0; c = next[c]) {
+        chain.add(c);
+      }
+      chains.add(chain.stream().mapToInt(Integer::intValue).toArray());
+    }
+    return chains.toArray(new int[0][]);
+  }
+
+  private static int find(int[] head, int b) {
+    while (head[b] != b) {
+      b = head[b] = head[head[b]];
+    }
+    return b;
+  }
+
+  /**
+   * Returns whether an edge between blocks goes back to the header of a loop it is in.
+   */
+  private boolean isBackEdge(int from, int to, Loops loops) {
+    int header = blocks.get(to)[0];
+    return loops.isHeader(header) && loops.body(header).get(last(from));
+  }
+
+  /**
+   * Places the chains, starting with the one of the entry, and fills in the order.
+   */
+  private void place(int[][] chains) {
+    var chainOf = new int[blocks.size()];
+    for (int c = 0; c < chains.length; c++) {
+      for (int b : chains[c]) {
+        chainOf[b] = c;
+      }
+    }
+    var placed = new boolean[chains.length];
+    var pull = new double[chains.length];
+    int c = chainOf[0];
+    while (c >= 0) {
+      placed[c] = true;
+      for (int b : chains[c]) {
+        for (int k : blocks.get(b)) {
+          order.add(liveness.order.get(k));
+        }
+        int[] next = successors(b);
+        for (int n = 0; n < next.length; n++) {
+          int to = chainOf[next[n]];
+          pull[to] = Math.max(pull[to], weights[b][n]);
+        }
+      }
+      // Chains are numbered by their first block, which keeps ties in the original order
+      c = -1;
+      for (int d = 0; d < chains.length; d++) {
+        if (!placed[d] && (c < 0 || pull[d] > pull[c]))
+          c = d;
+      }
+    }
+  }
+
+  /**
+   * Returns whether an instruction starts a loop and gets aligned.
+   */
+  boolean isAligned(Instruction inst) {
+    return aligned.contains(inst);
+  }
+
+  /**
+   * Returns how many jumps the code of an order of the instructions executes and how many of them
+   * are taken, going by the weights of the edges. Returns are not counted.
+   */
+  long[] jumps(List<Instruction> order) {
+    var positions = new HashMap<Instruction, Integer>();
+    for (int p = 0; p < order.size(); p++) {
+      positions.put(order.get(p), p);
+    }
+    double executed = 0;
+    double taken = 0;
+    for (int b = 0; b < blocks.size(); b++) {
+      int k = last(b);
+      int[] next = exits(k);
+      int after = positions.get(liveness.order.get(k)) + 1;
+      var falls = new boolean[next.length];
+      for (int n = 0; n < next.length; n++) {
+        falls[n] = positions.get(liveness.order.get(next[n])) == after;
+      }
+      double[] w = weights[b];
+      if (next.length == 1 && !falls[0]) {
+        executed += w[0];
+        taken += w[0];
+      } else if (next.length == 2) {
+        executed += w[0] + w[1];
+        if (falls[1] && !falls[0]) {
+          taken += w[0];
+        } else {
+          taken += w[1];
+          if (!falls[0]) {
+            executed += w[0];
+            taken += w[0];
+          }
+        }
+      }
+    }
+    return new long[] {Math.round(executed), Math.round(taken)};
+  }
+}
@@ -0,0 +1,128 @@
+package crux.backend;
+
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Finds the conditions that only feed a conditional jump, so that {@link CodeGen} can branch on the
+ * flags instead of materializing a boolean and testing it again. Two patterns are fused:
+ * <ul>
+ * <li>a {@link CompareInst}, which becomes a {@code cmp} and a {@code jcc} to the targets of the
+ * jump;</li>
+ * <li>a {@link CopyInst} of a boolean constant, which becomes a {@code jmp} to the target the
+ * constant selects.</li>
+ * </ul>
+ * Between the condition and the jump there may be {@link NopInst}s and copies of the value, which
+ * is how ASTLower joins the two sides of {@code &&} and {@code ||}, as well as negations, which
+ * swap the targets. The value has to be dead after the jump. A fused instruction gets the targets
+ * of the jump as its successors, so the instructions in between are left out unless something
+ * else still reaches them.
+ */
+final class BranchFusion {
+  /** The successors of the fused instructions, as {false, true} or the one constant target. */
+  private final HashMap<Instruction, Instruction[]> targets = new HashMap<>();
+  /** The jump each fused instruction decides, and which of them decide it negated. */
+  private final HashMap<Instruction, JumpInst> jumps = new HashMap<>();
+  private final HashSet<Instruction> negated = new HashSet<>();
+
+  BranchFusion(Liveness liveness) {
+    var positions = new HashMap<Instruction, Integer>();
+    for (int k = 0; k < liveness.order.size(); k++) {
+      positions.put(liveness.order.get(k), k);
+    }
+    for (int k = 0; k < liveness.order.size(); k++) {
+      Instruction inst = liveness.order.get(k);
+      if (inst instanceof CompareInst) {
+        var next = jumpOn(liveness, positions, inst, ((CompareInst) inst).getDst());
+        if (next != null)
+          targets.put(inst, next);
+      } else if (inst instanceof CopyInst
+          && ((CopyInst) inst).getSrcValue() instanceof BooleanConstant) {
+        var copy = (CopyInst) inst;
+        var next = jumpOn(liveness, positions, inst, copy.getDstVar());
+        if (next != null) {
+          boolean value = ((BooleanConstant) copy.getSrcValue()).getValue();
+          targets.put(inst, new Instruction[] {next[value ? 1 : 0]});
+        }
+      }
+    }
+  }
+
+  /**
+   * Follows the flow after an instruction that writes v through nops, copies and negations of v to
+   * a jump on v. If v, and every value derived from it on the way, is dead after it is used,
+   * returns where the jump goes if v is false and if it is true.
+   */
+  private Instruction[] jumpOn(Liveness liveness, HashMap<Instruction, Integer> positions,
+      Instruction from, Variable v) {
+    Instruction inst = from.getNext(0);
+    var seen = new HashSet<Instruction>();
+    boolean negated = false;
+    while (inst != null && seen.add(inst)) {
+      int k = positions.get(inst);
+      if (inst instanceof NopInst) {
+        inst = inst.getNext(0);
+      } else if (inst instanceof CopyInst && ((CopyInst) inst).getSrcValue() == v
+          && !liveness.liveOut(k).get(liveness.indexOf(v))) {
+        v = ((CopyInst) inst).getDstVar();
+        inst = inst.getNext(0);
+      } else if (inst instanceof UnaryNotInst && ((UnaryNotInst) inst).getInner() == v
+          && !liveness.liveOut(k).get(liveness.indexOf(v))) {
+        v = ((UnaryNotInst) inst).getDst();
+        negated = !negated;
+        inst = inst.getNext(0);
+      } else if (inst instanceof JumpInst && ((JumpInst) inst).getPredicate() == v
+          && !liveness.liveOut(k).get(liveness.indexOf(v))) {
+        jumps.put(from, (JumpInst) inst);
+        if (negated)
+          this.negated.add(from);
+        return negated ? new Instruction[] {inst.getNext(1), inst.getNext(0)}
+            : new Instruction[] {inst.getNext(0), inst.getNext(1)};
+      } else {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  boolean isFused(Instruction inst) {
+    return targets.containsKey(inst);
+  }
+
+  /**
+   * Returns the jump a fused instruction decides, which tests its value negated if
+   * {@link #isNegated} holds.
+   */
+  JumpInst jump(Instruction inst) {
+    return jumps.get(inst);
+  }
+
+  boolean isNegated(Instruction inst) {
+    return negated.contains(inst);
+  }
+
+  /**
+   * Returns the successors of an instruction once the fused ones are in place. A target that is
+   * itself a fused constant is skipped, as it would only jump on.
+   */
+  Instruction[] successors(Instruction inst) {
+    Instruction[] next = targets.get(inst);
+    if (next == null) {
+      next = new Instruction[inst.numNext()];
+      for (int n = 0; n < next.length; n++) {
+        next[n] = inst.getNext(n);
+      }
+    } else {
+      next = next.clone();
+    }
+    for (int n = 0; n < next.length; n++) {
+      var seen = new HashSet<Instruction>();
+      while (next[n] instanceof CopyInst && isFused(next[n]) && seen.add(next[n])) {
+        next[n] = targets.get(next[n])[0];
+      }
+    }
+    return next;
+  }
+}
@@ -1,381 +1,209 @@
 package crux.backend;
 
-import crux.ast.OpExpr;
-import crux.ast.SymbolTable.Symbol;
 import crux.ir.*;
-import crux.ir.insts.*;
-import crux.printing.IRValueFormatter;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
- * Convert the CFG into Assembly Instructions
+ * Convert the CFG into Assembly Instructions, as chosen by the {@link InstructionSelection} of
+ * each function. Each function is generated by a {@link FunctionCodeGen} of its own, several at a
+ * time on a {@link ForkJoinPool}, and their code is put together in the order of the source, so
+ * it comes out the same however they were scheduled. It is written out at the end.
  */
-public final class CodeGen extends InstVisitor {
+public final class CodeGen {
   private final Program p;
-  private final CodePrinter out;
-
-  HashMap<Instruction, String> flmap;
-
-  private HashMap<Variable, Integer> varIndexMap =  new HashMap<Variable, Integer>();;
-  private int varIndex = 0;
-  Integer getStackSlot(Variable v) {
-    if (!varIndexMap.containsKey(v)) {
-      varIndex++;
-      varIndexMap.put(v, varIndex);
-    }
-
-    return varIndexMap.get(v);
-  }
+  private Path outputPath;
+  private OutputStream output = null;
+  private boolean outputChosen = false;
+  private boolean object = false;
+
+  private int optimizationLevel = 1;
+  private PrintStream allocationReport = null;
+  private EmulatorProfile layoutProfile = null;
+  private boolean pic = true;
+  private Set<Peephole.Rule> peepholeRules = EnumSet.allOf(Peephole.Rule.class);
+  private int jobs = Runtime.getRuntime().availableProcessors();
 
   public CodeGen(Program p) {
     this.p = p;
     // Do not change the file name that is outputted or it will
     // break the grader!
 
-    out = new CodePrinter("a.s");
+    outputPath = Paths.get("a.s");
   }
 
   /**
-   * It should allocate space for globals call genCode for each Function
+   * Makes {@link #genCode} write the assembly to a file rather than to a.s.
    */
-  public void genCode() {
-    //TODO
-    for (Iterator<GlobalDecl> glob_it = p.getGlobals(); glob_it.hasNext(); ) {
-      GlobalDecl g = glob_it.next();
-      String name = g.getSymbol().getName();
-      long size = g.getNumElement().getValue()*8;
-      out.printCode(".comm " + name + ", " + size + ", 8");
-    }
-
-    int count[] = new int[1];
-    for (Iterator<Function> func_it = p.getFunctions(); func_it.hasNext(); ) {
-      Function f = func_it.next();
-      genCode(f, count);
-    }
-
-    out.close();
-
+  public void setOutput(Path path) {
+    outputPath = path;
+    output = null;
+    outputChosen = true;
   }
 
-  private void genCode(Function f, int count[]){
-    //flmap.putAll(f.assignLabels(count)); TODO which one?
-    flmap = f.assignLabels(count);
-    out.printCode(".globl " + f.getName());
-    out.printLabel(f.getName() + ":");
-    int numSlots = f.getNumTempVars() + f.getNumTempAddressVars();
-    numSlots = (numSlots + 1) & ~1; //round up to nearest even number
-    out.printCode("enter $(8 * "+ numSlots+"), $0");
-    varIndex = 0; //TODO verify is this correct?
-    for (int i =1; i <= f.getArguments().size(); i++){
-      int argslot = getStackSlot(f.getArguments().get(i-1));
-      int argoffset = - argslot * 8; //TODO is this correct to create a new stack?
-      if (i==1){
-        out.printCode("movq %rdi, "+argoffset+"(%rbp)");
-      }else if (i==2){
-        out.printCode("movq %rsi, "+argoffset+"(%rbp)");
-      }else if (i ==3){
-        out.printCode("movq %rdx, "+argoffset+"(%rbp)");
-      }else if (i==4){
-        out.printCode("movq %rcx, "+argoffset+"(%rbp)");
-      }else if (i==5){
-        out.printCode("movq %r8, "+argoffset+"(%rbp)");
-      }else if(i==6){
-        out.printCode("movq %r9, "+argoffset+"(%rbp)");
-      }else{
-        out.printCode("movq "+8*(i-5)+"(%rbp), %r10");
-        out.printCode("movq %r10, "+argoffset + "(%rbp)");
-      }
-    }
-
-
-    Stack<Instruction> tovisit = new Stack<>();
-    HashSet<Instruction> discovered = new HashSet<>();
-    if (f.getStart() != null)
-      tovisit.push(f.getStart());
-    while (!tovisit.isEmpty()) {
-      Instruction inst = tovisit.pop();
-      if (discovered.contains(inst)){
-        out.printCode("jmp "+flmap.get(inst));
-      }else{
-        if (flmap.containsKey(inst)){
-          out.printCode(flmap.get(inst)+":");
-        }
-        inst.accept(this);
-        discovered.add(inst);
-        if (inst.numNext()>0){
-          for (int childIdx = inst.numNext()-1; childIdx >= 0; childIdx--) {
-            Instruction child = inst.getNext(childIdx);
-            tovisit.push(child);
-          }
-        }else{
-
-            out.printCode("leave");
-            out.printCode("ret");
-          }
-        }
-      }
-    }
-
-
-
-  public void visit(AddressAt i) {
-    var VarName = i.getBase().getName();
-    out.printCode("movq "+VarName+"@GOTPCREL(%rip), %r11");
-
-    if (i.getOffset() != null){
-      int idxslot = getStackSlot(i.getOffset());
-      int idxoffset = - idxslot * 8;
-      out.printCode("movq "+ idxoffset +"(%rbp), %r10");
-      out.printCode("imulq $8, %r10");
-      out.printCode("addq %r10, %r11");
-    }
-    int dstslot = getStackSlot(i.getDst());
-    int dstoffset = - dstslot * 8;
-    out.printCode("movq %r11, "+dstoffset+"(%rbp)");
-
-
+  /**
+   * Makes {@link #genCode} write the assembly to a stream, which it flushes but leaves open.
+   */
+  public void setOutput(OutputStream stream) {
+    output = stream;
+    outputChosen = true;
   }
 
-  public void visit(BinaryOperator i) {
-    Variable dst = i.getDst();
-    Variable lhs = i.getLeftOperand();
-    Variable rhs = i.getRightOperand();
-    int dstslot = getStackSlot(dst);
-    int lhsslot = getStackSlot(lhs);
-    int rhsslot = getStackSlot(rhs);
-    int dstoffset = -dstslot * 8;
-    int lhsoffset = -lhsslot * 8;
-    int rhsoffset = -rhsslot * 8;
-
-    switch(i.getOperator()) {
-      case Add:
-        out.printCode("movq "+lhsoffset+"(%rbp), %r10");
-        out.printCode("addq "+rhsoffset+"(%rbp), %r10");
-        out.printCode("movq %r10, "+ dstoffset+"(%rbp)");
-        break;
-      case Sub:
-        out.printCode("movq "+lhsoffset+"(%rbp), %r10");
-        out.printCode("subq "+rhsoffset+"(%rbp), %r10");
-        out.printCode("movq %r10, "+ dstoffset+"(%rbp)");
-        break;
-      case Mul:
-        out.printCode("movq "+lhsoffset+"(%rbp), %r10");
-        out.printCode("imulq "+rhsoffset+"(%rbp), %r10");
-        out.printCode("movq %r10, "+ dstoffset+"(%rbp)");
-        break;
-      case Div:
-        out.printCode("movq "+lhsoffset+"(%rbp), %rax");
-        out.printCode("cqto");
-        out.printCode("idivq " + rhsoffset + "(%rbp)");
-        out.printCode("movq %rax, "+ dstoffset+"(%rbp)");
-        break;
-    }
+  /**
+   * Makes {@link #genCode} write an ELF relocatable object, see {@link ElfWriter}, rather than
+   * assembly, which saves running the assembler. Unless an output is set it goes to a.o.
+   */
+  public void setObjectOutput(boolean object) {
+    this.object = object;
+    if (!outputChosen)
+      outputPath = Paths.get(object ? "a.o" : "a.s");
   }
 
-  public void visit(CompareInst i) {
-    Variable dst = i.getDst();
-    Variable lhs = i.getLeftOperand();
-    Variable rhs = i.getRightOperand();
-    int dstslot = getStackSlot(dst);
-    int lhsslot = getStackSlot(lhs);
-    int rhsslot = getStackSlot(rhs);
-    int dstoffset = -dstslot * 8;
-    int lhsoffset = -lhsslot * 8;
-    int rhsoffset = -rhsslot * 8;
-
-    switch(i.getPredicate()) {
-      case GE:
-        out.printCode("movq $0, %rax");
-        out.printCode("movq $1, %r10");
-        out.printCode("movq "+lhsoffset+"(%rbp), %r11");
-        out.printCode("cmp "+rhsoffset+"(%rbp), %r11");
-        out.printCode("cmovge %r10, %rax");
-        out.printCode("movq %rax, "+ dstoffset+"(%rbp)");
-        break;
-      case GT:
-        out.printCode("movq $0, %rax");
-        out.printCode("movq $1, %r10");
-        out.printCode("movq "+lhsoffset+"(%rbp), %r11");
-        out.printCode("cmp "+rhsoffset+"(%rbp), %r11");
-        out.printCode("cmovg %r10, %rax");
-        out.printCode("movq %rax, "+ dstoffset+"(%rbp)");
-        break;
-      case LE:
-        out.printCode("movq $0, %rax");
-        out.printCode("movq $1, %r10");
-        out.printCode("movq "+lhsoffset+"(%rbp), %r11");
-        out.printCode("cmp "+rhsoffset+"(%rbp), %r11");
-        out.printCode("cmovle %r10, %rax");
-        out.printCode("movq %rax, "+ dstoffset+"(%rbp)");
-        break;
-      case LT:
-        out.printCode("movq $0, %rax");
-        out.printCode("movq $1, %r10");
-        out.printCode("movq "+lhsoffset+"(%rbp), %r11");
-        out.printCode("cmp "+rhsoffset+"(%rbp), %r11");
-        out.printCode("cmovl %r10, %rax");
-        out.printCode("movq %rax, "+ dstoffset+"(%rbp)");
-        break;
-      case EQ:
-        out.printCode("movq $0, %rax");
-        out.printCode("movq $1, %r10");
-        out.printCode("movq "+lhsoffset+"(%rbp), %r11");
-        out.printCode("cmp "+rhsoffset+"(%rbp), %r11");
-        out.printCode("cmove %r10, %rax");
-        out.printCode("movq %rax, "+ dstoffset+"(%rbp)");
-        break;
-      case NE:
-        out.printCode("movq $0, %rax");
-        out.printCode("movq $1, %r10");
-        out.printCode("movq "+lhsoffset+"(%rbp), %r11");
-        out.printCode("cmp "+rhsoffset+"(%rbp), %r11");
-        out.printCode("cmovne %r10, %rax");
-        out.printCode("movq %rax, "+ dstoffset+"(%rbp)");
-        break;
-    }
+  /**
+   * Sets how hard the code generator tries: at 0 every variable lives in a stack slot, at 1 (the
+   * default) registers are allocated by {@link LinearScan}, and at 2 by {@link GraphColoring}.
+   */
+  public void setOptimizationLevel(int level) {
+    optimizationLevel = level;
   }
 
-  public void visit(CopyInst i) {
-    LocalVar dst = i.getDstVar();
-    Value src = i.getSrcValue();
-    int dstslot = getStackSlot(dst);
-    int dstoffset = -dstslot * 8;
-    if (src instanceof BooleanConstant){
-      BooleanConstant bc = (BooleanConstant) src;
-      if (bc.getValue()){
-        out.printCode("movq $1, "+dstoffset+"(%rbp)");
-      }else{
-        out.printCode("movq $0, "+dstoffset+"(%rbp)");
-      }
-    }else if (src instanceof IntegerConstant){
-      IntegerConstant ic = (IntegerConstant) src;
-      out.printCode("movq $"+ic.getValue()+", "+dstoffset+"(%rbp)");
-    }else{
-      LocalVar srcv = (LocalVar) src;
-      int srcslot = getStackSlot(srcv);
-      int srcoffset = -srcslot * 8;
-      out.printCode("movq "+srcoffset+"(%rbp), %r10");
-      out.printCode("movq %r10, "+dstoffset+"(%rbp)");
-    }
+  /**
+   * Makes the code generator print a line per function to the given stream, with the number of
+   * variables it spilled, how many of the copies between variables it got rid of and how many
+   * instructions it emitted, and a last line with how often each peephole rule fired.
+   */
+  public void setAllocationReport(PrintStream report) {
+    allocationReport = report;
   }
 
-  public void visit(JumpInst i) {
-    LocalVar pred = i.getPredicate();
-    int predslot = getStackSlot(pred);
-    int predoffset = -predslot * 8;
-    out.printCode("movq "+predoffset+"(%rbp), %r10");
-    out.printCode("cmp $1, %r10");
-    out.printCode("je "+flmap.get(i.getNext(1)));
+  /**
+   * Chooses how globals are addressed. Position independent code, the default, loads their
+   * addresses from the GOT; otherwise they are addressed relative to %rip, which works for the
+   * globals of an executable as the program is linked into one.
+   */
+  public void setPositionIndependent(boolean pic) {
+    this.pic = pic;
   }
 
-  public void visit(LoadInst i) {
-    LocalVar dst = i.getDst();
-    AddressVar src = i.getSrcAddress();
-    int dstslot = getStackSlot(dst);
-    int dstoffset = -dstslot * 8;
-    int srcslot = getStackSlot(src);
-    int srcoffset = -srcslot * 8;
-    out.printCode("movq "+srcoffset+"(%rbp), %r10"); //src: Address -> r10
-    out.printCode("movq 0(%r10), %r11");
-    out.printCode("movq %r11, "+dstoffset+"(%rbp)"); // Address -> var
+  /**
+   * Chooses the rules of the {@link Peephole} pass by their names, all of them by default. With
+   * none the code is left as emitted. An unknown name throws an {@link IllegalArgumentException}.
+   */
+  public void setPeepholeRules(Collection<String> names) {
+    peepholeRules = EnumSet.noneOf(Peephole.Rule.class);
+    for (String name : names) {
+      peepholeRules.add(Peephole.Rule.named(name));
+    }
   }
 
-  public void visit(NopInst i) {
-    out.printCode("// NOP");
+  /**
+   * Sets how many functions are generated at a time, one per processor by default. With 1 they
+   * are generated one after the other on the calling thread.
+   */
+  public void setJobs(int jobs) {
+    this.jobs = jobs;
   }
 
-  public void visit(StoreInst i) {
-    AddressVar dst = i.getDestAddress();
-    LocalVar src = i.getSrcValue();
-    int dstslot = getStackSlot(dst);
-    int dstoffset = -dstslot * 8;
-    int srcslot = getStackSlot(src);
-    int srcoffset = -srcslot * 8;
-    out.printCode("movq "+srcoffset+"(%rbp), %r10");// src: var -> r10
-    out.printCode("movq "+dstoffset+"(%rbp), %r11");// dst: Address -> dst TODO is it correct?
-    out.printCode("movq %r10, 0(%r11)");// var -> Address
+  /**
+   * Makes the {@link BlockLayout} go by the branch counts of an emulator run of the program,
+   * rather than guess them from its loops. The allocation report then has the number of jumps
+   * the emitted code executes on that run and how many of them are taken.
+   */
+  public void setLayoutProfile(EmulatorProfile profile) {
+    layoutProfile = profile;
   }
 
-  public void visit(ReturnInst i) {
-    if (i.getReturnValue() != null){
-      LocalVar v = i.getReturnValue();
-      int vslot = getStackSlot(v);
-      int voffset = -vslot * 8;
-      out.printCode("movq "+voffset+"(%rbp), %rax");
+  /**
+   * Generates the code of the program and writes it to the output, a.s unless set otherwise.
+   * Failing to write it throws an {@link UncheckedIOException}.
+   */
+  public void genCode() {
+    Assembly assembly = assemble();
+    try {
+      if (output != null) {
+        write(assembly, output);
+      } else {
+        try (OutputStream file = Files.newOutputStream(outputPath)) {
+          write(assembly, file);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
-    out.printCode("leave");
-    out.printCode("ret");
   }
 
-  public void visit(CallInst i) {
-    String calleeName = i.getCallee().getName();
-    int counter =1;
-
-    for (LocalVar para: i.getParams()){
-      int paraslot = getStackSlot(para);
-      int paraoffset = -paraslot * 8;
-      if (counter==1){
-        out.printCode("movq " +paraoffset+"(%rbp), %rdi");
-      }else if (counter==2){
-        out.printCode("movq " +paraoffset+"(%rbp), %rsi");
-      }else if (counter==3){
-        out.printCode("movq " +paraoffset+"(%rbp), %rdx");
-      }else if (counter==4){
-        out.printCode("movq " +paraoffset+"(%rbp), %rcx");
-      }else if (counter==5){
-        out.printCode("movq " +paraoffset+"(%rbp), %r8");
-      }else if (counter==6){
-        out.printCode("movq " +paraoffset+"(%rbp), %r9");
-      }else{
-
-      }
-      counter++;
+  private void write(Assembly assembly, OutputStream stream) throws IOException {
+    if (object) {
+      new ElfWriter(stream).write(assembly);
+      return;
     }
+    var writer = new AsmWriter(stream);
+    writer.write(assembly);
+    writer.flush();
+  }
 
+  /**
+   * It should allocate space for globals call genCode for each Function
+   */
+  Assembly assemble() {
+    var out = new Assembly();
+    for (Iterator<GlobalDecl> glob_it = p.getGlobals(); glob_it.hasNext(); ) {
+      GlobalDecl g = glob_it.next();
+      String name = g.getSymbol().getName();
+      long size = g.getNumElement().getValue()*8;
+      out.add(AsmLine.common(name, size));
+    }
 
-    if (counter > 7){
-      if (counter%2 == 0){ //if there are odd number of arguments
-        out.printCode("subq $8, %rsp");
-      }
-      for (int a = counter-7; a>0; a--){
-        int paraslot = getStackSlot(i.getParams().get(a+5));
-        int paraoffset = -paraslot * 8;
-        out.printCode("movq "+paraoffset+"(%rbp), %r10");
-        out.printCode("pushq %r10");
-      }
+    var functions = new ArrayList<FunctionCodeGen>();
+    for (Iterator<Function> func_it = p.getFunctions(); func_it.hasNext(); ) {
+      functions.add(new FunctionCodeGen(func_it.next(), optimizationLevel, pic, layoutProfile,
+          peepholeRules, allocationReport != null));
+    }
+    generate(functions);
+
+    var peephole = new Peephole(peepholeRules);
+    for (FunctionCodeGen f : functions) {
+      out.lines.addAll(f.out.lines);
+      peephole.add(f.peephole);
+      if (allocationReport != null)
+        allocationReport.println(f.report);
     }
+    if (allocationReport != null && !peepholeRules.isEmpty())
+      allocationReport.println(peephole.summary());
 
-    out.printCode("call " + calleeName);
-    if (i.getDst()!=null){
-      LocalVar dst = i.getDst();
-      int dstslot = getStackSlot(dst);
-      int dstoffset = -dstslot * 8;
-      out.printCode("movq %rax, " +dstoffset+"(%rbp)");
+    return out;
+  }
 
+  /**
+   * Generates the code of the functions, as many at a time as there are jobs.
+   */
+  private void generate(List<FunctionCodeGen> functions) {
+    if (jobs <= 1 || functions.size() <= 1) {
+      for (FunctionCodeGen f : functions) {
+        f.generate();
+      }
+      return;
     }
-
-    if (counter > 7){
-      if (counter%2 == 1){ //if there are even number of arguments
-        out.printCode("addq $"+8*(counter -7)+", %rsp");
-      }else{
-        out.printCode("addq $"+8*(counter -6)+", %rsp");
+    var pool = new ForkJoinPool(jobs);
+    try {
+      var tasks = new ArrayList<ForkJoinTask<?>>();
+      for (FunctionCodeGen f : functions) {
+        tasks.add(pool.submit(f::generate));
+      }
+      for (ForkJoinTask<?> task : tasks) {
+        task.join();
       }
+    } finally {
+      pool.shutdown();
     }
   }
-
-  public void visit(UnaryNotInst i) {
-    Variable dst = i.getDst();
-    Variable lhs = i.getInner();
-    int dstslot = getStackSlot(dst);
-    int lhsslot = getStackSlot(lhs);
-    int dstoffset = -dstslot * 8;
-    int lhsoffset = -lhsslot * 8;
-
-    out.printCode("movq $1, %r10");
-    out.printCode("subq "+lhsoffset+"(%rbp), %r10");
-    out.printCode("movq %r10, "+ dstoffset+"(%rbp)");
-
-
-  }
 }
@@ -0,0 +1,75 @@
+package crux.backend;
+
+/**
+ * The magic numbers that turn a signed division by a constant into a multiplication, after
+ * Granlund and Montgomery as given in Hacker's Delight, section 10-4. For a divisor d with
+ * {@code |d| >= 2} that is not a power of two, the quotient of n by d is
+ *
+ * <pre>
+ * q = high 64 bits of multiplier * n
+ * q += n   if d &gt; 0 and the multiplier is negative
+ * q -= n   if d &lt; 0 and the multiplier is positive
+ * q = (q &gt;&gt; shift) + (q &gt;&gt;&gt; 63 after the shift)
+ * </pre>
+ *
+ * rounded toward zero, like {@code idiv}.
+ */
+final class Division {
+  final long multiplier;
+  final int shift;
+
+  private Division(long multiplier, int shift) {
+    this.multiplier = multiplier;
+    this.shift = shift;
+  }
+
+  /**
+   * Finds the smallest multiplier and shift that divide by d.
+   */
+  static Division by(long d) {
+    if (d == Long.MIN_VALUE || Math.abs(d) < 2)
+      throw new IllegalArgumentException("No magic number for " + d);
+    final long two63 = Long.MIN_VALUE;
+    long ad = Math.abs(d);
+    long t = two63 + (d >>> 63);
+    long anc = t - 1 - Long.remainderUnsigned(t, ad);
+    int p = 63;
+    long q1 = Long.divideUnsigned(two63, anc);
+    long r1 = two63 - q1 * anc;
+    long q2 = Long.divideUnsigned(two63, ad);
+    long r2 = two63 - q2 * ad;
+    long delta;
+    do {
+      p++;
+      q1 <<= 1;
+      r1 <<= 1;
+      if (Long.compareUnsigned(r1, anc) >= 0) {
+        q1++;
+        r1 -= anc;
+      }
+      q2 <<= 1;
+      r2 <<= 1;
+      if (Long.compareUnsigned(r2, ad) >= 0) {
+        q2++;
+        r2 -= ad;
+      }
+      delta = ad - r2;
+    } while (Long.compareUnsigned(q1, delta) < 0 || (q1 == delta && r1 == 0));
+    long multiplier = q2 + 1;
+    return new Division(d < 0 ? -multiplier : multiplier, p - 64);
+  }
+
+  /**
+   * Divides the way the emitted code does, which is what the tests check the magic numbers with.
+   */
+  static long divide(long n, long d) {
+    Division division = by(d);
+    long q = Math.multiplyHigh(division.multiplier, n);
+    if (d > 0 && division.multiplier < 0)
+      q += n;
+    if (d < 0 && division.multiplier > 0)
+      q -= n;
+    q >>= division.shift;
+    return q + (q >>> 63);
+  }
+}
@@ -0,0 +1,230 @@
+package crux.backend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Writes {@link Assembly} out as an ELF64 relocatable object for x86-64, which the system linker
+ * takes like the output of gas. The code goes through the {@link Encoder} into .text, with its
+ * relocations in .rela.text. The symbol table has the functions, which are global, the
+ * {@code .comm} globals as common symbols, and the functions of the runtime the code calls, which
+ * are undefined. An empty .note.GNU-stack says the stack need not be executable.
+ */
+final class ElfWriter {
+  private static final int SHT_PROGBITS = 1;
+  private static final int SHT_SYMTAB = 2;
+  private static final int SHT_STRTAB = 3;
+  private static final int SHT_RELA = 4;
+  private static final int SHF_ALLOC = 0x2;
+  private static final int SHF_EXECINSTR = 0x4;
+  private static final int SHF_INFO_LINK = 0x40;
+  private static final int SHN_COMMON = 0xfff2;
+  private static final int STB_LOCAL = 0;
+  private static final int STB_GLOBAL = 1;
+  private static final int STT_NOTYPE = 0;
+  private static final int STT_OBJECT = 1;
+  private static final int STT_FUNC = 2;
+  private static final int STT_SECTION = 3;
+
+  /** The sections, by their index in the section header table. */
+  private static final int TEXT = 1;
+  private static final int RELA_TEXT = 2;
+  private static final int SYMTAB = 3;
+  private static final int STRTAB = 4;
+  private static final int SHSTRTAB = 5;
+  private static final int NOTE_GNU_STACK = 6;
+  private static final int SECTIONS = 7;
+
+  private final OutputStream out;
+
+  ElfWriter(OutputStream out) {
+    this.out = out;
+  }
+
+  /**
+   * Writes the object of an assembly and flushes the stream, which is left open.
+   */
+  void write(Assembly assembly) throws IOException {
+    var code = new Encoder(assembly);
+
+    var strtab = new Strings();
+    var symtab = new Buffer();
+    var symbols = new HashMap<String, Integer>();
+    symbol(symtab, 0, STB_LOCAL, STT_NOTYPE, 0, 0, 0);
+    symbol(symtab, 0, STB_LOCAL, STT_SECTION, TEXT, 0, 0);
+    int locals = 2;
+    var functions = new ArrayList<>(code.globals);
+    functions.sort(Comparator.comparing(code.labels::get));
+    for (int f = 0; f < functions.size(); f++) {
+      String name = functions.get(f);
+      int start = code.labels.get(name);
+      int end = f + 1 < functions.size() ? code.labels.get(functions.get(f + 1))
+          : code.text.length;
+      symbols.put(name, locals + symbols.size());
+      symbol(symtab, strtab.add(name), STB_GLOBAL, STT_FUNC, TEXT, start, end - start);
+    }
+    for (Map.Entry<String, Long> common : code.commons.entrySet()) {
+      symbols.put(common.getKey(), locals + symbols.size());
+      symbol(symtab, strtab.add(common.getKey()), STB_GLOBAL, STT_OBJECT, SHN_COMMON, 8,
+          common.getValue());
+    }
+    for (String name : code.undefined) {
+      symbols.put(name, locals + symbols.size());
+      symbol(symtab, strtab.add(name), STB_GLOBAL, STT_NOTYPE, 0, 0, 0);
+    }
+
+    var rela = new Buffer();
+    for (Encoder.Relocation r : code.relocations) {
+      rela.int64(r.offset);
+      rela.int64(((long) symbols.get(r.symbol) << 32) | r.type);
+      rela.int64(r.addend);
+    }
+
+    var shstrtab = new Strings();
+    int[] names = new int[SECTIONS];
+    names[TEXT] = shstrtab.add(".text");
+    names[RELA_TEXT] = shstrtab.add(".rela.text");
+    names[SYMTAB] = shstrtab.add(".symtab");
+    names[STRTAB] = shstrtab.add(".strtab");
+    names[SHSTRTAB] = shstrtab.add(".shstrtab");
+    names[NOTE_GNU_STACK] = shstrtab.add(".note.GNU-stack");
+
+    // The contents of the sections follow the ELF header, each aligned as it needs
+    byte[][] contents = new byte[SECTIONS][];
+    contents[TEXT] = code.text;
+    contents[RELA_TEXT] = rela.toByteArray();
+    contents[SYMTAB] = symtab.toByteArray();
+    contents[STRTAB] = strtab.toByteArray();
+    contents[SHSTRTAB] = shstrtab.toByteArray();
+    contents[NOTE_GNU_STACK] = new byte[0];
+    int[] alignments = {0, 16, 8, 8, 1, 1, 1};
+    var file = new Buffer();
+    file.pad(64);
+    long[] offsets = new long[SECTIONS];
+    for (int s = 1; s < SECTIONS; s++) {
+      file.align(alignments[s]);
+      offsets[s] = file.size();
+      file.write(contents[s], 0, contents[s].length);
+    }
+    file.align(8);
+    long sectionHeaders = file.size();
+
+    // The section headers
+    file.pad(64);
+    section(file, names[TEXT], SHT_PROGBITS, SHF_ALLOC | SHF_EXECINSTR, offsets[TEXT],
+        contents[TEXT].length, 0, 0, 16, 0);
+    section(file, names[RELA_TEXT], SHT_RELA, SHF_INFO_LINK, offsets[RELA_TEXT],
+        contents[RELA_TEXT].length, SYMTAB, TEXT, 8, 24);
+    section(file, names[SYMTAB], SHT_SYMTAB, 0, offsets[SYMTAB], contents[SYMTAB].length,
+        STRTAB, locals, 8, 24);
+    section(file, names[STRTAB], SHT_STRTAB, 0, offsets[STRTAB], contents[STRTAB].length, 0, 0,
+        1, 0);
+    section(file, names[SHSTRTAB], SHT_STRTAB, 0, offsets[SHSTRTAB],
+        contents[SHSTRTAB].length, 0, 0, 1, 0);
+    section(file, names[NOTE_GNU_STACK], SHT_PROGBITS, 0, offsets[NOTE_GNU_STACK], 0, 0, 0, 1,
+        0);
+
+    byte[] bytes = file.toByteArray();
+    header(bytes, sectionHeaders);
+    out.write(bytes);
+    out.flush();
+  }
+
+  /**
+   * Fills in the ELF header at the start of the file.
+   */
+  private static void header(byte[] bytes, long sectionHeaders) {
+    var header = new Buffer();
+    header.write(new byte[] {0x7f, 'E', 'L', 'F', 2, 1, 1, 0}, 0, 8);
+    header.pad(8);
+    header.int16(1); // ET_REL
+    header.int16(62); // EM_X86_64
+    header.int32(1);
+    header.int64(0);
+    header.int64(0);
+    header.int64(sectionHeaders);
+    header.int32(0);
+    header.int16(64);
+    header.int16(0);
+    header.int16(0);
+    header.int16(64);
+    header.int16(SECTIONS);
+    header.int16(SHSTRTAB);
+    System.arraycopy(header.toByteArray(), 0, bytes, 0, 64);
+  }
+
+  private static void symbol(Buffer symtab, int name, int binding, int type, int section,
+      long value, long size) {
+    symtab.int32(name);
+    symtab.write((binding << 4) | type);
+    symtab.write(0);
+    symtab.int16(section);
+    symtab.int64(value);
+    symtab.int64(size);
+  }
+
+  private static void section(Buffer file, int name, int type, long flags, long offset,
+      long size, int link, int info, long alignment, long entrySize) {
+    file.int32(name);
+    file.int32(type);
+    file.int64(flags);
+    file.int64(0);
+    file.int64(offset);
+    file.int64(size);
+    file.int32(link);
+    file.int32(info);
+    file.int64(alignment);
+    file.int64(entrySize);
+  }
+
+  /** Bytes in little-endian order. */
+  private static class Buffer extends ByteArrayOutputStream {
+    void int16(int value) {
+      write(value);
+      write(value >> 8);
+    }
+
+    void int32(long value) {
+      for (int b = 0; b < 4; b++) {
+        write((int) (value >> (8 * b)));
+      }
+    }
+
+    void int64(long value) {
+      int32(value);
+      int32(value >> 32);
+    }
+
+    void pad(int bytes) {
+      for (int b = 0; b < bytes; b++) {
+        write(0);
+      }
+    }
+
+    void align(int alignment) {
+      if (alignment > 1)
+        pad(-size() & (alignment - 1));
+    }
+  }
+
+  /** A string table, which starts with the empty string. */
+  private static final class Strings extends Buffer {
+    Strings() {
+      write(0);
+    }
+
+    /**
+     * Adds a string and returns its offset.
+     */
+    int add(String s) {
+      int offset = size();
+      byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+      write(bytes, 0, bytes.length);
+      write(0);
+      return offset;
+    }
+  }
+}
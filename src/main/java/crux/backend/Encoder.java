@@ -0,0 +1,460 @@
+package crux.backend;
+
+import crux.backend.AsmLine.Op;
+
+import java.io.ByteArrayOutputStream;
+import java.util.*;
+
+/**
+ * Encodes {@link Assembly} as x86-64 machine code for the .text section of an object, which is
+ * what {@link ElfWriter} writes out instead of handing the text to an assembler.
+ * <p>
+ * Every instruction but the jumps is encoded once, along with the relocations it needs. Jumps to
+ * labels start out in their short form; as long as the distance to the label of one of them does
+ * not fit a byte with the offsets the lines have, it is made long and the offsets are worked out
+ * again, as gas does. Calls to functions of the program go straight to them, calls to anything
+ * else and references to globals are left to the linker.
+ */
+final class Encoder {
+  /** The relocation types of the x86-64 psABI that the code needs. */
+  static final int R_X86_64_PC32 = 2;
+  static final int R_X86_64_PLT32 = 4;
+  static final int R_X86_64_REX_GOTPCRELX = 42;
+
+  /** A place in .text the linker fills in with the address of a symbol. */
+  static final class Relocation {
+    final int offset;
+    final String symbol;
+    final int type;
+    final long addend;
+
+    Relocation(int offset, String symbol, int type, long addend) {
+      this.offset = offset;
+      this.symbol = symbol;
+      this.type = type;
+      this.addend = addend;
+    }
+  }
+
+  /** The numbers of the registers in ModRM, SIB and REX, by ordinal. */
+  private static final int[] CODES = new int[Register.values().length];
+
+  static {
+    Register[] byCode = {Register.RAX, Register.RCX, Register.RDX, Register.RBX, Register.RSP,
+        Register.RBP, Register.RSI, Register.RDI, Register.R8, Register.R9, Register.R10,
+        Register.R11, Register.R12, Register.R13, Register.R14, Register.R15};
+    for (int code = 0; code < byCode.length; code++) {
+      CODES[byCode[code].ordinal()] = code;
+    }
+  }
+
+  /** The multi-byte nops alignment pads with, by length. */
+  private static final byte[][] NOPS = {
+      {},
+      {(byte) 0x90},
+      {0x66, (byte) 0x90},
+      {0x0f, 0x1f, 0x00},
+      {0x0f, 0x1f, 0x40, 0x00},
+      {0x0f, 0x1f, 0x44, 0x00, 0x00},
+      {0x66, 0x0f, 0x1f, 0x44, 0x00, 0x00},
+      {0x0f, 0x1f, (byte) 0x80, 0x00, 0x00, 0x00, 0x00},
+      {0x0f, 0x1f, (byte) 0x84, 0x00, 0x00, 0x00, 0x00, 0x00},
+      {0x66, 0x0f, 0x1f, (byte) 0x84, 0x00, 0x00, 0x00, 0x00, 0x00},
+      {0x66, 0x2e, 0x0f, 0x1f, (byte) 0x84, 0x00, 0x00, 0x00, 0x00, 0x00}};
+
+  /** The code of .text. */
+  final byte[] text;
+  final List<Relocation> relocations = new ArrayList<>();
+  /** The offset of every label, the functions among them. */
+  final Map<String, Integer> labels = new HashMap<>();
+  /** The labels a {@code .globl} exports, in order. */
+  final List<String> globals = new ArrayList<>();
+  /** The size of each {@code .comm} global, in order. */
+  final LinkedHashMap<String, Long> commons = new LinkedHashMap<>();
+  /** The symbols the code refers to that it does not define, in order. */
+  final Set<String> undefined = new LinkedHashSet<>();
+
+  private final List<AsmLine> lines;
+  /** The encoding of each instruction that is not a jump to a label, or null. */
+  private final byte[][] codes;
+  /** The relocations of each instruction, relative to its start. */
+  private final List<List<Relocation>> fixups = new ArrayList<>();
+  private final boolean[] longJump;
+  private final int[] offsets;
+
+  Encoder(Assembly assembly) {
+    lines = assembly.lines;
+    int n = lines.size();
+    codes = new byte[n][];
+    longJump = new boolean[n];
+    offsets = new int[n + 1];
+    var defined = new HashSet<String>();
+    for (AsmLine line : lines) {
+      if (line.kind == AsmLine.Kind.LABEL)
+        defined.add(line.name);
+      else if (line.kind == AsmLine.Kind.GLOBAL)
+        globals.add(line.name);
+      else if (line.kind == AsmLine.Kind.COMMON)
+        commons.put(line.name, line.size);
+    }
+    for (int k = 0; k < n; k++) {
+      AsmLine line = lines.get(k);
+      var relocs = new ArrayList<Relocation>();
+      fixups.add(relocs);
+      if (!line.isInstruction() || isBranch(line, defined))
+        continue;
+      codes[k] = new Instruction(relocs).encode(line);
+      for (Relocation r : relocs) {
+        if (!commons.containsKey(r.symbol) && !defined.contains(r.symbol))
+          undefined.add(r.symbol);
+      }
+    }
+    while (layOut()) {
+      // Every round makes at least one jump long, so this ends
+    }
+    text = emit();
+  }
+
+  /**
+   * Returns whether an instruction goes to a label of the program, which is encoded once the
+   * offsets are known.
+   */
+  private static boolean isBranch(AsmLine line, Set<String> defined) {
+    return (line.op == Op.JMP || line.op == Op.J || line.op == Op.CALL)
+        && defined.contains(line.operand(0).symbol);
+  }
+
+  private int size(int k) {
+    AsmLine line = lines.get(k);
+    if (codes[k] != null)
+      return codes[k].length;
+    if (line.kind == AsmLine.Kind.ALIGN)
+      return padding(offsets[k]);
+    if (!line.isInstruction())
+      return 0;
+    if (line.op == Op.CALL)
+      return 5;
+    if (!longJump[k])
+      return 2;
+    return line.op == Op.JMP ? 5 : 6;
+  }
+
+  /**
+   * Returns the padding {@code .p2align 4,,10} takes at an offset: up to the next multiple of 16
+   * unless that is more than 10 bytes.
+   */
+  private static int padding(int offset) {
+    int pad = -offset & 15;
+    return pad > 10 ? 0 : pad;
+  }
+
+  /**
+   * Works out the offset of every line and makes the short jumps that do not reach their label
+   * long. Returns whether there were any.
+   */
+  private boolean layOut() {
+    labels.clear();
+    for (int k = 0; k < lines.size(); k++) {
+      AsmLine line = lines.get(k);
+      if (line.kind == AsmLine.Kind.LABEL)
+        labels.put(line.name, offsets[k]);
+      offsets[k + 1] = offsets[k] + size(k);
+    }
+    boolean changed = false;
+    for (int k = 0; k < lines.size(); k++) {
+      AsmLine line = lines.get(k);
+      if (codes[k] != null || !line.isInstruction() || line.op == Op.CALL || longJump[k])
+        continue;
+      long distance = labels.get(line.operand(0).symbol) - (long) offsets[k + 1];
+      if (distance != (byte) distance) {
+        longJump[k] = true;
+        changed = true;
+      }
+    }
+    return changed;
+  }
+
+  private byte[] emit() {
+    var out = new ByteArrayOutputStream(offsets[lines.size()]);
+    for (int k = 0; k < lines.size(); k++) {
+      AsmLine line = lines.get(k);
+      if (codes[k] != null) {
+        out.write(codes[k], 0, codes[k].length);
+        for (Relocation r : fixups.get(k)) {
+          relocations.add(new Relocation(offsets[k] + r.offset, r.symbol, r.type, r.addend));
+        }
+      } else if (line.kind == AsmLine.Kind.ALIGN) {
+        byte[] nop = NOPS[size(k)];
+        out.write(nop, 0, nop.length);
+      } else if (line.isInstruction()) {
+        int distance = labels.get(line.operand(0).symbol) - offsets[k + 1];
+        if (line.op == Op.CALL) {
+          out.write(0xe8);
+          int32(out, distance);
+        } else if (!longJump[k]) {
+          out.write(line.op == Op.JMP ? 0xeb : 0x70 | condition(line.condition));
+          out.write(distance);
+        } else if (line.op == Op.JMP) {
+          out.write(0xe9);
+          int32(out, distance);
+        } else {
+          out.write(0x0f);
+          out.write(0x80 | condition(line.condition));
+          int32(out, distance);
+        }
+      }
+    }
+    return out.toByteArray();
+  }
+
+  private static void int32(ByteArrayOutputStream out, long value) {
+    for (int b = 0; b < 4; b++) {
+      out.write((int) (value >> (8 * b)));
+    }
+  }
+
+  private static int condition(AsmLine.Condition condition) {
+    switch (condition) {
+      case E:
+        return 0x4;
+      case NE:
+        return 0x5;
+      case L:
+        return 0xc;
+      case GE:
+        return 0xd;
+      case LE:
+        return 0xe;
+      default:
+        return 0xf;
+    }
+  }
+
+  private static int code(Register r) {
+    return CODES[r.ordinal()];
+  }
+
+  /**
+   * The encoding of one instruction, built up byte by byte.
+   */
+  private static final class Instruction {
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+    private final List<Relocation> relocations;
+    /** Where the displacement of a %rip-relative operand is, which its relocation fills in. */
+    private int ripDisplacement = -1;
+    private Operand ripOperand;
+
+    Instruction(List<Relocation> relocations) {
+      this.relocations = relocations;
+    }
+
+    byte[] encode(AsmLine line) {
+      Operand[] o = line.operands;
+      switch (line.op) {
+        case MOVQ:
+          if (o[0].isImmediate())
+            modrm(0xc7, 0, o[1]).imm32(o[0].value);
+          else if (o[0].isRegister())
+            modrm(0x89, code(o[0].register), o[1]);
+          else
+            modrm(0x8b, code(o[1].register), o[0]);
+          break;
+        case MOVABSQ:
+          rex(0, 0, code(o[1].register));
+          out.write(0xb8 | (code(o[1].register) & 7));
+          imm(o[0].value, 8);
+          break;
+        case MOVZBQ:
+          modrm(0x0fb6, code(o[1].register), o[0]);
+          break;
+        case LEAQ:
+          modrm(0x8d, code(o[1].register), o[0]);
+          break;
+        case ADDQ:
+          arithmetic(0x01, 0, o);
+          break;
+        case SUBQ:
+          arithmetic(0x29, 5, o);
+          break;
+        case XORQ:
+          arithmetic(0x31, 6, o);
+          break;
+        case CMPQ:
+          arithmetic(0x39, 7, o);
+          break;
+        case TESTQ:
+          modrm(0x85, code(o[0].register), o[1]);
+          break;
+        case IMULQ:
+          if (o.length == 1)
+            modrm(0xf7, 5, o[0]);
+          else if (o.length == 2)
+            modrm(0x0faf, code(o[1].register), o[0]);
+          else if (o[0].value == (byte) o[0].value)
+            modrm(0x6b, code(o[2].register), o[1]).imm(o[0].value, 1);
+          else
+            modrm(0x69, code(o[2].register), o[1]).imm32(o[0].value);
+          break;
+        case IDIVQ:
+          modrm(0xf7, 7, o[0]);
+          break;
+        case CQTO:
+          out.write(0x48);
+          out.write(0x99);
+          break;
+        case SALQ:
+          shift(4, o);
+          break;
+        case SARQ:
+          shift(7, o);
+          break;
+        case SHRQ:
+          shift(5, o);
+          break;
+        case INCQ:
+          modrm(0xff, 0, o[0]);
+          break;
+        case DECQ:
+          modrm(0xff, 1, o[0]);
+          break;
+        case NEGQ:
+          modrm(0xf7, 3, o[0]);
+          break;
+        case PUSHQ:
+          if (o[0].isImmediate()) {
+            boolean small = o[0].value == (byte) o[0].value;
+            out.write(small ? 0x6a : 0x68);
+            imm(o[0].value, small ? 1 : 4);
+          } else if (o[0].isRegister()) {
+            if (code(o[0].register) >= 8)
+              out.write(0x41);
+            out.write(0x50 | (code(o[0].register) & 7));
+          } else {
+            modrm(0xff, 6, o[0], false);
+          }
+          break;
+        case ENTER:
+          out.write(0xc8);
+          imm(o[0].value, 2);
+          imm(o[1].value, 1);
+          break;
+        case LEAVE:
+          out.write(0xc9);
+          break;
+        case RET:
+          out.write(0xc3);
+          break;
+        case CALL:
+          out.write(0xe8);
+          relocations.add(new Relocation(out.size(), o[0].symbol, R_X86_64_PLT32, -4));
+          imm(0, 4);
+          break;
+        case SET:
+          modrm(0x0f90 | condition(line.condition), 0, o[0], false);
+          break;
+        default:
+          throw new IllegalArgumentException("Cannot encode " + line);
+      }
+      byte[] bytes = out.toByteArray();
+      if (ripOperand != null) {
+        // The displacement is relative to the end of the instruction, which may have an
+        // immediate after it
+        int type = ripOperand.got ? R_X86_64_REX_GOTPCRELX : R_X86_64_PC32;
+        relocations.add(new Relocation(ripDisplacement, ripOperand.symbol, type,
+            ripDisplacement - bytes.length));
+      }
+      return bytes;
+    }
+
+    /**
+     * Encodes add, sub, xor and cmp, whose forms share a layout: an immediate under /digit of
+     * 0x83 or 0x81, a register into r/m with the opcode and r/m into a register with it plus 2.
+     */
+    private void arithmetic(int opcode, int digit, Operand[] o) {
+      if (o[0].isImmediate()) {
+        if (o[0].value == (byte) o[0].value)
+          modrm(0x83, digit, o[1]).imm(o[0].value, 1);
+        else
+          modrm(0x81, digit, o[1]).imm32(o[0].value);
+      } else if (o[0].isRegister()) {
+        modrm(opcode, code(o[0].register), o[1]);
+      } else {
+        modrm(opcode + 2, code(o[1].register), o[0]);
+      }
+    }
+
+    private void shift(int digit, Operand[] o) {
+      if (o[0].value == 1)
+        modrm(0xd1, digit, o[1]);
+      else
+        modrm(0xc1, digit, o[1]).imm(o[0].value, 1);
+    }
+
+    private void rex(int reg, int index, int base) {
+      out.write(0x48 | ((reg >> 3) << 2) | ((index >> 3) << 1) | (base >> 3));
+    }
+
+    private Instruction modrm(int opcode, int reg, Operand rm) {
+      return modrm(opcode, reg, rm, true);
+    }
+
+    /**
+     * Writes the REX prefix, which has W set for a 64-bit operation, the opcode of one or two
+     * bytes and the ModRM byte with whatever SIB and displacement the operand takes.
+     */
+    private Instruction modrm(int opcode, int reg, Operand rm, boolean wide) {
+      int base = rm.register == null ? 0 : code(rm.register);
+      int index = rm.index == null ? 0 : code(rm.index);
+      if (wide)
+        rex(reg, index, base);
+      else if (reg >= 8 || index >= 8 || base >= 8)
+        out.write(0x40 | ((reg >> 3) << 2) | ((index >> 3) << 1) | (base >> 3));
+      if (opcode > 0xff)
+        out.write(opcode >> 8);
+      out.write(opcode & 0xff);
+      reg &= 7;
+      if (!rm.isMemory()) {
+        out.write(0xc0 | (reg << 3) | (base & 7));
+        return this;
+      }
+      if (rm.register == null) {
+        // %rip-relative, with the displacement left to the linker
+        out.write((reg << 3) | 5);
+        ripDisplacement = out.size();
+        ripOperand = rm;
+        imm(0, 4);
+        return this;
+      }
+      long displacement = rm.value;
+      int mod;
+      if (displacement == 0 && (base & 7) != 5)
+        mod = 0;
+      else if (displacement == (byte) displacement)
+        mod = 1;
+      else
+        mod = 2;
+      if (rm.index != null || (base & 7) == 4) {
+        out.write((mod << 6) | (reg << 3) | 4);
+        int scale = Integer.numberOfTrailingZeros(rm.scale);
+        out.write((scale << 6) | ((rm.index == null ? 4 : index & 7) << 3) | (base & 7));
+      } else {
+        out.write((mod << 6) | (reg << 3) | (base & 7));
+      }
+      if (mod == 1)
+        imm(displacement, 1);
+      else if (mod == 2)
+        imm(displacement, 4);
+      return this;
+    }
+
+    private void imm32(long value) {
+      imm(value, 4);
+    }
+
+    private void imm(long value, int bytes) {
+      for (int b = 0; b < bytes; b++) {
+        out.write((int) (value >> (8 * b)));
+      }
+    }
+  }
+}
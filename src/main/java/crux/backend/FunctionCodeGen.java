@@ -0,0 +1,706 @@
+package crux.backend;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+import static crux.backend.AsmLine.Op.*;
+
+/**
+ * Generates the code of one function for {@link CodeGen}, into an {@link Assembly} of its own. It
+ * shares nothing that changes with the code of the other functions, so they can be generated at
+ * the same time, and the labels it makes up start with the name of the function.
+ */
+final class FunctionCodeGen {
+  private static final Operand RAX = Operand.of(Register.RAX);
+  private static final Operand RDX = Operand.of(Register.RDX);
+  private static final Operand R10 = Operand.of(Register.R10);
+  private static final Operand R11 = Operand.of(Register.R11);
+
+  private final Function f;
+  private final int optimizationLevel;
+  private final boolean pic;
+  private final EmulatorProfile layoutProfile;
+  private final boolean reported;
+  /** The code of the function. */
+  final Assembly out = new Assembly();
+  /** The peephole pass over the code, which counts how often its rules fired. */
+  final Peephole peephole;
+  /** The line of the allocation report about the function, or null if none was asked for. */
+  String report = null;
+
+  private HashMap<Instruction, String> flmap;
+  /** Where the variables of the function live. */
+  private Allocation allocation;
+  /** The tiles chosen for the instructions of the function. */
+  private InstructionSelection selection;
+
+  FunctionCodeGen(Function f, int optimizationLevel, boolean pic, EmulatorProfile layoutProfile,
+      Set<Peephole.Rule> peepholeRules, boolean reported) {
+    this.f = f;
+    this.optimizationLevel = optimizationLevel;
+    this.pic = pic;
+    this.layoutProfile = layoutProfile;
+    this.peephole = new Peephole(peepholeRules);
+    this.reported = reported;
+  }
+
+  private Operand loc(Variable v) {
+    return allocation.location(v);
+  }
+
+  /**
+   * Generates the code of the function into {@link #out}, and the line of the report if asked for.
+   */
+  void generate() {
+    // Labels are numbered within the function, so they do not depend on the others
+    String prefix = ".L" + f.getName() + ".";
+    int[] count = new int[1];
+    flmap = f.assignLabels(prefix, count);
+    var liveness = new Liveness(f);
+    BranchFusion fusion = null;
+    if (optimizationLevel >= 1) {
+      fusion = new BranchFusion(liveness);
+      liveness = new Liveness(f, fusion);
+    }
+    selection = new InstructionSelection(liveness, fusion, optimizationLevel >= 1, pic);
+    liveness = new Liveness(f, fusion, selection);
+    BlockLayout layout = null;
+    if (optimizationLevel >= 1) {
+      layout = new BlockLayout(liveness, fusion, layoutProfile);
+      liveness = new Liveness(f, fusion, selection, layout.order);
+    }
+    if (optimizationLevel <= 0)
+      allocation = Allocation.onStack(liveness);
+    else if (optimizationLevel == 1)
+      allocation = new LinearScan(liveness).allocate();
+    else
+      allocation = new GraphColoring(liveness).allocate();
+    List<Instruction> order = liveness.order;
+    // Every instruction that is not reached by falling through needs a label
+    for (int k = 0; k < order.size(); k++) {
+      for (int s : liveness.successors(k)) {
+        Instruction child = order.get(s);
+        if (s != k + 1 && !flmap.containsKey(child))
+          flmap.put(child, prefix + (++count[0]));
+      }
+    }
+
+    out.add(AsmLine.global(f.getName()));
+    out.label(f.getName());
+    out.emit(ENTER, Operand.immediate(8 * allocation.frameSlots()), Operand.immediate(0));
+    for (Map.Entry<Register, Integer> saved : allocation.savedRegisters().entrySet()) {
+      out.emit(MOVQ, Operand.of(saved.getKey()),
+          Operand.memory(-8 * saved.getValue(), Register.RBP));
+    }
+    var sources = new ArrayList<Operand>();
+    var targets = new ArrayList<Operand>();
+    List<LocalVar> args = f.getArguments();
+    for (int i = 0; i < args.size(); i++) {
+      sources.add(i < 6 ? Operand.of(Register.ARGUMENTS[i])
+          : Operand.memory(8 * (i - 4), Register.RBP));
+      targets.add(loc(args.get(i)));
+    }
+    moves(sources, targets);
+    for (Symbol global : selection.hoisted()) {
+      Register base = allocation.register(selection.base(global));
+      if (base != null)
+        load(global, base);
+    }
+
+    for (int k = 0; k < order.size(); k++) {
+      Instruction inst = order.get(k);
+      if (layout != null && layout.isAligned(inst))
+        out.add(AsmLine.align());
+      if (flmap.containsKey(inst)){
+        out.label(flmap.get(inst));
+      }
+      // A fused constant emits nothing but the jump, a folded instruction nothing at all
+      Tree tree = selection.tree(inst);
+      AsmLine.Condition cc = tree == null ? null : statement(tree);
+      if (inst instanceof ReturnInst)
+        continue;
+      int[] next = liveness.successors(k);
+      if (next.length == 0) {
+        epilogue();
+      } else if (next.length == 2 && next[1] == k + 1 && next[0] != k + 1) {
+        // Branch to the false side and fall through to the true one
+        out.emit(J, cc.negate(), target(order.get(next[0])));
+      } else {
+        if (next.length == 2)
+          out.emit(J, cc, target(order.get(next[1])));
+        if (next[0] != k + 1)
+          out.emit(JMP, target(order.get(next[0])));
+      }
+    }
+    peephole.run(out.lines);
+    if (reported)
+      report(liveness, out.instructions(0, out.size()), layout);
+  }
+
+  private Operand target(Instruction inst) {
+    return Operand.symbol(flmap.get(inst));
+  }
+
+  private void report(Liveness liveness, int instructions, BlockLayout layout) {
+    int moves = 0;
+    int eliminated = 0;
+    for (int k = 0; k < liveness.order.size(); k++) {
+      if (liveness.isMove(k)) {
+        moves++;
+        Variable src = liveness.variables.get(liveness.uses(k)[0]);
+        if (loc(src).equals(loc(liveness.variables.get(liveness.def(k)))))
+          eliminated++;
+      }
+    }
+    report = String.format(
+        "%s: %d in registers, %d spilled, %d of %d moves eliminated, %d instructions",
+        f.getName(), allocation.numRegisters(), allocation.numSpilled(), eliminated, moves,
+        instructions);
+    if (layout != null && layoutProfile != null) {
+      long[] jumps = layout.jumps(liveness.order);
+      report += String.format(", %d jumps executed, %d taken", jumps[0], jumps[1]);
+    }
+  }
+
+  private void epilogue() {
+    for (Map.Entry<Register, Integer> saved : allocation.savedRegisters().entrySet()) {
+      out.emit(MOVQ, Operand.memory(-8 * saved.getValue(), Register.RBP),
+          Operand.of(saved.getKey()));
+    }
+    out.emit(LEAVE);
+    out.emit(RET);
+  }
+
+  private void move(Operand src, Operand dst) {
+    if (src.equals(dst))
+      return;
+    if (!src.isRegister() && !dst.isRegister()) {
+      out.emit(MOVQ, src, R10);
+      src = R10;
+    }
+    out.emit(MOVQ, src, dst);
+  }
+
+  /**
+   * Emits the moves from each of the sources to the target at the same index as if they happened
+   * at once, which is what passing arguments takes when they already are in argument registers.
+   * A cycle of registers is broken up through %r11.
+   */
+  private void moves(List<Operand> sources, List<Operand> targets) {
+    var src = new ArrayList<Operand>();
+    var dst = new ArrayList<Operand>();
+    for (int i = 0; i < sources.size(); i++) {
+      if (!sources.get(i).equals(targets.get(i))) {
+        src.add(sources.get(i));
+        dst.add(targets.get(i));
+      }
+    }
+    while (!src.isEmpty()) {
+      int ready = -1;
+      for (int i = 0; i < dst.size() && ready < 0; i++) {
+        if (!src.contains(dst.get(i)))
+          ready = i;
+      }
+      if (ready >= 0) {
+        move(src.remove(ready), dst.remove(ready));
+      } else {
+        Operand blocked = src.get(0);
+        out.emit(MOVQ, blocked, R11);
+        Collections.replaceAll(src, blocked, R11);
+      }
+    }
+  }
+
+
+  /**
+   * Emits an instruction the selection left where it is, following the tiles chosen for its tree.
+   * Returns the condition code a branch after it tests, or null if it does not set the flags.
+   */
+  private AsmLine.Condition statement(Tree t) {
+    Tile tile = t.tile[Tile.Goal.STMT.ordinal()];
+    switch (tile) {
+      case STMT_VALUE:
+        value(t, loc(t.dst));
+        return null;
+      case STMT_FLAGS:
+        return flags(t);
+      case STORE: {
+        Operand value = operand(t.kid(0), Tile.Goal.ARG);
+        if (value.isMemory()) {
+          out.emit(MOVQ, value, R10);
+          value = R10;
+        }
+        out.emit(MOVQ, value, address(t.kid(1)));
+        return null;
+      }
+      case JUMP: {
+        Operand predicate = operand(t.kid(0), Tile.Goal.RM);
+        if (predicate.isRegister())
+          out.emit(TESTQ, predicate, predicate);
+        else
+          out.emit(CMPQ, Operand.immediate(0), predicate);
+        return AsmLine.Condition.NE;
+      }
+      case CALL:
+        call(t);
+        return null;
+      case RETURN:
+        move(operand(t.kid(0), Tile.Goal.ARG), RAX);
+        epilogue();
+        return null;
+      case RETURN_VOID:
+        epilogue();
+        return null;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns the operand through which a node produced in an operand goal is accessed. Only a
+   * memory operand whose address is spilled emits code, which loads the address into %r11.
+   */
+  private Operand operand(Tree t, Tile.Goal goal) {
+    Tile tile = t.tile[goal.ordinal()];
+    switch (tile) {
+      case REG_VAR:
+        return loc(t.var);
+      case REG_VALUE:
+        return loc(t.dst);
+      case IMM_CONST:
+        return Operand.immediate(t.value);
+      case MEM_LOAD:
+        return address(t.kid(0));
+      case REG_COPY:
+      case IMM_COPY:
+      case MEM_COPY:
+        return operand(t.kid(0), goal);
+      default:
+        return operand(t, tile.kids[0]);
+    }
+  }
+
+  /**
+   * Returns the memory operand at the address a node produced in goal ADDR stands for. Only %r11
+   * is used to get at it, and %rax while working it out.
+   */
+  private Operand address(Tree t) {
+    Tile tile = t.tile[Tile.Goal.ADDR.ordinal()];
+    switch (tile) {
+      case ADDR_GLOBAL: {
+        Symbol global = ((AddressAt) t.inst).getBase();
+        if (!pic && hoisted(global) == null)
+          return Operand.rip(global.getName(), false);
+        return Operand.memory(0, base(t, Register.R11));
+      }
+      case ADDR_INDEX: {
+        Operand index = operand(t.kid(0), Tile.Goal.REG);
+        if (index.isRegister())
+          return Operand.memory(0, base(t, Register.R11), index.register, 8);
+        Register base = base(t, Register.RAX);
+        out.emit(MOVQ, index, R11);
+        out.emit(LEAQ, Operand.memory(0, base, Register.R11, 8), R11);
+        return Operand.memory(0, Register.R11);
+      }
+      default:
+        return Operand.memory(0, register(t, Register.R11));
+    }
+  }
+
+  /**
+   * Returns the register the address of the global of an address node is in, which is the one it
+   * is hoisted into or else scratch.
+   */
+  private Register base(Tree t, Register scratch) {
+    Symbol global = ((AddressAt) t.inst).getBase();
+    Register base = hoisted(global);
+    if (base != null)
+      return base;
+    load(global, scratch);
+    return scratch;
+  }
+
+  /**
+   * Returns the register the address of a global is hoisted into, or null if it is not or had to
+   * be given up.
+   */
+  private Register hoisted(Symbol global) {
+    Variable base = selection.base(global);
+    return base == null ? null : allocation.register(base);
+  }
+
+  /**
+   * Loads the address of a global into a register, from the GOT or relative to %rip.
+   */
+  private void load(Symbol global, Register dst) {
+    out.emit(pic ? MOVQ : LEAQ, Operand.rip(global.getName(), pic), Operand.of(dst));
+  }
+
+  /**
+   * Returns the register a node produced in goal REG is in, loading it into scratch if it is
+   * spilled.
+   */
+  private Register register(Tree t, Register scratch) {
+    Operand operand = operand(t, Tile.Goal.REG);
+    if (operand.isRegister())
+      return operand.register;
+    out.emit(MOVQ, operand, Operand.of(scratch));
+    return scratch;
+  }
+
+  /**
+   * Emits the code that computes a node into a destination, which may be a register or a slot.
+   */
+  private void value(Tree t, Operand dst) {
+    Tile tile = t.tile[Tile.Goal.VALUE.ordinal()];
+    Operand work = dst.isRegister() ? dst : R10;
+    switch (tile) {
+      case VALUE_REG:
+        move(operand(t, Tile.Goal.REG), dst);
+        break;
+      case VALUE_IMM:
+        out.emit(MOVQ, operand(t, Tile.Goal.IMM), dst);
+        break;
+      case VALUE_MEM:
+        out.emit(MOVQ, operand(t, Tile.Goal.MEM), work);
+        move(work, dst);
+        break;
+      case VALUE_FLAGS: {
+        AsmLine.Condition cc = flags(t);
+        work = dst.isRegister() ? dst : RAX;
+        out.emit(SET, cc, Operand.lowByte(Register.RAX));
+        out.emit(MOVZBQ, Operand.lowByte(Register.RAX), work);
+        move(work, dst);
+        break;
+      }
+      case VALUE_CONST:
+        out.emit(MOVABSQ, Operand.immediate(t.value), work);
+        move(work, dst);
+        break;
+      case VALUE_COPY:
+        value(t.kid(0), dst);
+        break;
+      case ADD_IMM:
+        addImmediate(operand(t.kid(0), Tile.Goal.REG), Tile.constant(t.kid(1)), dst);
+        break;
+      case ADD_IMM_SWAPPED:
+        addImmediate(operand(t.kid(1), Tile.Goal.REG), Tile.constant(t.kid(0)), dst);
+        break;
+      case SUB_IMM:
+        addImmediate(operand(t.kid(0), Tile.Goal.REG), -Tile.constant(t.kid(1)), dst);
+        break;
+      case ADD_INDEX:
+        addIndex(t.kid(0), t.kid(1), dst);
+        break;
+      case ADD_INDEX_SWAPPED:
+        addIndex(t.kid(1), t.kid(0), dst);
+        break;
+      case ADD_RM:
+        binary(ADDQ, t.kid(0), t.kid(1), true, dst);
+        break;
+      case ADD_RM_SWAPPED:
+        binary(ADDQ, t.kid(1), t.kid(0), true, dst);
+        break;
+      case SUB_RM:
+        binary(SUBQ, t.kid(0), t.kid(1), false, dst);
+        break;
+      case MUL_RM:
+        binary(IMULQ, t.kid(0), t.kid(1), true, dst);
+        break;
+      case MUL_RM_SWAPPED:
+        binary(IMULQ, t.kid(1), t.kid(0), true, dst);
+        break;
+      case MUL_SHIFT:
+        shift(operand(t.kid(0), Tile.Goal.REG), Tile.constant(t.kid(1)), dst);
+        break;
+      case MUL_SHIFT_SWAPPED:
+        shift(operand(t.kid(1), Tile.Goal.REG), Tile.constant(t.kid(0)), dst);
+        break;
+      case MUL_IMM:
+        out.emit(IMULQ, operand(t.kid(1), Tile.Goal.IMM), operand(t.kid(0), Tile.Goal.RM), work);
+        move(work, dst);
+        break;
+      case MUL_IMM_SWAPPED:
+        out.emit(IMULQ, operand(t.kid(0), Tile.Goal.IMM), operand(t.kid(1), Tile.Goal.RM), work);
+        move(work, dst);
+        break;
+      case DIV_IMM:
+        divide(operand(t.kid(0), Tile.Goal.REG), Tile.constant(t.kid(1)), dst);
+        break;
+      case DIV_RM: {
+        Operand rhs = operand(t.kid(1), Tile.Goal.RM);
+        out.emit(MOVQ, operand(t.kid(0), Tile.Goal.REG), RAX);
+        out.emit(CQTO);
+        out.emit(IDIVQ, rhs);
+        move(RAX, dst);
+        break;
+      }
+      case NOT_REG: {
+        Operand inner = operand(t.kid(0), Tile.Goal.REG);
+        if (inner.equals(dst)) {
+          out.emit(XORQ, Operand.immediate(1), dst);
+          break;
+        }
+        move(inner, work);
+        out.emit(XORQ, Operand.immediate(1), work);
+        move(work, dst);
+        break;
+      }
+      case ADDRESS:
+        move(Operand.of(base(t, work.register)), dst);
+        break;
+      case ADDRESS_INDEX: {
+        Operand index = operand(t.kid(0), Tile.Goal.REG);
+        if (index.isRegister()) {
+          out.emit(LEAQ, Operand.memory(0, base(t, Register.R11), index.register, 8), work);
+        } else {
+          Register base = base(t, Register.RAX);
+          work = R11;
+          out.emit(MOVQ, index, R11);
+          out.emit(LEAQ, Operand.memory(0, base, Register.R11, 8), R11);
+        }
+        move(work, dst);
+        break;
+      }
+      default:
+        throw new IllegalStateException("No value tile " + tile);
+    }
+  }
+
+  /**
+   * Adds a constant to an operand, with {@code lea} when the operand is a register that is not the
+   * destination and with {@code inc} or {@code dec} for one.
+   */
+  private void addImmediate(Operand src, long c, Operand dst) {
+    if (src.isRegister() && !src.equals(dst)) {
+      Operand work = dst.isRegister() ? dst : R10;
+      out.emit(LEAQ, Operand.memory(c, src.register), work);
+      move(work, dst);
+      return;
+    }
+    Operand work = src.equals(dst) || dst.isRegister() ? dst : R10;
+    move(src, work);
+    if (c == 1)
+      out.emit(INCQ, work);
+    else if (c == -1)
+      out.emit(DECQ, work);
+    else if (c != 0)
+      out.emit(ADDQ, Operand.immediate(c), work);
+    move(work, dst);
+  }
+
+  /**
+   * Multiplies an operand by a power of two.
+   */
+  private void shift(Operand src, long c, Operand dst) {
+    Operand work = src.equals(dst) || dst.isRegister() ? dst : R10;
+    move(src, work);
+    if (c != 1)
+      out.emit(SALQ, Operand.immediate(Long.numberOfTrailingZeros(c)), work);
+    move(work, dst);
+  }
+
+  /**
+   * Divides an operand by a constant other than 0, rounding toward zero as {@code idiv} does. A
+   * power of two is shifted after adding 2^k - 1 to a negative dividend, any other divisor is
+   * multiplied by its {@link Division} magic number. %rax and %rdx are free to use, as they are
+   * for {@code idiv}.
+   */
+  private void divide(Operand n, long d, Operand dst) {
+    long magnitude = Math.abs(d);
+    if (magnitude == 1) {
+      Operand work = n.equals(dst) || dst.isRegister() ? dst : R10;
+      move(n, work);
+      if (d < 0)
+        out.emit(NEGQ, work);
+      move(work, dst);
+      return;
+    }
+    if ((magnitude & (magnitude - 1)) == 0) {
+      int k = Long.numberOfTrailingZeros(magnitude);
+      out.emit(MOVQ, n, RAX);
+      if (k > 1)
+        out.emit(SARQ, Operand.immediate(63), RAX);
+      out.emit(SHRQ, Operand.immediate(64 - k), RAX);
+      out.emit(ADDQ, n, RAX);
+      out.emit(SARQ, Operand.immediate(k), RAX);
+      if (d < 0)
+        out.emit(NEGQ, RAX);
+      move(RAX, dst);
+      return;
+    }
+    Division division = Division.by(d);
+    out.emit(MOVABSQ, Operand.immediate(division.multiplier), RAX);
+    out.emit(IMULQ, n);
+    if (d > 0 && division.multiplier < 0)
+      out.emit(ADDQ, n, RDX);
+    if (d < 0 && division.multiplier > 0)
+      out.emit(SUBQ, n, RDX);
+    if (division.shift > 0)
+      out.emit(SARQ, Operand.immediate(division.shift), RDX);
+    out.emit(MOVQ, RDX, RAX);
+    out.emit(SHRQ, Operand.immediate(63), RAX);
+    out.emit(ADDQ, RAX, RDX);
+    move(RDX, dst);
+  }
+
+  /**
+   * Adds a scaled index to a base with {@code lea}, or with {@code add} if the index is not scaled
+   * and either the base already is the destination or an operand is spilled.
+   */
+  private void addIndex(Tree base, Tree index, Operand dst) {
+    long scale = 1;
+    Tile tile = index.tile[Tile.Goal.INDEX.ordinal()];
+    if (tile == Tile.INDEX_MUL) {
+      scale = Tile.constant(index.kid(1));
+      index = index.kid(0);
+    } else if (tile == Tile.INDEX_MUL_SWAPPED) {
+      scale = Tile.constant(index.kid(0));
+      index = index.kid(1);
+    }
+    Operand b = operand(base, Tile.Goal.REG);
+    Operand i = operand(index, Tile.Goal.REG);
+    if (scale == 1 && (b.equals(dst) || !b.isRegister() || !i.isRegister())) {
+      // A spilled operand is cheaper to add from its slot than to load for lea
+      arithmetic(ADDQ, b, i, true, dst);
+      return;
+    }
+    if (!b.isRegister()) {
+      out.emit(MOVQ, b, R10);
+      b = R10;
+    }
+    if (!i.isRegister()) {
+      out.emit(MOVQ, i, R11);
+      i = R11;
+    }
+    Operand work = dst.isRegister() ? dst : R10;
+    out.emit(LEAQ, Operand.memory(0, b.register, i.register, (int) scale), work);
+    move(work, dst);
+  }
+
+  /**
+   * Emits a two-operand instruction on a left operand in goal REG and a right one in goal RM.
+   */
+  private void binary(AsmLine.Op op, Tree left, Tree right, boolean commutes, Operand dst) {
+    Operand rhs = operand(right, Tile.Goal.RM);
+    arithmetic(op, operand(left, Tile.Goal.REG), rhs, commutes, dst);
+  }
+
+  /**
+   * Emits a two-operand instruction, computed in the destination unless that would overwrite the
+   * right operand. An operator that commutes takes the operands the other way round instead.
+   */
+  private void arithmetic(AsmLine.Op op, Operand lhs, Operand rhs, boolean commutes,
+      Operand dst) {
+    if (commutes && rhs.equals(dst) && !lhs.equals(dst)) {
+      rhs = lhs;
+      lhs = dst;
+    }
+    Operand work = dst.isRegister() && !rhs.reads(dst.register) ? dst : R10;
+    move(lhs, work);
+    out.emit(op, rhs, work);
+    move(work, dst);
+  }
+
+  /**
+   * Emits a comparison, which leaves its result in the flags, and returns the condition code that
+   * tests for it.
+   */
+  private AsmLine.Condition flags(Tree t) {
+    Tile tile = t.tile[Tile.Goal.FLAGS.ordinal()];
+    CompareInst.Predicate predicate = ((CompareInst) t.inst).getPredicate();
+    switch (tile) {
+      case TEST: {
+        Operand lhs = operand(t.kid(0), Tile.Goal.REG);
+        if (lhs.isRegister())
+          out.emit(TESTQ, lhs, lhs);
+        else
+          out.emit(CMPQ, Operand.immediate(0), lhs);
+        break;
+      }
+      case CMP_IMM:
+        out.emit(CMPQ, operand(t.kid(1), Tile.Goal.IMM), operand(t.kid(0), Tile.Goal.RM));
+        break;
+      case CMP_IMM_SWAPPED:
+        out.emit(CMPQ, operand(t.kid(0), Tile.Goal.IMM), operand(t.kid(1), Tile.Goal.RM));
+        predicate = Tile.reverse(predicate);
+        break;
+      case CMP_RM: {
+        Operand rhs = operand(t.kid(1), Tile.Goal.RM);
+        Operand lhs = operand(t.kid(0), Tile.Goal.REG);
+        if (!lhs.isRegister() && !rhs.isRegister()) {
+          out.emit(MOVQ, lhs, R10);
+          lhs = R10;
+        }
+        out.emit(CMPQ, rhs, lhs);
+        break;
+      }
+      case CMP_MEM: {
+        Operand lhs = operand(t.kid(0), Tile.Goal.MEM);
+        out.emit(CMPQ, Operand.of(register(t.kid(1), Register.R10)), lhs);
+        break;
+      }
+      default:
+        throw new IllegalStateException("No comparison tile " + tile);
+    }
+    return condition(predicate);
+  }
+
+  private static AsmLine.Condition condition(CompareInst.Predicate predicate) {
+    switch (predicate) {
+      case GE:
+        return AsmLine.Condition.GE;
+      case GT:
+        return AsmLine.Condition.G;
+      case LE:
+        return AsmLine.Condition.LE;
+      case LT:
+        return AsmLine.Condition.L;
+      case EQ:
+        return AsmLine.Condition.E;
+      default:
+        return AsmLine.Condition.NE;
+    }
+  }
+
+  private void call(Tree t) {
+    var i = (CallInst) t.inst;
+    String calleeName = i.getCallee().getName();
+    var params = new ArrayList<Operand>();
+    for (Tree arg : t.kids) {
+      params.add(operand(arg, Tile.Goal.ARG));
+    }
+    int counter = params.size() + 1;
+
+    // The arguments past the sixth go on the stack, the last one first
+    if (counter > 7){
+      if (counter%2 == 0){ //if there are odd number of arguments
+        out.emit(SUBQ, Operand.immediate(8), Operand.of(Register.RSP));
+      }
+      for (int a = params.size() - 1; a >= 6; a--){
+        out.emit(PUSHQ, params.get(a));
+      }
+    }
+    var targets = new ArrayList<Operand>();
+    for (int a = 0; a < params.size() && a < 6; a++) {
+      targets.add(Operand.of(Register.ARGUMENTS[a]));
+    }
+    moves(params.subList(0, targets.size()), targets);
+
+    out.add(AsmLine.call(calleeName, params.size()));
+    if (i.getDst()!=null){
+      move(RAX, loc(i.getDst()));
+    }
+
+    if (counter > 7){
+      if (counter%2 == 1){ //if there are even number of arguments
+        out.emit(ADDQ, Operand.immediate(8*(counter -7)), Operand.of(Register.RSP));
+      }else{
+        out.emit(ADDQ, Operand.immediate(8*(counter -6)), Operand.of(Register.RSP));
+      }
+    }
+  }
+}
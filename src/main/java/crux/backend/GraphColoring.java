@@ -0,0 +1,377 @@
+package crux.backend;
+
+import crux.ir.Variable;
+import crux.ir.insts.CallInst;
+
+import java.util.*;
+
+/**
+ * Register allocation by iterated register coalescing (George and Appel), the allocator of -O2.
+ * It builds the interference graph of a function from its {@link Liveness}, then repeatedly
+ * simplifies nodes of low degree, coalesces the two variables of a copy where the Briggs or George
+ * test says that cannot make the graph uncolorable, freezes moves it gives up on and, when
+ * nothing else is left, picks a potential spill: the node whose uses and definitions, weighted by
+ * ten to the power of their {@link Loops loop depth}, cost least per edge. The nodes then get
+ * colors in reverse order, and the ones without a color are spilled.
+ * <p>
+ * Spilled variables are accessed in their stack slots through the scratch registers of
+ * {@link CodeGen}, so unlike the textbook algorithm this one never has to rewrite the function and
+ * start over. The registers themselves are nodes of the graph as well, which is how values that
+ * are live across a call are kept out of the caller-saved ones.
+ */
+final class GraphColoring {
+  /** The registers in the order colors are tried, caller-saved first. */
+  private static final Register[] COLORS = new Register[Register.CALLER_SAVED.length
+      + Register.CALLEE_SAVED.length];
+
+  static {
+    System.arraycopy(Register.CALLER_SAVED, 0, COLORS, 0, Register.CALLER_SAVED.length);
+    System.arraycopy(Register.CALLEE_SAVED, 0, COLORS, Register.CALLER_SAVED.length,
+        Register.CALLEE_SAVED.length);
+  }
+
+  private static final int K = COLORS.length;
+
+  private final Liveness liveness;
+  /** The number of variables; node v < n is a variable, node n + c the register of color c. */
+  private final int n;
+
+  private final BitSet[] adjacent;
+  private final List<List<Integer>> adjacentList = new ArrayList<>();
+  private final int[] degree;
+  private final double[] cost;
+
+  /** The copies between two variables, as {source, destination}. */
+  private final List<int[]> moves = new ArrayList<>();
+  private final List<Set<Integer>> moveList = new ArrayList<>();
+
+  private final Set<Integer> simplifyWorklist = new LinkedHashSet<>();
+  private final Set<Integer> freezeWorklist = new LinkedHashSet<>();
+  private final Set<Integer> spillWorklist = new LinkedHashSet<>();
+  private final BitSet coalescedNodes = new BitSet();
+  private final Deque<Integer> selectStack = new ArrayDeque<>();
+  private final BitSet onStack = new BitSet();
+
+  private final Set<Integer> worklistMoves = new LinkedHashSet<>();
+  private final Set<Integer> activeMoves = new LinkedHashSet<>();
+
+  private final int[] alias;
+  private final int[] color;
+
+  GraphColoring(Liveness liveness) {
+    this.liveness = liveness;
+    n = liveness.variables.size();
+    adjacent = new BitSet[n + K];
+    degree = new int[n + K];
+    cost = new double[n];
+    alias = new int[n];
+    color = new int[n + K];
+    for (int v = 0; v < n + K; v++) {
+      adjacent[v] = new BitSet();
+      adjacentList.add(new ArrayList<>());
+      moveList.add(new LinkedHashSet<>());
+      // The registers never leave the graph, so their degree does not matter
+      degree[v] = v < n ? 0 : Integer.MAX_VALUE / 2;
+      color[v] = v < n ? -1 : v - n;
+    }
+  }
+
+  Allocation allocate() {
+    build();
+    for (int v = 0; v < n; v++) {
+      if (degree[v] >= K)
+        spillWorklist.add(v);
+      else if (isMoveRelated(v))
+        freezeWorklist.add(v);
+      else
+        simplifyWorklist.add(v);
+    }
+    while (true) {
+      if (!simplifyWorklist.isEmpty())
+        simplify();
+      else if (!worklistMoves.isEmpty())
+        coalesce();
+      else if (!freezeWorklist.isEmpty())
+        freeze();
+      else if (!spillWorklist.isEmpty())
+        selectSpill();
+      else
+        break;
+    }
+    return assignColors();
+  }
+
+  private void build() {
+    var loops = new Loops(liveness);
+    int entry = liveness.definedOnEntry();
+    if (!liveness.order.isEmpty()) {
+      // The arguments and hoisted addresses are all defined at the entry
+      var live = (BitSet) liveness.liveIn(0).clone();
+      live.set(0, entry);
+      for (int a = 0; a < entry; a++) {
+        for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+          addEdge(a, v);
+        }
+      }
+    }
+    for (int k = 0; k < liveness.order.size(); k++) {
+      double weight = Math.pow(10, Math.min(loops.depth(k), 8));
+      var live = (BitSet) liveness.liveOut(k).clone();
+      int def = liveness.def(k);
+      var inst = liveness.order.get(k);
+      if (liveness.isMove(k)) {
+        int src = liveness.uses(k)[0];
+        live.clear(src);
+        if (src != def) {
+          int move = moves.size();
+          moves.add(new int[] {src, def});
+          moveList.get(src).add(move);
+          moveList.get(def).add(move);
+          worklistMoves.add(move);
+        }
+      }
+      if (def >= 0) {
+        cost[def] += weight;
+        for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+          addEdge(def, v);
+        }
+      }
+      for (int u : liveness.uses(k)) {
+        cost[u] += weight;
+      }
+      if (inst instanceof CallInst) {
+        BitSet across = liveness.liveOut(k);
+        for (int v = across.nextSetBit(0); v >= 0; v = across.nextSetBit(v + 1)) {
+          if (v == def)
+            continue;
+          for (int c = 0; c < Register.CALLER_SAVED.length; c++) {
+            addEdge(v, n + c);
+          }
+        }
+      }
+    }
+  }
+
+  private void addEdge(int u, int v) {
+    if (u == v || adjacent[u].get(v))
+      return;
+    adjacent[u].set(v);
+    adjacent[v].set(u);
+    if (u < n) {
+      adjacentList.get(u).add(v);
+      degree[u]++;
+    }
+    if (v < n) {
+      adjacentList.get(v).add(u);
+      degree[v]++;
+    }
+  }
+
+  private List<Integer> adjacent(int v) {
+    var result = new ArrayList<Integer>();
+    for (int w : adjacentList.get(v)) {
+      if (!onStack.get(w) && !(w < n && coalescedNodes.get(w)))
+        result.add(w);
+    }
+    return result;
+  }
+
+  private List<Integer> nodeMoves(int v) {
+    var result = new ArrayList<Integer>();
+    for (int m : moveList.get(v)) {
+      if (activeMoves.contains(m) || worklistMoves.contains(m))
+        result.add(m);
+    }
+    return result;
+  }
+
+  private boolean isMoveRelated(int v) {
+    return !nodeMoves(v).isEmpty();
+  }
+
+  private void simplify() {
+    Iterator<Integer> it = simplifyWorklist.iterator();
+    int v = it.next();
+    it.remove();
+    selectStack.push(v);
+    onStack.set(v);
+    for (int w : adjacent(v)) {
+      decrementDegree(w);
+    }
+  }
+
+  private void decrementDegree(int v) {
+    if (v >= n)
+      return;
+    int d = degree[v]--;
+    if (d == K) {
+      enableMoves(v);
+      for (int w : adjacent(v)) {
+        enableMoves(w);
+      }
+      spillWorklist.remove(v);
+      if (isMoveRelated(v))
+        freezeWorklist.add(v);
+      else
+        simplifyWorklist.add(v);
+    }
+  }
+
+  private void enableMoves(int v) {
+    for (int m : nodeMoves(v)) {
+      if (activeMoves.remove(m))
+        worklistMoves.add(m);
+    }
+  }
+
+  private void coalesce() {
+    Iterator<Integer> it = worklistMoves.iterator();
+    int m = it.next();
+    it.remove();
+    int x = alias(moves.get(m)[0]);
+    int y = alias(moves.get(m)[1]);
+    int u = y >= n ? y : x;
+    int v = y >= n ? x : y;
+    if (u == v) {
+      addWorklist(u);
+    } else if (v >= n || adjacent[u].get(v)) {
+      addWorklist(u);
+      addWorklist(v);
+    } else if (u >= n ? allOk(adjacent(v), u) : conservative(u, v)) {
+      combine(u, v);
+      addWorklist(u);
+    } else {
+      activeMoves.add(m);
+    }
+  }
+
+  private void addWorklist(int v) {
+    if (v < n && !isMoveRelated(v) && degree[v] < K) {
+      freezeWorklist.remove(v);
+      simplifyWorklist.add(v);
+    }
+  }
+
+  /**
+   * The George test: every neighbor of v either already interferes with r or is harmless.
+   */
+  private boolean allOk(List<Integer> neighbors, int r) {
+    for (int t : neighbors) {
+      if (!(degree[t] < K || t >= n || adjacent[t].get(r)))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * The Briggs test: the combined node has fewer than K neighbors of significant degree.
+   */
+  private boolean conservative(int u, int v) {
+    var neighbors = new HashSet<Integer>(adjacent(u));
+    neighbors.addAll(adjacent(v));
+    int k = 0;
+    for (int t : neighbors) {
+      if (degree[t] >= K)
+        k++;
+    }
+    return k < K;
+  }
+
+  private int alias(int v) {
+    while (v < n && coalescedNodes.get(v)) {
+      v = alias[v];
+    }
+    return v;
+  }
+
+  private void combine(int u, int v) {
+    if (!freezeWorklist.remove(v))
+      spillWorklist.remove(v);
+    coalescedNodes.set(v);
+    alias[v] = u;
+    if (u < n)
+      moveList.get(u).addAll(moveList.get(v));
+    enableMoves(v);
+    for (int t : adjacent(v)) {
+      addEdge(t, u);
+      decrementDegree(t);
+    }
+    if (u < n && degree[u] >= K && freezeWorklist.remove(u))
+      spillWorklist.add(u);
+  }
+
+  private void freeze() {
+    Iterator<Integer> it = freezeWorklist.iterator();
+    int u = it.next();
+    it.remove();
+    simplifyWorklist.add(u);
+    freezeMoves(u);
+  }
+
+  private void freezeMoves(int u) {
+    for (int m : nodeMoves(u)) {
+      int x = moves.get(m)[0];
+      int y = moves.get(m)[1];
+      int v = alias(y) == alias(u) ? alias(x) : alias(y);
+      activeMoves.remove(m);
+      worklistMoves.remove(m);
+      if (v < n && nodeMoves(v).isEmpty() && degree[v] < K) {
+        freezeWorklist.remove(v);
+        simplifyWorklist.add(v);
+      }
+    }
+  }
+
+  private void selectSpill() {
+    int best = -1;
+    for (int v : spillWorklist) {
+      if (best < 0 || cost[v] / degree[v] < cost[best] / degree[best])
+        best = v;
+    }
+    spillWorklist.remove(best);
+    simplifyWorklist.add(best);
+    freezeMoves(best);
+  }
+
+  private Allocation assignColors() {
+    var allocation = new Allocation();
+    var spilled = new BitSet();
+    while (!selectStack.isEmpty()) {
+      int v = selectStack.pop();
+      var taken = new BitSet(K);
+      for (int w : adjacentList.get(v)) {
+        int a = alias(w);
+        if (color[a] >= 0)
+          taken.set(color[a]);
+      }
+      int c = taken.nextClearBit(0);
+      if (c < K)
+        color[v] = c;
+      else
+        spilled.set(v);
+    }
+    for (int v = 0; v < n; v++) {
+      Variable var = liveness.variables.get(v);
+      int a = alias(v);
+      if (a >= n) {
+        allocation.assign(var, COLORS[a - n]);
+      } else if (coalescedNodes.get(v) && spilled.get(a)) {
+        // Coalesced variables share the slot of the one they were merged into
+        continue;
+      } else if (spilled.get(a) && liveness.isHoisted(v)) {
+        allocation.rematerialize(var);
+      } else if (spilled.get(a)) {
+        allocation.spill(var);
+      } else {
+        allocation.assign(var, COLORS[color[a]]);
+      }
+    }
+    for (int v = coalescedNodes.nextSetBit(0); v >= 0; v = coalescedNodes.nextSetBit(v + 1)) {
+      int a = alias(v);
+      if (a < n && spilled.get(a))
+        allocation.share(liveness.variables.get(v), liveness.variables.get(a));
+    }
+    allocation.finish();
+    return allocation;
+  }
+}
@@ -0,0 +1,370 @@
+package crux.backend;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * Chooses the x86-64 instructions of a function by tiling expression trees, bottom-up rewriting in
+ * the manner of BURS. Every instruction becomes a {@link Tree} node whose kids are the nodes of the
+ * instructions that computed its operands, as long as such an instruction can be moved down to
+ * its use:
+ * <ul>
+ * <li>its result is a temporary written once and read once, further on in the same block;</li>
+ * <li>no instruction in between writes a variable it reads;</li>
+ * <li>no store or call comes in between if it loads or divides.</li>
+ * </ul>
+ * The labeler then finds for every node the cheapest {@link Tile} in each goal, so that constants
+ * can become immediates, loads memory operands, additions {@code lea} and so on. Starting from the
+ * instructions no tree was folded into, the chosen tiles decide which kids are folded into their
+ * parent and which stay instructions of their own, whose variable the parent reads.
+ * <p>
+ * The address of a global that the code inside a loop needs in a register is hoisted into a
+ * variable of its own, which is set on entry to the function and read by every instruction that
+ * needs the address. Without position independent code, a global on its own is addressed relative
+ * to %rip and needs no register, so only the bases of indexed accesses are hoisted then.
+ * <p>
+ * The selection works on the instruction graph of a {@link Liveness} and changes which variables
+ * are read where, so the liveness the registers are allocated with has to be computed with it.
+ */
+final class InstructionSelection {
+  private final HashMap<Instruction, Tree> trees = new HashMap<>();
+  /** The instructions that are part of a tree further on, and emit nothing where they are. */
+  private final HashSet<Instruction> folded = new HashSet<>();
+  /** The variables the code of each instruction that is not folded reads. */
+  private final HashMap<Instruction, List<Variable>> uses = new HashMap<>();
+  /** The variables that hold the hoisted addresses of globals, in the order they were found. */
+  private final LinkedHashMap<Symbol, Variable> bases = new LinkedHashMap<>();
+  private final boolean pic;
+
+  private final Liveness liveness;
+  private final int[] numDefs;
+  private final int[] numUses;
+  private final int[] definedAt;
+  private final int[] numPredecessors;
+
+  /**
+   * Selects the instructions of the function of a liveness. Without folding, every tree is a
+   * single instruction with variables as leaves, which is what -O0 emits.
+   */
+  InstructionSelection(Liveness liveness, BranchFusion fusion, boolean fold) {
+    this(liveness, fusion, fold, true);
+  }
+
+  /**
+   * Selects the instructions for position independent code, in which every global is addressed
+   * through the GOT, or for code that addresses them relative to %rip. Addresses are only hoisted
+   * when folding.
+   */
+  InstructionSelection(Liveness liveness, BranchFusion fusion, boolean fold, boolean pic) {
+    this.liveness = liveness;
+    this.pic = pic;
+    int n = liveness.order.size();
+    int vars = liveness.variables.size();
+    numDefs = new int[vars];
+    numUses = new int[vars];
+    definedAt = new int[vars];
+    numPredecessors = new int[n];
+    for (int k = 0; k < n; k++) {
+      if (liveness.def(k) >= 0) {
+        numDefs[liveness.def(k)]++;
+        definedAt[liveness.def(k)] = k;
+      }
+      for (int u : liveness.uses(k)) {
+        numUses[u]++;
+      }
+      for (int s : liveness.successors(k)) {
+        numPredecessors[s]++;
+      }
+    }
+
+    for (int k = 0; k < n; k++) {
+      Instruction inst = liveness.order.get(k);
+      // A fused constant only decides where the jump goes
+      if (fusion != null && fusion.isFused(inst) && inst instanceof CopyInst)
+        continue;
+      boolean fused = fusion != null && fusion.isFused(inst);
+      Tree t = build(inst, k, fused, fold);
+      label(t);
+      trees.put(inst, t);
+    }
+
+    var globals = new HashMap<Instruction, Set<AddressAt>>();
+    for (int k = n - 1; k >= 0; k--) {
+      Instruction inst = liveness.order.get(k);
+      Tree t = trees.get(inst);
+      if (t == null || folded.contains(inst))
+        continue;
+      if (t.tile[Tile.Goal.STMT.ordinal()] == null)
+        throw new IllegalStateException("No tile covers " + inst.format(Value::toString));
+      var read = new LinkedHashSet<Variable>();
+      var addressed = new LinkedHashSet<AddressAt>();
+      reduce(t, Tile.Goal.STMT, t, read, addressed);
+      uses.put(inst, new ArrayList<>(read));
+      globals.put(inst, addressed);
+    }
+
+    if (!fold)
+      return;
+    var loops = new Loops(liveness);
+    for (int k = 0; k < n; k++) {
+      Set<AddressAt> addressed = globals.get(liveness.order.get(k));
+      if (addressed == null || loops.depth(k) == 0)
+        continue;
+      for (AddressAt address : addressed) {
+        // Not a variable of the function, so it does not come from getTempAddressVar
+        bases.computeIfAbsent(address.getBase(),
+            symbol -> new AddressVar(address.getDst().getType(), symbol.getName()));
+      }
+    }
+    for (Map.Entry<Instruction, Set<AddressAt>> entry : globals.entrySet()) {
+      for (AddressAt address : entry.getValue()) {
+        Variable base = bases.get(address.getBase());
+        if (base != null && !uses.get(entry.getKey()).contains(base))
+          uses.get(entry.getKey()).add(base);
+      }
+    }
+  }
+
+  private Tree build(Instruction inst, int k, boolean fused, boolean fold) {
+    if (inst instanceof CopyInst) {
+      var copy = (CopyInst) inst;
+      Value src = copy.getSrcValue();
+      if (src instanceof IntegerConstant)
+        return Tree.constant(inst, copy.getDstVar(), ((IntegerConstant) src).getValue());
+      if (src instanceof BooleanConstant)
+        return Tree.constant(inst, copy.getDstVar(), ((BooleanConstant) src).getValue() ? 1 : 0);
+      return Tree.node(Tree.Op.COPY, inst, copy.getDstVar(),
+          operand((Variable) src, k, fold));
+    }
+    if (inst instanceof BinaryOperator) {
+      var binary = (BinaryOperator) inst;
+      Tree.Op op;
+      switch (binary.getOperator()) {
+        case Add:
+          op = Tree.Op.ADD;
+          break;
+        case Sub:
+          op = Tree.Op.SUB;
+          break;
+        case Mul:
+          op = Tree.Op.MUL;
+          break;
+        default:
+          op = Tree.Op.DIV;
+      }
+      return Tree.node(op, inst, binary.getDst(), operand(binary.getLeftOperand(), k, fold),
+          operand(binary.getRightOperand(), k, fold));
+    }
+    if (inst instanceof CompareInst) {
+      var compare = (CompareInst) inst;
+      return Tree.node(Tree.Op.CMP, inst, fused ? null : compare.getDst(),
+          operand(compare.getLeftOperand(), k, fold), operand(compare.getRightOperand(), k, fold));
+    }
+    if (inst instanceof UnaryNotInst) {
+      var not = (UnaryNotInst) inst;
+      return Tree.node(Tree.Op.NOT, inst, not.getDst(), operand(not.getInner(), k, fold));
+    }
+    if (inst instanceof LoadInst) {
+      var load = (LoadInst) inst;
+      return Tree.node(Tree.Op.LOAD, inst, load.getDst(), operand(load.getSrcAddress(), k, fold));
+    }
+    if (inst instanceof AddressAt) {
+      var address = (AddressAt) inst;
+      if (address.getOffset() == null)
+        return Tree.node(Tree.Op.ADDRESS, inst, address.getDst());
+      return Tree.node(Tree.Op.ADDRESS, inst, address.getDst(),
+          operand(address.getOffset(), k, fold));
+    }
+    if (inst instanceof StoreInst) {
+      var store = (StoreInst) inst;
+      return Tree.node(Tree.Op.STORE, inst, null, operand(store.getSrcValue(), k, fold),
+          operand(store.getDestAddress(), k, fold));
+    }
+    if (inst instanceof JumpInst) {
+      return Tree.node(Tree.Op.JUMP, inst, null,
+          operand(((JumpInst) inst).getPredicate(), k, fold));
+    }
+    if (inst instanceof CallInst) {
+      var call = (CallInst) inst;
+      List<LocalVar> params = call.getParams();
+      var args = new Tree[params.size()];
+      for (int a = 0; a < args.length; a++) {
+        args[a] = operand(params.get(a), k, fold);
+      }
+      return Tree.node(Tree.Op.CALL, inst, call.getDst(), args);
+    }
+    if (inst instanceof ReturnInst) {
+      var value = ((ReturnInst) inst).getReturnValue();
+      if (value == null)
+        return Tree.node(Tree.Op.RETURN, inst, null);
+      return Tree.node(Tree.Op.RETURN, inst, null, operand(value, k, fold));
+    }
+    return Tree.node(Tree.Op.NOP, inst, null);
+  }
+
+  /**
+   * Returns the node of the instruction that computed an operand of the k-th instruction, if it
+   * can be folded into it, or otherwise a leaf that reads the variable.
+   */
+  private Tree operand(Variable v, int k, boolean fold) {
+    int index = liveness.indexOf(v);
+    if (!fold || index < liveness.function.getArguments().size() || numDefs[index] != 1
+        || numUses[index] != 1)
+      return leaf(v);
+    int d = definedAt[index];
+    if (d >= k)
+      return leaf(v);
+    for (int m = d + 1; m <= k; m++) {
+      int[] next = liveness.successors(m - 1);
+      if (numPredecessors[m] != 1 || next.length != 1 || next[0] != m)
+        return leaf(v);
+    }
+    Tree t = trees.get(liveness.order.get(d));
+    if (t == null || t.dst == null || t.op == Tree.Op.CALL)
+      return leaf(v);
+    for (int m = d + 1; m < k; m++) {
+      Instruction between = liveness.order.get(m);
+      int def = liveness.def(m);
+      if (def >= 0 && t.leaves.contains(liveness.variables.get(def)))
+        return leaf(v);
+      if (t.touchesMemory && (between instanceof StoreInst || between instanceof CallInst))
+        return leaf(v);
+    }
+    return t;
+  }
+
+  private static Tree leaf(Variable v) {
+    Tree t = Tree.leaf(v);
+    label(t);
+    return t;
+  }
+
+  /**
+   * Finds the cheapest tile for each goal of a node whose kids are labeled, then follows the chain
+   * tiles until no goal gets any cheaper.
+   */
+  private static void label(Tree t) {
+    for (Tile tile : Tile.values()) {
+      if (tile.isChain() || !tile.matches(t))
+        continue;
+      long cost = tile.cost;
+      for (int n = 0; n < t.kids.length; n++) {
+        cost += t.kid(n).cost[tile.kid(n).ordinal()];
+      }
+      relax(t, tile, cost);
+    }
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (Tile tile : Tile.values()) {
+        if (tile.isChain() && tile.matches(t))
+          changed |= relax(t, tile, (long) tile.cost + t.cost[tile.kids[0].ordinal()]);
+      }
+    }
+  }
+
+  private static boolean relax(Tree t, Tile tile, long cost) {
+    int goal = tile.goal.ordinal();
+    if (cost >= t.cost[goal])
+      return false;
+    t.cost[goal] = (int) cost;
+    t.tile[goal] = tile;
+    return true;
+  }
+
+  /**
+   * Walks the tiles chosen to produce a node of the tree of root in some goal, marking the
+   * instructions they cover as folded and collecting the variables the code reads and the globals
+   * whose address it needs in a register.
+   */
+  private void reduce(Tree t, Tile.Goal goal, Tree root, Set<Variable> read,
+      Set<AddressAt> addressed) {
+    Tile tile = t.tile[goal.ordinal()];
+    if (tile == Tile.REG_VALUE) {
+      // The kid stays an instruction of its own
+      read.add(t.dst);
+      return;
+    }
+    if (tile.isChain()) {
+      reduce(t, tile.kids[0], root, read, addressed);
+      return;
+    }
+    if (t != root && t.inst != null)
+      folded.add(t.inst);
+    if (needsBase(tile))
+      addressed.add((AddressAt) t.inst);
+    if (tile == Tile.REG_VAR) {
+      read.add(t.var);
+    } else {
+      for (int n = 0; n < t.kids.length; n++) {
+        reduce(t.kid(n), tile.kid(n), root, read, addressed);
+      }
+    }
+  }
+
+  /**
+   * Returns whether the code of a tile needs the address of a global in a register.
+   */
+  private boolean needsBase(Tile tile) {
+    switch (tile) {
+      case ADDR_INDEX:
+      case ADDRESS_INDEX:
+        return true;
+      case ADDR_GLOBAL:
+      case ADDRESS:
+        return pic;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns the variable the address of a global is hoisted into, or null if it is not.
+   */
+  Variable base(Symbol global) {
+    return bases.get(global);
+  }
+
+  /**
+   * Returns the globals whose addresses are hoisted, which are set on entry to the function.
+   */
+  Set<Symbol> hoisted() {
+    return bases.keySet();
+  }
+
+  /**
+   * Returns the tree of an instruction that is emitted where it is, or null if it is folded into
+   * another one or emits nothing.
+   */
+  Tree tree(Instruction inst) {
+    return folded.contains(inst) ? null : trees.get(inst);
+  }
+
+  boolean isFolded(Instruction inst) {
+    return folded.contains(inst);
+  }
+
+  /**
+   * Returns the variables the code of an instruction reads, which for a tree are its leaves.
+   */
+  List<Variable> uses(Instruction inst) {
+    return uses.getOrDefault(inst, List.of());
+  }
+
+  /**
+   * Returns whether an instruction comes down to a copy from one variable to another.
+   */
+  boolean isMove(Instruction inst) {
+    Tree t = tree(inst);
+    if (t == null || t.dst == null)
+      return false;
+    int value = Tile.Goal.VALUE.ordinal();
+    while (t.tile[value] == Tile.VALUE_COPY) {
+      t = t.kid(0);
+    }
+    return t.tile[value] == Tile.VALUE_REG;
+  }
+}
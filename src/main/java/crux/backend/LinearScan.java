@@ -0,0 +1,154 @@
+package crux.backend;
+
+import crux.ir.Variable;
+import crux.ir.insts.CallInst;
+
+import java.util.*;
+
+/**
+ * Linear-scan register allocation (Poletto and Sarkar). Every variable gets one live interval,
+ * from the first to the last position in the emitted order at which it is live. The intervals are
+ * handed registers in order of their start; when none is free, the interval that ends last is
+ * spilled to the stack for its whole lifetime. A hoisted address of a global is given up before
+ * anything else and loaded wherever it is needed, without a slot.
+ * <p>
+ * An interval that is live across a call only gets a callee-saved register, so the caller-saved
+ * registers never have to be saved around calls. Other intervals take the caller-saved registers
+ * first, which keeps the callee-saved ones, and the cost of saving them in the prologue, for the
+ * values that need them.
+ */
+final class LinearScan {
+  private final Liveness liveness;
+
+  private static final class Interval {
+    final int variable;
+    int start = Integer.MAX_VALUE;
+    int end = -1;
+    boolean crossesCall = false;
+    Register register;
+
+    Interval(int variable) {
+      this.variable = variable;
+    }
+
+    void cover(int position) {
+      start = Math.min(start, position);
+      end = Math.max(end, position);
+    }
+  }
+
+  LinearScan(Liveness liveness) {
+    this.liveness = liveness;
+  }
+
+  Allocation allocate() {
+    Interval[] intervals = intervals();
+    var sorted = new ArrayList<Interval>();
+    for (Interval i : intervals) {
+      if (i.end >= 0)
+        sorted.add(i);
+    }
+    sorted.sort(Comparator.comparingInt((Interval i) -> i.start)
+        .thenComparingInt(i -> i.variable));
+
+    var allocation = new Allocation();
+    var free = EnumSet.copyOf(Arrays.asList(Register.CALLER_SAVED));
+    free.addAll(Arrays.asList(Register.CALLEE_SAVED));
+    // The intervals that hold a register, by increasing end
+    var active = new ArrayList<Interval>();
+    for (Interval current : sorted) {
+      while (!active.isEmpty() && active.get(0).end < current.start) {
+        free.add(active.remove(0).register);
+      }
+
+      Register register = null;
+      if (!current.crossesCall)
+        register = first(free, Register.CALLER_SAVED);
+      if (register == null)
+        register = first(free, Register.CALLEE_SAVED);
+      if (register != null) {
+        free.remove(register);
+      } else {
+        // A hoisted address is loaded again where it is needed, so it goes first
+        Interval victim = null;
+        for (Interval a : active) {
+          if ((!current.crossesCall || a.register.isCalleeSaved())
+              && (victim == null || isHoisted(a) || !isHoisted(victim)))
+            victim = a;
+        }
+        if (victim == null || isHoisted(current)
+            || (!isHoisted(victim) && victim.end <= current.end)) {
+          spill(allocation, current);
+          continue;
+        }
+        active.remove(victim);
+        register = victim.register;
+        victim.register = null;
+        spill(allocation, victim);
+      }
+      current.register = register;
+      allocation.assign(variable(current), register);
+      int at = 0;
+      while (at < active.size() && active.get(at).end <= current.end) {
+        at++;
+      }
+      active.add(at, current);
+    }
+    allocation.finish();
+    return allocation;
+  }
+
+  private boolean isHoisted(Interval i) {
+    return liveness.isHoisted(i.variable);
+  }
+
+  private void spill(Allocation allocation, Interval i) {
+    if (isHoisted(i))
+      allocation.rematerialize(variable(i));
+    else
+      allocation.spill(variable(i));
+  }
+
+  private Interval[] intervals() {
+    var intervals = new Interval[liveness.variables.size()];
+    for (int v = 0; v < intervals.length; v++) {
+      intervals[v] = new Interval(v);
+    }
+    for (int v = 0; v < liveness.definedOnEntry(); v++) {
+      intervals[v].cover(0);
+    }
+    for (int k = 0; k < liveness.order.size(); k++) {
+      int position = Liveness.position(k);
+      BitSet live = (BitSet) liveness.liveIn(k).clone();
+      live.or(liveness.liveOut(k));
+      for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+        intervals[v].cover(position);
+      }
+      if (liveness.def(k) >= 0)
+        intervals[liveness.def(k)].cover(position);
+      for (int u : liveness.uses(k)) {
+        intervals[u].cover(position);
+      }
+      if (liveness.order.get(k) instanceof CallInst) {
+        BitSet across = liveness.liveOut(k);
+        for (int v = across.nextSetBit(0); v >= 0; v = across.nextSetBit(v + 1)) {
+          if (v != liveness.def(k))
+            intervals[v].crossesCall = true;
+        }
+      }
+    }
+    return intervals;
+  }
+
+  private Variable variable(Interval i) {
+    return liveness.variables.get(i.variable);
+  }
+
+  private static Register first(EnumSet<Register> free, Register[] candidates) {
+    for (Register r : candidates) {
+      if (free.contains(r))
+        return r;
+    }
+    return null;
+  }
+}
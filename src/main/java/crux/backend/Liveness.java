@@ -0,0 +1,291 @@
+package crux.backend;
+
+import crux.ir.*;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * The live variables of a {@link Function}, computed on its instruction graph. The instructions are
+ * numbered in the order {@link CodeGen} emits them, starting at 1; position 0 stands for the entry
+ * of the function, where the arguments are defined. A variable is live at an instruction if some
+ * path from there reads it before writing it.
+ * <p>
+ * With a {@link BranchFusion}, the graph is the one the code generator emits: fused instructions
+ * lead straight to their targets and no longer write the condition, and instructions that are no
+ * longer reached are left out. With an {@link InstructionSelection} as well, the instructions
+ * folded into a tree read and write nothing, and the rest read the leaves of their tree. The
+ * addresses of globals the selection hoists are defined on entry, like the arguments.
+ */
+final class Liveness {
+  final Function function;
+  /** The instructions in the order they are emitted. */
+  final List<Instruction> order;
+  /**
+   * The variables of the function, those defined on entry first, numbered by their index in this
+   * list.
+   */
+  final List<Variable> variables = new ArrayList<>();
+  /** The number of variables defined on entry: the arguments and any hoisted addresses. */
+  private final int entry;
+  private final HashMap<Variable, Integer> indices = new HashMap<>();
+  /** The variable each instruction writes, or -1. */
+  private final int[] defs;
+  /** The variables each instruction reads. */
+  private final int[][] uses;
+  /** The instructions that copy one variable to another. */
+  private final BitSet moves = new BitSet();
+  /** The indices in {@link #order} of the successors of each instruction. */
+  private final int[][] successors;
+  private final BitSet[] liveIn;
+  private final BitSet[] liveOut;
+
+  Liveness(Function f) {
+    this(f, null);
+  }
+
+  Liveness(Function f, BranchFusion fusion) {
+    this(f, fusion, null);
+  }
+
+  Liveness(Function f, BranchFusion fusion, InstructionSelection selection) {
+    this(f, fusion, selection, layout(f, fusion));
+  }
+
+  /**
+   * Computes the live variables with the instructions emitted in the given order, such as the one
+   * of a {@link BlockLayout}.
+   */
+  Liveness(Function f, BranchFusion fusion, InstructionSelection selection,
+      List<Instruction> order) {
+    function = f;
+    this.order = order;
+    for (LocalVar arg : f.getArguments()) {
+      index(arg);
+    }
+    if (selection != null) {
+      for (var global : selection.hoisted()) {
+        index(selection.base(global));
+      }
+    }
+    entry = variables.size();
+    var positions = new HashMap<Instruction, Integer>();
+    defs = new int[order.size()];
+    uses = new int[order.size()][];
+    for (int k = 0; k < order.size(); k++) {
+      Instruction inst = order.get(k);
+      positions.put(inst, k);
+      var operands = new Operands();
+      inst.accept(operands);
+      if (fusion != null && fusion.isFused(inst))
+        operands.def = null;
+      List<Variable> read = operands.uses;
+      if (selection != null) {
+        if (selection.isFolded(inst))
+          operands.def = null;
+        read = selection.uses(inst);
+        if (selection.isMove(inst))
+          moves.set(k);
+      } else if (inst instanceof CopyInst && read.size() == 1) {
+        moves.set(k);
+      }
+      defs[k] = operands.def == null ? -1 : index(operands.def);
+      uses[k] = read.stream().mapToInt(this::index).toArray();
+    }
+
+    successors = new int[order.size()][];
+    for (int k = 0; k < order.size(); k++) {
+      Instruction[] next = successors(order.get(k), fusion);
+      successors[k] = new int[next.length];
+      for (int n = 0; n < next.length; n++) {
+        successors[k][n] = positions.get(next[n]);
+      }
+    }
+
+    liveIn = new BitSet[order.size()];
+    liveOut = new BitSet[order.size()];
+    for (int k = 0; k < order.size(); k++) {
+      liveIn[k] = new BitSet();
+      liveOut[k] = new BitSet();
+    }
+    // Most edges go forward in the emitted order, so walking backwards converges in a few rounds
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int k = order.size() - 1; k >= 0; k--) {
+        BitSet out = liveOut[k];
+        for (int s : successors[k]) {
+          out.or(liveIn[s]);
+        }
+        var in = (BitSet) out.clone();
+        if (defs[k] >= 0)
+          in.clear(defs[k]);
+        for (int u : uses[k]) {
+          in.set(u);
+        }
+        if (!in.equals(liveIn[k])) {
+          liveIn[k] = in;
+          changed = true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the instructions of a function in the order they are emitted: depth first from the
+   * start, with the fall-through successor of every instruction placed right after it unless it
+   * has been placed already.
+   */
+  static List<Instruction> layout(Function f, BranchFusion fusion) {
+    var order = new ArrayList<Instruction>();
+    Stack<Instruction> tovisit = new Stack<>();
+    HashSet<Instruction> discovered = new HashSet<>();
+    if (f.getStart() != null)
+      tovisit.push(f.getStart());
+    while (!tovisit.isEmpty()) {
+      Instruction inst = tovisit.pop();
+      if (!discovered.add(inst))
+        continue;
+      order.add(inst);
+      Instruction[] next = successors(inst, fusion);
+      for (int childIdx = next.length - 1; childIdx >= 0; childIdx--) {
+        tovisit.push(next[childIdx]);
+      }
+    }
+    return order;
+  }
+
+  private static Instruction[] successors(Instruction inst, BranchFusion fusion) {
+    if (fusion != null)
+      return fusion.successors(inst);
+    var next = new Instruction[inst.numNext()];
+    for (int n = 0; n < next.length; n++) {
+      next[n] = inst.getNext(n);
+    }
+    return next;
+  }
+
+  private int index(Variable v) {
+    Integer index = indices.get(v);
+    if (index == null) {
+      index = variables.size();
+      indices.put(v, index);
+      variables.add(v);
+    }
+    return index;
+  }
+
+  /**
+   * Returns the number of variables defined on entry to the function, which come first.
+   */
+  int definedOnEntry() {
+    return entry;
+  }
+
+  /**
+   * Returns whether a variable holds the hoisted address of a global, which can be loaded again
+   * instead of being spilled.
+   */
+  boolean isHoisted(int v) {
+    return v >= function.getArguments().size() && v < entry;
+  }
+
+  int indexOf(Variable v) {
+    return indices.get(v);
+  }
+
+  /**
+   * Returns the position of the k-th instruction of {@link #order}.
+   */
+  static int position(int k) {
+    return k + 1;
+  }
+
+  int def(int k) {
+    return defs[k];
+  }
+
+  int[] uses(int k) {
+    return uses[k];
+  }
+
+  /**
+   * Returns whether the k-th instruction only copies the variable it reads to the one it writes.
+   */
+  boolean isMove(int k) {
+    return moves.get(k);
+  }
+
+  int[] successors(int k) {
+    return successors[k];
+  }
+
+  BitSet liveIn(int k) {
+    return liveIn[k];
+  }
+
+  BitSet liveOut(int k) {
+    return liveOut[k];
+  }
+
+  /**
+   * Collects the variables an instruction writes and reads.
+   */
+  private static final class Operands extends InstVisitor {
+    Variable def;
+    final List<Variable> uses = new ArrayList<>();
+
+    public void visit(AddressAt i) {
+      def = i.getDst();
+      if (i.getOffset() != null)
+        uses.add(i.getOffset());
+    }
+
+    public void visit(BinaryOperator i) {
+      def = i.getDst();
+      uses.add(i.getLeftOperand());
+      uses.add(i.getRightOperand());
+    }
+
+    public void visit(CompareInst i) {
+      def = i.getDst();
+      uses.add(i.getLeftOperand());
+      uses.add(i.getRightOperand());
+    }
+
+    public void visit(CopyInst i) {
+      def = i.getDstVar();
+      if (i.getSrcValue() instanceof Variable)
+        uses.add((Variable) i.getSrcValue());
+    }
+
+    public void visit(JumpInst i) {
+      uses.add(i.getPredicate());
+    }
+
+    public void visit(LoadInst i) {
+      def = i.getDst();
+      uses.add(i.getSrcAddress());
+    }
+
+    public void visit(StoreInst i) {
+      uses.add(i.getSrcValue());
+      uses.add(i.getDestAddress());
+    }
+
+    public void visit(UnaryNotInst i) {
+      def = i.getDst();
+      uses.add(i.getInner());
+    }
+
+    public void visit(CallInst i) {
+      def = i.getDst();
+      uses.addAll(i.getParams());
+    }
+
+    public void visit(ReturnInst i) {
+      if (i.getReturnValue() != null)
+        uses.add(i.getReturnValue());
+    }
+  }
+}
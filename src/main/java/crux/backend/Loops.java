@@ -0,0 +1,106 @@
+package crux.backend;
+
+import java.util.*;
+
+/**
+ * The natural loops of a function, found on the instruction graph of its {@link Liveness}. An edge
+ * back to an instruction that is still being visited in a depth-first walk from the start closes a
+ * loop, whose body is everything that reaches the end of the edge without passing the header. The
+ * loops of crux programs come from {@code loop} statements, so the graph is always reducible.
+ */
+final class Loops {
+  /** The number of loops each instruction is in, by its index in the emitted order. */
+  private final int[] depth;
+  private final BitSet headers = new BitSet();
+  /** The instructions of the loop of each header. */
+  private final HashMap<Integer, BitSet> bodies = new HashMap<>();
+
+  Loops(Liveness liveness) {
+    int n = liveness.order.size();
+    depth = new int[n];
+    if (n == 0)
+      return;
+    var predecessors = new ArrayList<List<Integer>>();
+    for (int k = 0; k < n; k++) {
+      predecessors.add(new ArrayList<>());
+    }
+    for (int k = 0; k < n; k++) {
+      for (int s : liveness.successors(k)) {
+        predecessors.get(s).add(k);
+      }
+    }
+
+    // Walk depth first, remembering for every back edge its header and where it comes from
+    var onStack = new BitSet();
+    var visited = new BitSet();
+    var stack = new ArrayDeque<int[]>();
+    stack.push(new int[] {0, 0});
+    visited.set(0);
+    onStack.set(0);
+    while (!stack.isEmpty()) {
+      int[] top = stack.peek();
+      int[] successors = liveness.successors(top[0]);
+      if (top[1] == successors.length) {
+        onStack.clear(top[0]);
+        stack.pop();
+        continue;
+      }
+      int s = successors[top[1]++];
+      if (onStack.get(s)) {
+        BitSet body = bodies.computeIfAbsent(s, h -> new BitSet());
+        collect(s, top[0], predecessors, body);
+      } else if (!visited.get(s)) {
+        visited.set(s);
+        onStack.set(s);
+        stack.push(new int[] {s, 0});
+      }
+    }
+
+    for (Map.Entry<Integer, BitSet> loop : bodies.entrySet()) {
+      headers.set(loop.getKey());
+      BitSet body = loop.getValue();
+      for (int k = body.nextSetBit(0); k >= 0; k = body.nextSetBit(k + 1)) {
+        depth[k]++;
+      }
+    }
+  }
+
+  /**
+   * Adds the instructions between a header and the source of a back edge to a loop body.
+   */
+  private static void collect(int header, int tail, List<List<Integer>> predecessors,
+      BitSet body) {
+    body.set(header);
+    var worklist = new ArrayDeque<Integer>();
+    if (!body.get(tail)) {
+      body.set(tail);
+      worklist.push(tail);
+    }
+    while (!worklist.isEmpty()) {
+      for (int p : predecessors.get(worklist.pop())) {
+        if (!body.get(p)) {
+          body.set(p);
+          worklist.push(p);
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns how many loops the k-th instruction of the emitted order is in.
+   */
+  int depth(int k) {
+    return depth[k];
+  }
+
+  boolean isHeader(int k) {
+    return headers.get(k);
+  }
+
+  /**
+   * Returns the instructions of the loop with the given header, or null if it is not a header.
+   */
+  BitSet body(int header) {
+    return bodies.get(header);
+  }
+}
@@ -0,0 +1,166 @@
+package crux.backend;
+
+import java.util.Objects;
+
+/**
+ * An operand of an {@link AsmLine}: a register, an immediate, a memory reference or the name of a
+ * symbol that a jump or call goes to. Operands are immutable and compare by value, so that the
+ * code generator and the passes after it can tell whether two of them are the same location.
+ * <p>
+ * A memory reference is {@code displacement(base, index, scale)} with any of the parts left out,
+ * or a symbol relative to %rip, directly or through its entry in the GOT.
+ */
+final class Operand {
+  enum Kind {
+    REGISTER,
+    /** The low byte of a register, which {@code setcc} writes. */
+    BYTE_REGISTER,
+    IMMEDIATE,
+    MEMORY,
+    SYMBOL
+  }
+
+  private static final Operand[] REGISTERS = new Operand[Register.values().length];
+  private static final Operand[] BYTE_REGISTERS = new Operand[Register.values().length];
+
+  static {
+    for (Register r : Register.values()) {
+      REGISTERS[r.ordinal()] = new Operand(Kind.REGISTER, r, null, 1, 0, null, false);
+      BYTE_REGISTERS[r.ordinal()] = new Operand(Kind.BYTE_REGISTER, r, null, 1, 0, null, false);
+    }
+  }
+
+  final Kind kind;
+  /** The register, or the base of a memory reference, which is null relative to %rip. */
+  final Register register;
+  final Register index;
+  final int scale;
+  /** The value of an immediate or the displacement of a memory reference. */
+  final long value;
+  /** The symbol a jump or call goes to, or that a memory reference is relative to. */
+  final String symbol;
+  /** Whether a memory reference is to the GOT entry of its symbol. */
+  final boolean got;
+
+  private Operand(Kind kind, Register register, Register index, int scale, long value,
+      String symbol, boolean got) {
+    this.kind = kind;
+    this.register = register;
+    this.index = index;
+    this.scale = scale;
+    this.value = value;
+    this.symbol = symbol;
+    this.got = got;
+  }
+
+  static Operand of(Register r) {
+    return REGISTERS[r.ordinal()];
+  }
+
+  static Operand lowByte(Register r) {
+    return BYTE_REGISTERS[r.ordinal()];
+  }
+
+  static Operand immediate(long value) {
+    return new Operand(Kind.IMMEDIATE, null, null, 1, value, null, false);
+  }
+
+  static Operand memory(long displacement, Register base) {
+    return new Operand(Kind.MEMORY, base, null, 1, displacement, null, false);
+  }
+
+  static Operand memory(long displacement, Register base, Register index, int scale) {
+    return new Operand(Kind.MEMORY, base, index, scale, displacement, null, false);
+  }
+
+  /**
+   * Returns the memory reference to a symbol relative to %rip, or to its GOT entry.
+   */
+  static Operand rip(String symbol, boolean got) {
+    return new Operand(Kind.MEMORY, null, null, 1, 0, symbol, got);
+  }
+
+  static Operand symbol(String name) {
+    return new Operand(Kind.SYMBOL, null, null, 1, 0, name, false);
+  }
+
+  boolean isRegister() {
+    return kind == Kind.REGISTER;
+  }
+
+  boolean isImmediate() {
+    return kind == Kind.IMMEDIATE;
+  }
+
+  boolean isMemory() {
+    return kind == Kind.MEMORY;
+  }
+
+  /**
+   * Returns whether the operand reads a register, as itself or to work out an address.
+   */
+  boolean reads(Register r) {
+    return register == r || index == r;
+  }
+
+  /**
+   * Appends the operand in AT&T syntax.
+   */
+  void appendTo(StringBuilder sb) {
+    switch (kind) {
+      case REGISTER:
+        sb.append(register);
+        break;
+      case BYTE_REGISTER:
+        // Only %rax to %rdx are ever asked for, whose low byte is %al to %dl
+        sb.append('%').append(register.toString().charAt(2)).append('l');
+        break;
+      case IMMEDIATE:
+        sb.append('$').append(value);
+        break;
+      case SYMBOL:
+        sb.append(symbol);
+        break;
+      default:
+        if (symbol != null) {
+          sb.append(symbol).append(got ? "@GOTPCREL(%rip)" : "(%rip)");
+          break;
+        }
+        if (index == null || value != 0)
+          sb.append(value);
+        sb.append('(');
+        if (register != null)
+          sb.append(register);
+        if (index != null) {
+          sb.append(", ").append(index);
+          if (scale != 1)
+            sb.append(", ").append(scale);
+        }
+        sb.append(')');
+    }
+  }
+
+  @Override
+  public String toString() {
+    var sb = new StringBuilder();
+    appendTo(sb);
+    return sb.toString();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o)
+      return true;
+    if (!(o instanceof Operand))
+      return false;
+    var other = (Operand) o;
+    return kind == other.kind && register == other.register && index == other.index
+        && scale == other.scale && value == other.value && got == other.got
+        && Objects.equals(symbol, other.symbol);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(kind, register, index, scale, value, symbol, got);
+  }
+}
@@ -0,0 +1,259 @@
+package crux.backend;
+
+import crux.backend.AsmLine.Op;
+
+import java.util.*;
+
+/**
+ * Cleans up the code of a function after {@link CodeGen} has emitted it, by sliding a window over
+ * its lines and rewriting the instructions in it that a table of rules knows a better form of.
+ * The code generator emits each tile on its own, which leaves a value it stored in a slot to be
+ * loaded right back, jumps to the label that follows and the like where tiles meet.
+ * <p>
+ * A rule looks at the lines from some position on, usually two instructions, and either rewrites
+ * them in place or leaves them alone. After a rewrite the window backs up far enough for the
+ * rules to see what the rewrite made adjacent. Some rules need to know that a register or the
+ * flags are not read afterwards, which a scan ahead finds out: the scratch registers, which the
+ * allocator never hands out, and the flags are never live at a label, and the other registers are
+ * taken to be live there.
+ */
+final class Peephole {
+  enum Rule {
+    /** {@code movq %r, m; movq m, x} loads what was just stored: {@code movq %r, x}. */
+    STORE_RELOAD("store-reload", Peephole::storeReload),
+    /** {@code movq a, b; movq b, a} moves a value back where it already is. */
+    MOVE_BACK("move-back", Peephole::moveBack),
+    /** {@code movq a, %r; movq %r, b} where %r is not read again: {@code movq a, b}. */
+    COPY_PROPAGATION("copy-propagation", Peephole::copyPropagation),
+    /** A jump to a label right after it. */
+    JUMP_TO_NEXT("jump-to-next", Peephole::jumpToNext),
+    /** {@code jcc l1; jmp l2; l1:} becomes a branch on the opposite condition to l2. */
+    BRANCH_OVER_JUMP("branch-over-jump", Peephole::branchOverJump),
+    /** {@code movq $0, %r} where the flags are not read: {@code xorq %r, %r}, 4 bytes shorter. */
+    ZERO_IDIOM("zero-idiom", Peephole::zeroIdiom);
+
+    /** The name the rule is configured and reported by. */
+    final String name;
+    private final Rewrite rewrite;
+
+    Rule(String name, Rewrite rewrite) {
+      this.name = name;
+      this.rewrite = rewrite;
+    }
+
+    /**
+     * Returns the rule of the given name.
+     */
+    static Rule named(String name) {
+      for (Rule rule : values()) {
+        if (rule.name.equals(name))
+          return rule;
+      }
+      throw new IllegalArgumentException("No peephole rule " + name);
+    }
+  }
+
+  /** Rewrites the lines at a position, returning whether it did. */
+  private interface Rewrite {
+    boolean apply(List<AsmLine> lines, int at);
+  }
+
+  /** How far the window backs up after a rewrite, the most lines a rule looks at but one. */
+  private static final int BACKUP = 2;
+
+  private final EnumSet<Rule> rules;
+  private final long[] counts = new long[Rule.values().length];
+
+  Peephole(Set<Rule> rules) {
+    this.rules = rules.isEmpty() ? EnumSet.noneOf(Rule.class) : EnumSet.copyOf(rules);
+  }
+
+  /**
+   * Rewrites the lines of a function until no rule applies anywhere.
+   */
+  void run(List<AsmLine> lines) {
+    if (rules.isEmpty())
+      return;
+    int at = 0;
+    while (at < lines.size()) {
+      boolean fired = false;
+      for (Rule rule : rules) {
+        if (rule.rewrite.apply(lines, at)) {
+          counts[rule.ordinal()]++;
+          fired = true;
+          break;
+        }
+      }
+      at = fired ? Math.max(0, at - BACKUP) : at + 1;
+    }
+  }
+
+  /**
+   * Returns how often a rule has fired so far.
+   */
+  long count(Rule rule) {
+    return counts[rule.ordinal()];
+  }
+
+  /**
+   * Adds how often the rules of another pass fired to the counts of this one.
+   */
+  void add(Peephole other) {
+    for (int r = 0; r < counts.length; r++) {
+      counts[r] += other.counts[r];
+    }
+  }
+
+  /**
+   * Returns how often each of the rules fired, for the allocation report.
+   */
+  String summary() {
+    var sb = new StringBuilder("peephole:");
+    String separator = " ";
+    for (Rule rule : rules) {
+      sb.append(separator).append(rule.name).append(' ').append(counts[rule.ordinal()]);
+      separator = ", ";
+    }
+    return sb.toString();
+  }
+
+  private static boolean isMove(List<AsmLine> lines, int at) {
+    return at < lines.size() && lines.get(at).is(Op.MOVQ);
+  }
+
+  private static boolean storeReload(List<AsmLine> lines, int at) {
+    if (!isMove(lines, at) || !isMove(lines, at + 1))
+      return false;
+    Operand src = lines.get(at).operand(0);
+    Operand slot = lines.get(at).operand(1);
+    if (!src.isRegister() || !slot.isMemory() || !slot.equals(lines.get(at + 1).operand(0)))
+      return false;
+    Operand dst = lines.get(at + 1).operand(1);
+    if (dst.equals(src))
+      lines.remove(at + 1);
+    else
+      lines.set(at + 1, AsmLine.instruction(Op.MOVQ, src, dst));
+    return true;
+  }
+
+  private static boolean moveBack(List<AsmLine> lines, int at) {
+    if (!isMove(lines, at) || !isMove(lines, at + 1))
+      return false;
+    Operand a = lines.get(at).operand(0);
+    Operand b = lines.get(at).operand(1);
+    if (!b.equals(lines.get(at + 1).operand(0)) || !a.equals(lines.get(at + 1).operand(1)))
+      return false;
+    // Loading over the base of the address it loads from leaves the address behind
+    if (b.isRegister() && a.reads(b.register))
+      return false;
+    lines.remove(at + 1);
+    return true;
+  }
+
+  private static boolean copyPropagation(List<AsmLine> lines, int at) {
+    if (!isMove(lines, at) || !isMove(lines, at + 1))
+      return false;
+    Operand a = lines.get(at).operand(0);
+    Operand r = lines.get(at).operand(1);
+    Operand b = lines.get(at + 1).operand(1);
+    if (!r.isRegister() || !r.equals(lines.get(at + 1).operand(0)) || b.reads(r.register))
+      return false;
+    if ((a.isMemory() && b.isMemory()) || !isDead(lines, at + 1, r.register))
+      return false;
+    lines.remove(at + 1);
+    if (a.equals(b))
+      lines.remove(at);
+    else
+      lines.set(at, AsmLine.instruction(Op.MOVQ, a, b));
+    return true;
+  }
+
+  private static boolean jumpToNext(List<AsmLine> lines, int at) {
+    AsmLine jump = lines.get(at);
+    if (!jump.is(Op.JMP) && !jump.is(Op.J))
+      return false;
+    if (!labelFollows(lines, at + 1, jump.operand(0).symbol))
+      return false;
+    lines.remove(at);
+    return true;
+  }
+
+  private static boolean branchOverJump(List<AsmLine> lines, int at) {
+    if (at + 1 >= lines.size())
+      return false;
+    AsmLine branch = lines.get(at);
+    AsmLine jump = lines.get(at + 1);
+    if (!branch.is(Op.J) || !jump.is(Op.JMP))
+      return false;
+    if (!labelFollows(lines, at + 2, branch.operand(0).symbol))
+      return false;
+    lines.set(at, AsmLine.conditional(Op.J, branch.condition.negate(), jump.operand(0)));
+    lines.remove(at + 1);
+    return true;
+  }
+
+  private static boolean zeroIdiom(List<AsmLine> lines, int at) {
+    if (!isMove(lines, at))
+      return false;
+    Operand src = lines.get(at).operand(0);
+    Operand dst = lines.get(at).operand(1);
+    if (!src.isImmediate() || src.value != 0 || !dst.isRegister() || !flagsDead(lines, at))
+      return false;
+    lines.set(at, AsmLine.instruction(Op.XORQ, dst, dst));
+    return true;
+  }
+
+  /**
+   * Returns whether the label goes with the position: it is among the labels and directives from
+   * there up to the next instruction.
+   */
+  private static boolean labelFollows(List<AsmLine> lines, int from, String label) {
+    for (int n = from; n < lines.size() && !lines.get(n).isInstruction(); n++) {
+      if (lines.get(n).kind == AsmLine.Kind.LABEL && lines.get(n).name.equals(label))
+        return true;
+    }
+    return false;
+  }
+
+  private static boolean isScratch(Register r) {
+    return r == Register.RAX || r == Register.RDX || r == Register.R10 || r == Register.R11;
+  }
+
+  /**
+   * Returns whether the value a register has after the line at a position is never read.
+   */
+  private static boolean isDead(List<AsmLine> lines, int at, Register r) {
+    for (int n = at + 1; n < lines.size(); n++) {
+      AsmLine line = lines.get(n);
+      if (line.kind == AsmLine.Kind.LABEL)
+        return isScratch(r);
+      if (!line.isInstruction())
+        continue;
+      if (line.reads(r))
+        return false;
+      if (line.writes(r) || line.is(Op.RET))
+        return true;
+      if (line.is(Op.JMP) || line.is(Op.J))
+        return isScratch(r);
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether the flags after the line at a position are never read.
+   */
+  private static boolean flagsDead(List<AsmLine> lines, int at) {
+    for (int n = at + 1; n < lines.size(); n++) {
+      AsmLine line = lines.get(n);
+      if (line.kind == AsmLine.Kind.LABEL)
+        return true;
+      if (!line.isInstruction())
+        continue;
+      if (line.readsFlags())
+        return false;
+      if (line.writesFlags() || line.is(Op.JMP) || line.is(Op.CALL) || line.is(Op.RET))
+        return true;
+    }
+    return true;
+  }
+}
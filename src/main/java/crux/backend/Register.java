@@ -0,0 +1,34 @@
+package crux.backend;
+
+/**
+ * The general purpose registers of x86-64 that the code generator uses.
+ */
+enum Register {
+  RAX, RBX, RCX, RDX, RSI, RDI, R8, R9, R10, R11, R12, R13, R14, R15,
+  /** The stack and frame pointers, which are never allocated. */
+  RSP, RBP;
+
+  private final String text = "%" + name().toLowerCase();
+
+  /** The registers that pass the first six arguments of a call, in order. */
+  static final Register[] ARGUMENTS = {RDI, RSI, RDX, RCX, R8, R9};
+
+  /**
+   * The registers the allocator hands out to values that are not live across a call. RAX and RDX
+   * are left out because division and returns need them, R10 and R11 because the code generator
+   * uses them as scratch registers.
+   */
+  static final Register[] CALLER_SAVED = {RCX, RSI, RDI, R8, R9};
+
+  /** The registers a function has to preserve, which can hold values across calls. */
+  static final Register[] CALLEE_SAVED = {RBX, R12, R13, R14, R15};
+
+  boolean isCalleeSaved() {
+    return this == RBX || (this.compareTo(R12) >= 0 && this.compareTo(R15) <= 0);
+  }
+
+  @Override
+  public String toString() {
+    return text;
+  }
+}
@@ -0,0 +1,208 @@
+package crux.backend;
+
+import crux.ir.insts.CompareInst;
+
+import java.util.function.Predicate;
+
+/**
+ * The patterns {@link InstructionSelection} covers expression trees with. A tile matches a node of
+ * some {@link Tree.Op} whose kids can be had in the given goals, and produces the node in its own
+ * goal for the given cost, which is about the number of instructions it emits. A chain tile has no
+ * op and turns a node from one goal into another. {@link CodeGen} emits the code of each tile.
+ * <p>
+ * Where an operator commutes, the tiles that want the operands the other way round are there as
+ * well, with a {@code _SWAPPED} name.
+ */
+enum Tile {
+  // Operands
+  REG_VAR(Goal.REG, Tree.Op.VAR, 0),
+  REG_COPY(Goal.REG, Tree.Op.COPY, 0, Goal.REG),
+  /** The node is computed by an instruction of its own, whose variable is read. */
+  REG_VALUE(Goal.REG, null, 0, t -> t.dst != null, Goal.VALUE),
+  IMM_CONST(Goal.IMM, Tree.Op.CONST, 0, t -> isInt(t.value)),
+  IMM_COPY(Goal.IMM, Tree.Op.COPY, 0, Goal.IMM),
+  MEM_LOAD(Goal.MEM, Tree.Op.LOAD, 0, Goal.ADDR),
+  MEM_COPY(Goal.MEM, Tree.Op.COPY, 0, Goal.MEM),
+  /** The address of a global, loaded from the GOT into a scratch register. */
+  ADDR_GLOBAL(Goal.ADDR, Tree.Op.ADDRESS, 1),
+  /** An element of a global array, with the index scaled by the addressing mode. */
+  ADDR_INDEX(Goal.ADDR, Tree.Op.ADDRESS, 1, Goal.REG),
+  ADDR_REG(Goal.ADDR, null, 0, Goal.REG),
+  RM_REG(Goal.RM, null, 0, Goal.REG),
+  RM_MEM(Goal.RM, null, 0, Goal.MEM),
+  ARG_REG(Goal.ARG, null, 0, Goal.REG),
+  ARG_IMM(Goal.ARG, null, 0, Goal.IMM),
+  /** A register as the index of a {@code lea}, with a scale of 1. */
+  INDEX_REG(Goal.INDEX, null, 0, Goal.REG),
+  INDEX_MUL(Goal.INDEX, Tree.Op.MUL, 0, t -> isScale(t.kid(1)), Goal.REG, Goal.IMM),
+  INDEX_MUL_SWAPPED(Goal.INDEX, Tree.Op.MUL, 0, t -> isScale(t.kid(0)), Goal.IMM, Goal.REG),
+
+  // Values, computed into a destination the parent chooses
+  VALUE_REG(Goal.VALUE, null, 1, Goal.REG),
+  VALUE_IMM(Goal.VALUE, null, 1, Goal.IMM),
+  VALUE_MEM(Goal.VALUE, null, 1, Goal.MEM),
+  /** A comparison, materialized with {@code setcc} and {@code movzbq}. */
+  VALUE_FLAGS(Goal.VALUE, null, 2, t -> t.op == Tree.Op.CMP, Goal.FLAGS),
+  VALUE_CONST(Goal.VALUE, Tree.Op.CONST, 1, t -> !isInt(t.value)),
+  VALUE_COPY(Goal.VALUE, Tree.Op.COPY, 0, Goal.VALUE),
+  /** {@code lea}, {@code add} or {@code inc}, depending on where the operand and result are. */
+  ADD_IMM(Goal.VALUE, Tree.Op.ADD, 1, Goal.REG, Goal.IMM),
+  ADD_IMM_SWAPPED(Goal.VALUE, Tree.Op.ADD, 1, Goal.IMM, Goal.REG),
+  /** {@code lea} with a base and a scaled index. */
+  ADD_INDEX(Goal.VALUE, Tree.Op.ADD, 1, Goal.REG, Goal.INDEX),
+  ADD_INDEX_SWAPPED(Goal.VALUE, Tree.Op.ADD, 1, Goal.INDEX, Goal.REG),
+  ADD_RM(Goal.VALUE, Tree.Op.ADD, 2, Goal.REG, Goal.RM),
+  ADD_RM_SWAPPED(Goal.VALUE, Tree.Op.ADD, 2, Goal.RM, Goal.REG),
+  SUB_IMM(Goal.VALUE, Tree.Op.SUB, 1, t -> isInt(-constant(t.kid(1))), Goal.REG, Goal.IMM),
+  SUB_RM(Goal.VALUE, Tree.Op.SUB, 2, Goal.REG, Goal.RM),
+  /** A multiplication by a power of two, as a shift. */
+  MUL_SHIFT(Goal.VALUE, Tree.Op.MUL, 1, t -> isPowerOfTwo(constant(t.kid(1))), Goal.REG,
+      Goal.IMM),
+  MUL_SHIFT_SWAPPED(Goal.VALUE, Tree.Op.MUL, 1, t -> isPowerOfTwo(constant(t.kid(0))), Goal.IMM,
+      Goal.REG),
+  /** The three-operand {@code imul}. */
+  MUL_IMM(Goal.VALUE, Tree.Op.MUL, 1, Goal.RM, Goal.IMM),
+  MUL_IMM_SWAPPED(Goal.VALUE, Tree.Op.MUL, 1, Goal.IMM, Goal.RM),
+  MUL_RM(Goal.VALUE, Tree.Op.MUL, 2, Goal.REG, Goal.RM),
+  MUL_RM_SWAPPED(Goal.VALUE, Tree.Op.MUL, 2, Goal.RM, Goal.REG),
+  /**
+   * A division by a constant, with shifts for a power of two and otherwise a multiplication by a
+   * {@link Division} magic number. It takes more instructions than {@code idiv}, but far less
+   * time.
+   */
+  DIV_IMM(Goal.VALUE, Tree.Op.DIV, 3, t -> constant(t.kid(1)) != 0, Goal.REG, Goal.IMM),
+  DIV_RM(Goal.VALUE, Tree.Op.DIV, 4, Goal.REG, Goal.RM),
+  NOT_REG(Goal.VALUE, Tree.Op.NOT, 2, Goal.REG),
+  ADDRESS(Goal.VALUE, Tree.Op.ADDRESS, 1),
+  ADDRESS_INDEX(Goal.VALUE, Tree.Op.ADDRESS, 2, Goal.REG),
+
+  // Comparisons, which only set the flags
+  /** {@code test} of a register against itself, for a comparison with zero. */
+  TEST(Goal.FLAGS, Tree.Op.CMP, 1, t -> constant(t.kid(1)) == 0, Goal.REG, Goal.IMM),
+  CMP_IMM(Goal.FLAGS, Tree.Op.CMP, 1, Goal.RM, Goal.IMM),
+  /** A constant on the left, compared the other way round with the predicate reversed. */
+  CMP_IMM_SWAPPED(Goal.FLAGS, Tree.Op.CMP, 1, Goal.IMM, Goal.RM),
+  CMP_RM(Goal.FLAGS, Tree.Op.CMP, 1, Goal.REG, Goal.RM),
+  CMP_MEM(Goal.FLAGS, Tree.Op.CMP, 1, Goal.MEM, Goal.REG),
+
+  // Statements
+  /** An instruction that writes its result to its own variable. */
+  STMT_VALUE(Goal.STMT, null, 0, t -> t.dst != null, Goal.VALUE),
+  /** A comparison fused with the jump after it. */
+  STMT_FLAGS(Goal.STMT, null, 0, t -> t.op == Tree.Op.CMP && t.dst == null, Goal.FLAGS),
+  STORE(Goal.STMT, Tree.Op.STORE, 1, Goal.ARG, Goal.ADDR),
+  JUMP(Goal.STMT, Tree.Op.JUMP, 1, Goal.RM),
+  /** A call, with each argument in a register or as an immediate. */
+  CALL(Goal.STMT, Tree.Op.CALL, 1, Goal.ARG),
+  RETURN(Goal.STMT, Tree.Op.RETURN, 1, Goal.ARG),
+  RETURN_VOID(Goal.STMT, Tree.Op.RETURN, 0),
+  NOP(Goal.STMT, Tree.Op.NOP, 0);
+
+  /**
+   * The forms a node can be produced in.
+   */
+  enum Goal {
+    /** An instruction of its own. */
+    STMT,
+    /** Computed into a destination. */
+    VALUE,
+    /** Compared, with the result in the flags. */
+    FLAGS,
+    /** In the location of a variable, which is a register unless it is spilled. */
+    REG,
+    /** A register or a memory operand. */
+    RM,
+    /** A memory operand. */
+    MEM,
+    /** The address of a memory operand. */
+    ADDR,
+    /** A 32-bit immediate. */
+    IMM,
+    /** A register or an immediate, as an argument of a call or a stored value. */
+    ARG,
+    /** The scaled index of a {@code lea}. */
+    INDEX
+  }
+
+  final Goal goal;
+  /** The operator the tile matches, or null for a chain tile. */
+  final Tree.Op op;
+  final int cost;
+  private final Predicate<Tree> guard;
+  /** The goals of the kids, or for a chain tile the goal it starts from. */
+  final Goal[] kids;
+
+  Tile(Goal goal, Tree.Op op, int cost, Goal... kids) {
+    this(goal, op, cost, t -> true, kids);
+  }
+
+  Tile(Goal goal, Tree.Op op, int cost, Predicate<Tree> guard, Goal... kids) {
+    this.goal = goal;
+    this.op = op;
+    this.cost = cost;
+    this.guard = guard;
+    this.kids = kids;
+  }
+
+  boolean isChain() {
+    return op == null;
+  }
+
+  /**
+   * Returns whether the tile matches a node, leaving aside the goals of its kids. A call matches
+   * with any number of arguments.
+   */
+  boolean matches(Tree t) {
+    if (op != null && (t.op != op || (op != Tree.Op.CALL && t.kids.length != kids.length)))
+      return false;
+    return guard.test(t);
+  }
+
+  /**
+   * Returns the goal the n-th kid of a node has to be produced in.
+   */
+  Goal kid(int n) {
+    return kids[Math.min(n, kids.length - 1)];
+  }
+
+  static boolean isInt(long value) {
+    return value == (int) value;
+  }
+
+  /**
+   * Returns the value of a constant node, seen through copies, or a value no tile accepts.
+   */
+  static long constant(Tree t) {
+    while (t.op == Tree.Op.COPY) {
+      t = t.kid(0);
+    }
+    return t.op == Tree.Op.CONST ? t.value : Long.MIN_VALUE;
+  }
+
+  private static boolean isPowerOfTwo(long value) {
+    return value > 0 && (value & (value - 1)) == 0;
+  }
+
+  private static boolean isScale(Tree t) {
+    long scale = constant(t);
+    return scale == 1 || scale == 2 || scale == 4 || scale == 8;
+  }
+
+  /**
+   * Returns the predicate that holds with the operands of a comparison the other way round.
+   */
+  static CompareInst.Predicate reverse(CompareInst.Predicate predicate) {
+    switch (predicate) {
+      case GE:
+        return CompareInst.Predicate.LE;
+      case GT:
+        return CompareInst.Predicate.LT;
+      case LE:
+        return CompareInst.Predicate.GE;
+      case LT:
+        return CompareInst.Predicate.GT;
+      default:
+        return predicate;
+    }
+  }
+}
@@ -0,0 +1,92 @@
+package crux.backend;
+
+import crux.ir.Instruction;
+import crux.ir.Variable;
+
+import java.util.*;
+
+/**
+ * A node of the expression trees {@link InstructionSelection} builds out of the instructions of a
+ * block. Every instruction has a node, whose kids are either the nodes of the instructions that
+ * computed its operands, where those can be folded into it, or leaves that read a variable.
+ * <p>
+ * The labeler fills in, for each {@link Tile.Goal}, the cheapest tile that produces the value of
+ * the node in that form and what it costs, kids included.
+ */
+final class Tree {
+  enum Op {
+    /** A leaf, which reads a variable. */
+    VAR,
+    CONST,
+    COPY,
+    ADD,
+    SUB,
+    MUL,
+    DIV,
+    CMP,
+    NOT,
+    LOAD,
+    ADDRESS,
+    STORE,
+    JUMP,
+    CALL,
+    RETURN,
+    NOP
+  }
+
+  final Op op;
+  /** The instruction of the node, or null for a leaf. */
+  final Instruction inst;
+  /** The variable a leaf reads. */
+  final Variable var;
+  /**
+   * The variable the instruction writes, or null if it writes none or is a comparison fused with a
+   * jump.
+   */
+  final Variable dst;
+  /** The value of a constant. */
+  final long value;
+  final Tree[] kids;
+
+  /** The variables the tree reads, if every kid that can be is folded into it. */
+  final Set<Variable> leaves = new HashSet<>();
+  /** Whether the tree loads from memory or divides, which it may not be moved across. */
+  final boolean touchesMemory;
+
+  final int[] cost = new int[Tile.Goal.values().length];
+  final Tile[] tile = new Tile[Tile.Goal.values().length];
+
+  private Tree(Op op, Instruction inst, Variable var, Variable dst, long value, Tree... kids) {
+    this.op = op;
+    this.inst = inst;
+    this.var = var;
+    this.dst = dst;
+    this.value = value;
+    this.kids = kids;
+    boolean memory = op == Op.LOAD || op == Op.DIV;
+    if (var != null)
+      leaves.add(var);
+    for (Tree kid : kids) {
+      leaves.addAll(kid.leaves);
+      memory |= kid.touchesMemory;
+    }
+    touchesMemory = memory;
+    Arrays.fill(cost, Integer.MAX_VALUE);
+  }
+
+  static Tree leaf(Variable v) {
+    return new Tree(Op.VAR, null, v, null, 0);
+  }
+
+  static Tree constant(Instruction inst, Variable dst, long value) {
+    return new Tree(Op.CONST, inst, null, dst, value);
+  }
+
+  static Tree node(Op op, Instruction inst, Variable dst, Tree... kids) {
+    return new Tree(op, inst, null, dst, 0, kids);
+  }
+
+  Tree kid(int n) {
+    return kids[n];
+  }
+}
@@ -0,0 +1,98 @@
+package crux.ir;
+
+import java.io.*;
+import java.util.List;
+import crux.ir.insts.CallInst;
+
+/**
+ * Writes the events of an {@link EmulatorTrace} to a stream in a compact binary form, which
+ * {@link TraceDecoder} reads back. The stream starts with {@link #MAGIC}, followed by one record
+ * per event:
+ *
+ * <pre>
+ * function index   unsigned varint
+ * pc               unsigned varint
+ * values           signed (zigzag) varints, as many as EmulatorTrace.values() says
+ * </pre>
+ *
+ * Varints take 7 bits per byte, lowest first, with the high bit set on all but the last byte. Most
+ * records fit in a few bytes, a fraction of their text. Writing a record does not allocate.
+ */
+final class BinaryTrace implements EmulatorTrace {
+  static final byte[] MAGIC = {'C', 'R', 'X', 'T', 1};
+
+  private final OutputStream out;
+  private final byte[] buffer = new byte[1 << 16];
+  private int size;
+
+  BinaryTrace(OutputStream out) {
+    this.out = out;
+    System.arraycopy(MAGIC, 0, buffer, 0, MAGIC.length);
+    size = MAGIC.length;
+  }
+
+  @Override
+  public void event(Bytecode b, int pc) {
+    start(b, pc);
+  }
+
+  @Override
+  public void event(Bytecode b, int pc, long x) {
+    start(b, pc);
+    putSigned(x);
+  }
+
+  @Override
+  public void event(Bytecode b, int pc, long x, long y) {
+    start(b, pc);
+    putSigned(x);
+    putSigned(y);
+  }
+
+  @Override
+  public void call(Bytecode b, int pc, long[] frame) {
+    start(b, pc);
+    List<LocalVar> params = ((CallInst) b.source[pc]).getParams();
+    for (int j = 0; j < params.size(); j++) {
+      putSigned(frame[b.argumentSlot(pc, j)]);
+    }
+  }
+
+  @Override
+  public void flush() {
+    drain();
+    try {
+      out.flush();
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot write the emulator trace", e);
+    }
+  }
+
+  private void start(Bytecode b, int pc) {
+    put(b.index);
+    put(pc);
+  }
+
+  private void putSigned(long val) {
+    put((val << 1) ^ (val >> 63));
+  }
+
+  private void put(long val) {
+    if (size + 10 > buffer.length)
+      drain();
+    while ((val & ~0x7FL) != 0) {
+      buffer[size++] = (byte) (val | 0x80);
+      val >>>= 7;
+    }
+    buffer[size++] = (byte) val;
+  }
+
+  private void drain() {
+    try {
+      out.write(buffer, 0, size);
+      size = 0;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot write the emulator trace", e);
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package crux.ir;
+
+/**
+ * The limits of one emulator run: how many instructions it may execute and until when. Rather than
+ * counting every instruction, the engines charge the budget where a program can keep running, on
+ * every call (with the instructions of the callee) and on every jump back to an earlier instruction
+ * (with the span of the loop, see {@link Bytecode}). The charges are an upper bound of what
+ * actually runs, as a branch in a loop or a function may skip some of its instructions.
+ * <p>
+ * The clock is read and the thread checked for an interrupt only on every
+ * {@link #CLOCK_INTERVAL}th charge. Once the run is over its limits, the charge throws
+ * {@link Exhausted}, which unwinds the run.
+ */
+final class Budget {
+  static final int CLOCK_INTERVAL = 1024;
+
+  private long remaining;
+  private final long deadline;
+  private final boolean hasDeadline;
+  private int ticks = CLOCK_INTERVAL;
+
+  /**
+   * Starts a budget of at most the given number of instructions and nanoseconds from now. A
+   * negative limit means there is none.
+   */
+  Budget(long instructions, long nanos) {
+    remaining = instructions >= 0 ? instructions : Long.MAX_VALUE;
+    hasDeadline = nanos >= 0;
+    deadline = System.nanoTime() + (hasDeadline ? nanos : 0);
+  }
+
+  void charge(int instructions) {
+    remaining -= instructions;
+    if (remaining < 0 || --ticks == 0)
+      check();
+  }
+
+  private void check() {
+    ticks = CLOCK_INTERVAL;
+    if (remaining < 0)
+      throw new Exhausted(Emulator.Outcome.INSTRUCTION_LIMIT);
+    if (hasDeadline && System.nanoTime() - deadline > 0)
+      throw new Exhausted(Emulator.Outcome.TIME_LIMIT);
+    if (Thread.currentThread().isInterrupted())
+      throw new Exhausted(Emulator.Outcome.INTERRUPTED);
+  }
+
+  /**
+   * Thrown to stop a run that is over its budget.
+   */
+  static final class Exhausted extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final Emulator.Outcome outcome;
+
+    Exhausted(Emulator.Outcome outcome) {
+      super(outcome.toString(), null, false, false);
+      this.outcome = outcome;
+    }
+  }
+}
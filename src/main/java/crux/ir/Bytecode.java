@@ -0,0 +1,523 @@
+package crux.ir;
+
+import crux.ast.SymbolTable.Symbol;
+import crux.ast.types.IntType;
+import crux.ir.insts.*;
+
+import java.util.*;
+
+/**
+ * The pre-decoded form of a {@link Function} that the {@link Emulator} executes. The CFG is laid
+ * out as one flat int array in which every instruction is an opcode followed by its operands.
+ * Variables are frame slots (see {@link Function#assignSlots()}), constants are indices into
+ * {@link #constants} and control flow uses code indices.
+ * <p>
+ * The successor of an instruction (the false successor for a jump) is placed right behind it
+ * whenever it has not been placed yet; otherwise a GOTO is inserted. Calls are bound when the
+ * function is decoded: calls of the builtin functions get an opcode of their own, and the callee of
+ * a CALL is the index of the called function in the table the emulator passes in.
+ *
+ * <pre>
+ * {@code
+ * NOP
+ * ADD dst lhs rhs           (likewise SUB, MUL, DIV)
+ * GE dst lhs rhs            (likewise GT, LE, LT, EQ, NE)
+ * CONST dst constant
+ * COPY dst src
+ * NOT dst src
+ * JUMP pred target span     (to target if pred is true, else fall through)
+ * GOTO target span
+ * ADDR dst constant         (dst = global base address)
+ * ADDR_IDX dst constant idx (dst = global base address + 8 * idx)
+ * LOAD dst addr             (LOAD_BOOL for boolean memory)
+ * STORE src addr
+ * CALL dst callee n arg1 ... argn     (dst is -1 if the result is not used)
+ * READ_INT dst              (likewise READ_CHAR, dst is -1 if the result is not used)
+ * PRINT_INT src             (likewise PRINT_BOOL, PRINT_CHAR)
+ * PRINTLN
+ * RETURN src
+ * RETURN_VOID
+ * }
+ * </pre>
+ *
+ * The span of a jump back to an earlier instruction is the number of instructions from its target
+ * up to the jump, at least 1, and 0 for a jump forward. It is what one iteration of the loop the
+ * jump closes is charged to a {@link Budget}.
+ * <p>
+ * The interpreter runs {@link #fused} instead, unless it traces or profiles. That is the same code
+ * without the NOPs, with the jumps retargeted accordingly, and with superinstructions for the
+ * sequences ASTLower produces most. A superinstruction only replaces the opcode of the first
+ * instruction of its sequence; the others follow as they are, so a jump to one of them still finds
+ * a complete instruction:
+ *
+ * <pre>
+ * {@code
+ * CONST_ARITH cdst constant | ADD dst lhs rhs           (or SUB, MUL, DIV)
+ * GE_JUMP dst lhs rhs | JUMP pred target span           (likewise GT_JUMP ... NE_JUMP)
+ * CONST_COMPARE_JUMP cdst constant | GE dst lhs rhs | JUMP pred target span
+ * ADDR_LOAD dst constant | LOAD dst addr                (likewise ADDR_IDX_LOAD)
+ * ADDR_STORE dst constant | STORE src addr              (likewise ADDR_IDX_STORE)
+ * }
+ * </pre>
+ *
+ * Spans are those of the plain code, so a run is charged the same either way.
+ */
+final class Bytecode {
+  static final int NOP = 0;
+  static final int ADD = 1;
+  static final int SUB = 2;
+  static final int MUL = 3;
+  static final int DIV = 4;
+  static final int GE = 5;
+  static final int GT = 6;
+  static final int LE = 7;
+  static final int LT = 8;
+  static final int EQ = 9;
+  static final int NE = 10;
+  static final int CONST = 11;
+  static final int COPY = 12;
+  static final int NOT = 13;
+  static final int JUMP = 14;
+  static final int GOTO = 15;
+  static final int ADDR = 16;
+  static final int ADDR_IDX = 17;
+  static final int LOAD = 18;
+  static final int LOAD_BOOL = 19;
+  static final int STORE = 20;
+  static final int CALL = 21;
+  static final int RETURN = 22;
+  static final int RETURN_VOID = 23;
+  static final int READ_INT = 24;
+  static final int READ_CHAR = 25;
+  static final int PRINT_BOOL = 26;
+  static final int PRINT_INT = 27;
+  static final int PRINT_CHAR = 28;
+  static final int PRINTLN = 29;
+  // Superinstructions, only in the fused code
+  static final int CONST_ARITH = 30;
+  static final int CONST_COMPARE_JUMP = 31;
+  static final int GE_JUMP = 32;
+  static final int GT_JUMP = 33;
+  static final int LE_JUMP = 34;
+  static final int LT_JUMP = 35;
+  static final int EQ_JUMP = 36;
+  static final int NE_JUMP = 37;
+  static final int ADDR_LOAD = 38;
+  static final int ADDR_IDX_LOAD = 39;
+  static final int ADDR_STORE = 40;
+  static final int ADDR_IDX_STORE = 41;
+
+  final Function function;
+  /** The index of the function in the table calls are bound to. */
+  final int index;
+  final int frameSize;
+  /** The number of instructions of the function, not counting GOTOs. */
+  final int instructions;
+  final int[] code;
+  final long[] constants;
+  /** The IR instruction each opcode was decoded from, for tracing. Null for GOTO. */
+  final Instruction[] source;
+  /** The code the interpreter runs unless it traces or profiles. */
+  final int[] fused;
+  /** The position in code of every instruction of fused. */
+  final int[] plainPcs;
+  /** The position in fused of every instruction of code; a NOP maps to what follows it. */
+  final int[] fusedPcs;
+
+  Bytecode(Function f, Map<Symbol, Long> globalOffsets, Map<String, Integer> functionIndices) {
+    function = f;
+    index = functionIndices.get(f.getName());
+    Map<Variable, Integer> slots = f.assignSlots();
+    frameSize = slots.size();
+    var decoder = new Decoder(globalOffsets, functionIndices, slots);
+    decoder.layout(f.getStart());
+    code = Arrays.copyOf(decoder.code, decoder.size);
+    instructions = spans(code);
+    source = Arrays.copyOf(decoder.source, decoder.size);
+    constants = decoder.constants.stream().mapToLong(Long::longValue).toArray();
+
+    // Drop the NOPs; each of them maps to the instruction after it
+    fusedPcs = new int[code.length];
+    int size = 0;
+    for (int pc = 0; pc < code.length; pc += length(code, pc)) {
+      fusedPcs[pc] = size;
+      if (code[pc] != NOP)
+        size += length(code, pc);
+    }
+    fused = new int[size];
+    plainPcs = new int[size];
+    for (int pc = 0; pc < code.length; pc += length(code, pc)) {
+      if (code[pc] == NOP)
+        continue;
+      int at = fusedPcs[pc];
+      System.arraycopy(code, pc, fused, at, length(code, pc));
+      plainPcs[at] = pc;
+      if (code[pc] == JUMP)
+        fused[at + 2] = fusedPcs[code[pc + 2]];
+      else if (code[pc] == GOTO)
+        fused[at + 1] = fusedPcs[code[pc + 1]];
+    }
+    fuse(fused);
+  }
+
+  /**
+   * Turns the first instruction of every sequence that has a superinstruction into one. The
+   * sequences do not overlap.
+   */
+  private static void fuse(int[] code) {
+    int pc = 0;
+    while (pc < code.length) {
+      int op = code[pc];
+      int next = pc + length(code, pc);
+      int second = next < code.length ? code[next] : NOP;
+      switch (op) {
+        case CONST:
+          if (second >= ADD && second <= DIV) {
+            code[pc] = CONST_ARITH;
+            next += 4;
+          } else if (second >= GE && second <= NE && next + 4 < code.length
+              && code[next + 4] == JUMP) {
+            code[pc] = CONST_COMPARE_JUMP;
+            next += 8;
+          }
+          break;
+        case GE:
+        case GT:
+        case LE:
+        case LT:
+        case EQ:
+        case NE:
+          if (second == JUMP) {
+            code[pc] = op - GE + GE_JUMP;
+            next += 4;
+          }
+          break;
+        case ADDR:
+        case ADDR_IDX:
+          if (second == LOAD) {
+            code[pc] = op == ADDR ? ADDR_LOAD : ADDR_IDX_LOAD;
+            next += 3;
+          } else if (second == STORE) {
+            code[pc] = op == ADDR ? ADDR_STORE : ADDR_IDX_STORE;
+            next += 3;
+          }
+          break;
+      }
+      pc = next;
+    }
+  }
+
+  /**
+   * Fills in the spans of the jumps and returns the number of instructions.
+   */
+  private static int spans(int[] code) {
+    // The number of instructions before each position
+    int[] before = new int[code.length + 1];
+    int n = 0;
+    for (int pc = 0; pc < code.length; pc += length(code, pc)) {
+      before[pc] = n;
+      if (code[pc] != GOTO)
+        n++;
+    }
+    for (int pc = 0; pc < code.length; pc += length(code, pc)) {
+      int target;
+      if (code[pc] == GOTO)
+        target = code[pc + 1];
+      else if (code[pc] == JUMP)
+        target = code[pc + 2];
+      else
+        continue;
+      if (target <= pc)
+        code[pc + length(code, pc) - 1] = Math.max(1, before[pc] - before[target] + 1);
+    }
+    return n;
+  }
+
+  /**
+   * Returns the frame slot of argument j of the call at pc in code, either a CALL or a call of a
+   * builtin that takes an argument.
+   */
+  int argumentSlot(int pc, int j) {
+    return code[pc] == CALL ? code[pc + 4 + j] : code[pc + 1];
+  }
+
+  /**
+   * Returns the number of ints the instruction at pc takes up, its opcode included.
+   */
+  static int length(int[] code, int pc) {
+    switch (code[pc]) {
+      case NOP:
+      case PRINTLN:
+      case RETURN_VOID:
+        return 1;
+      case RETURN:
+      case READ_INT:
+      case READ_CHAR:
+      case PRINT_BOOL:
+      case PRINT_INT:
+      case PRINT_CHAR:
+        return 2;
+      case CONST:
+      case COPY:
+      case NOT:
+      case GOTO:
+      case ADDR:
+      case LOAD:
+      case LOAD_BOOL:
+      case STORE:
+        return 3;
+      case CALL:
+        return 4 + code[pc + 3];
+      default:
+        return 4;
+    }
+  }
+
+  /**
+   * Translates the instructions of one function. Each visit method appends the encoding of a single
+   * instruction; {@link #layout} decides the order and inserts the GOTOs.
+   */
+  private static final class Decoder extends InstVisitor {
+    private final Map<Symbol, Long> globalOffsets;
+    private final Map<String, Integer> functionIndices;
+    private final Map<Variable, Integer> slots;
+    private final HashMap<Instruction, Integer> placed = new HashMap<>();
+    private final ArrayList<Instruction> fixupTargets = new ArrayList<>();
+    private final ArrayList<Integer> fixupPositions = new ArrayList<>();
+    private final Stack<Instruction> pending = new Stack<>();
+    final ArrayList<Long> constants = new ArrayList<>();
+    int[] code = new int[64];
+    Instruction[] source = new Instruction[64];
+    int size = 0;
+
+    Decoder(Map<Symbol, Long> globalOffsets, Map<String, Integer> functionIndices,
+        Map<Variable, Integer> slots) {
+      this.globalOffsets = globalOffsets;
+      this.functionIndices = functionIndices;
+      this.slots = slots;
+    }
+
+    void layout(Instruction start) {
+      if (start != null)
+        pending.push(start);
+      else
+        emit(null, RETURN_VOID);
+
+      while (!pending.isEmpty()) {
+        Instruction inst = pending.pop();
+        while (!placed.containsKey(inst)) {
+          placed.put(inst, size);
+          inst.accept(this);
+          if (inst instanceof ReturnInst)
+            break;
+          Instruction next = inst.getNext(0);
+          if (next == null) {
+            // Falling off the end of a void function
+            emit(null, RETURN_VOID);
+            break;
+          }
+          if (placed.containsKey(next)) {
+            emit(null, GOTO);
+            target(next);
+            break;
+          }
+          inst = next;
+        }
+      }
+
+      for (int j = 0; j < fixupPositions.size(); j++) {
+        code[fixupPositions.get(j)] = placed.get(fixupTargets.get(j));
+      }
+    }
+
+    private void emit(Instruction inst, int opcode) {
+      if (size == code.length) {
+        code = Arrays.copyOf(code, size * 2);
+        source = Arrays.copyOf(source, size * 2);
+      }
+      source[size] = inst;
+      code[size++] = opcode;
+    }
+
+    private void operand(int value) {
+      if (size == code.length) {
+        code = Arrays.copyOf(code, size * 2);
+        source = Arrays.copyOf(source, size * 2);
+      }
+      code[size++] = value;
+    }
+
+    /**
+     * Appends the target and the span of a jump, both filled in once the function is laid out.
+     */
+    private void target(Instruction inst) {
+      fixupTargets.add(inst);
+      fixupPositions.add(size);
+      operand(-1);
+      operand(0);
+      if (!placed.containsKey(inst))
+        pending.push(inst);
+    }
+
+    private int slot(Variable v) {
+      return slots.get(v);
+    }
+
+    private int constant(long value) {
+      constants.add(value);
+      return constants.size() - 1;
+    }
+
+    public void visit(AddressAt i) {
+      int base = constant(globalOffsets.get(i.getBase()));
+      if (i.getOffset() == null) {
+        emit(i, ADDR);
+        operand(slot(i.getDst()));
+        operand(base);
+      } else {
+        emit(i, ADDR_IDX);
+        operand(slot(i.getDst()));
+        operand(base);
+        operand(slot(i.getOffset()));
+      }
+    }
+
+    public void visit(BinaryOperator i) {
+      switch (i.getOperator()) {
+        case Add:
+          emit(i, ADD);
+          break;
+        case Sub:
+          emit(i, SUB);
+          break;
+        case Mul:
+          emit(i, MUL);
+          break;
+        case Div:
+          emit(i, DIV);
+          break;
+      }
+      operand(slot(i.getDst()));
+      operand(slot(i.getLeftOperand()));
+      operand(slot(i.getRightOperand()));
+    }
+
+    public void visit(CompareInst i) {
+      switch (i.getPredicate()) {
+        case GE:
+          emit(i, GE);
+          break;
+        case GT:
+          emit(i, GT);
+          break;
+        case LE:
+          emit(i, LE);
+          break;
+        case LT:
+          emit(i, LT);
+          break;
+        case EQ:
+          emit(i, EQ);
+          break;
+        case NE:
+          emit(i, NE);
+          break;
+      }
+      operand(slot(i.getDst()));
+      operand(slot(i.getLeftOperand()));
+      operand(slot(i.getRightOperand()));
+    }
+
+    public void visit(CopyInst i) {
+      Value src = i.getSrcValue();
+      if (src instanceof IntegerConstant) {
+        emit(i, CONST);
+        operand(slot(i.getDstVar()));
+        operand(constant(((IntegerConstant) src).getValue()));
+      } else if (src instanceof BooleanConstant) {
+        emit(i, CONST);
+        operand(slot(i.getDstVar()));
+        operand(constant(((BooleanConstant) src).getValue() ? 1 : 0));
+      } else {
+        emit(i, COPY);
+        operand(slot(i.getDstVar()));
+        operand(slot((Variable) src));
+      }
+    }
+
+    public void visit(JumpInst i) {
+      emit(i, JUMP);
+      operand(slot(i.getPredicate()));
+      target(i.getNext(1));
+    }
+
+    public void visit(LoadInst i) {
+      emit(i, i.getSrcAddress().getType() instanceof IntType ? LOAD : LOAD_BOOL);
+      operand(slot(i.getDst()));
+      operand(slot(i.getSrcAddress()));
+    }
+
+    public void visit(NopInst i) {
+      emit(i, NOP);
+    }
+
+    public void visit(StoreInst i) {
+      emit(i, STORE);
+      operand(slot(i.getSrcValue()));
+      operand(slot(i.getDestAddress()));
+    }
+
+    public void visit(UnaryNotInst i) {
+      emit(i, NOT);
+      operand(slot(i.getDst()));
+      operand(slot(i.getInner()));
+    }
+
+    public void visit(CallInst i) {
+      String name = i.getCallee().getName();
+      int dst = i.getDst() != null ? slot(i.getDst()) : -1;
+      List<LocalVar> params = i.getParams();
+      switch (name) {
+        case "readInt":
+          emit(i, READ_INT);
+          operand(dst);
+          return;
+        case "readChar":
+          emit(i, READ_CHAR);
+          operand(dst);
+          return;
+        case "printBool":
+          emit(i, PRINT_BOOL);
+          operand(slot(params.get(0)));
+          return;
+        case "printInt":
+          emit(i, PRINT_INT);
+          operand(slot(params.get(0)));
+          return;
+        case "printChar":
+          emit(i, PRINT_CHAR);
+          operand(slot(params.get(0)));
+          return;
+        case "println":
+          emit(i, PRINTLN);
+          return;
+      }
+
+      Integer callee = functionIndices.get(name);
+      if (callee == null)
+        throw new Error("Call to undefined function " + name);
+      emit(i, CALL);
+      operand(dst);
+      operand(callee);
+      operand(params.size());
+      for (LocalVar param : params) {
+        operand(slot(param));
+      }
+    }
+
+    public void visit(ReturnInst i) {
+      emit(i, RETURN);
+      operand(slot(i.getReturnValue()));
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package crux.ir;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * The saved state of an emulator run that stopped at one of its limits, see
+ * {@link Emulator#checkpoint()}. A checkpoint can be restored into any number of emulators of the
+ * same {@link DecodedProgram}, each of which then continues the run on its own.
+ * <p>
+ * The state is kept in its serialized form, which is also what {@link #write(OutputStream)}
+ * writes:
+ *
+ * <pre>
+ * magic, fingerprint        "CRXC" 1, the fingerprint of the program
+ * global memory             see GlobalMemory.save()
+ * depth                     the number of calls on the stack
+ * per call, from main on    function index, pc in the plain code, result slot, frame slots
+ * input                     the number of characters read, whether a '\n' is pending
+ * </pre>
+ *
+ * Only the memory that has been written and the slots of the frames in use are saved, so saving
+ * and restoring take time in proportion to the state the run actually has.
+ */
+public final class Checkpoint {
+  private static final int MAGIC = 0x43525843;
+  private static final int VERSION = 1;
+
+  private final byte[] data;
+
+  private Checkpoint(byte[] data) {
+    this.data = data;
+  }
+
+  static Checkpoint save(Emulator emulator) {
+    var bytes = new ByteArrayOutputStream();
+    try (var out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      out.writeByte(VERSION);
+      out.writeInt(emulator.program.fingerprint);
+      emulator.memory.save(out);
+      out.writeInt(emulator.depth + 1);
+      for (int d = 0; d <= emulator.depth; d++) {
+        Emulator.CallContext c = emulator.calls[d];
+        out.writeInt(c.b.index);
+        out.writeInt(c.pc);
+        // The running call has not made a call whose result is pending
+        out.writeInt(d < emulator.depth ? c.retSlot : -1);
+        for (int j = 0; j < c.b.frameSize; j++) {
+          out.writeLong(c.frame[j]);
+        }
+      }
+      out.writeLong(emulator.io.inputPosition());
+      out.writeBoolean(emulator.io.pendingLF());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return new Checkpoint(bytes.toByteArray());
+  }
+
+  void restore(Emulator emulator) throws IOException {
+    var in = new DataInputStream(new ByteArrayInputStream(data));
+    if (in.readInt() != MAGIC || in.readByte() != VERSION)
+      throw new IOException("Not an emulator checkpoint");
+    DecodedProgram program = emulator.program;
+    if (in.readInt() != program.fingerprint)
+      throw new IOException("The checkpoint is of a different program");
+    var memory = new GlobalMemory(program.globalsSize);
+    memory.restore(in);
+
+    int calls = in.readInt();
+    if (calls < 1)
+      throw new IOException("Bad call stack in checkpoint");
+    var contexts = new Emulator.CallContext[Math.max(64, calls)];
+    for (int d = 0; d < calls; d++) {
+      int function = in.readInt();
+      if (function < 0 || function >= program.functions.length)
+        throw new IOException("Bad function index " + function + " in checkpoint");
+      var c = contexts[d] = new Emulator.CallContext(program.maxFrameSize);
+      c.b = program.functions[function];
+      c.pc = in.readInt();
+      c.retSlot = in.readInt();
+      if (c.pc < 0 || c.pc >= c.b.code.length || c.retSlot >= c.b.frameSize)
+        throw new IOException("Bad call of " + c.b.function.getName() + " in checkpoint");
+      for (int j = 0; j < c.b.frameSize; j++) {
+        c.frame[j] = in.readLong();
+      }
+    }
+    long position = in.readLong();
+    boolean pendingLF = in.readBoolean();
+
+    emulator.memory = memory;
+    emulator.calls = contexts;
+    emulator.depth = calls - 1;
+    emulator.io.skipInput(position, pendingLF);
+  }
+
+  /**
+   * Returns the size of the checkpoint in bytes.
+   */
+  public int size() {
+    return data.length;
+  }
+
+  public void write(OutputStream out) throws IOException {
+    out.write(data);
+  }
+
+  public static Checkpoint read(InputStream in) throws IOException {
+    return new Checkpoint(in.readAllBytes());
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof Checkpoint && Arrays.equals(data, ((Checkpoint) o).data);
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(data);
+  }
+}
@@ -0,0 +1,331 @@
+package crux.ir;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Runs a program as a graph of pre-bound closures rather than by dispatching on opcodes. Every
+ * basic block of the decoded {@link Bytecode} becomes a {@link Block}: its straight-line
+ * instructions are lambdas with their frame slots and constants captured, and its successors are
+ * direct references to other blocks. Blocks end at jumps, returns and calls of Crux functions, so
+ * that calls go through an explicit stack, like in the {@link Emulator}, and recursion is not
+ * limited by the JVM stack.
+ * <p>
+ * Builtin calls, global memory and the messages behave exactly as in the emulator. Tracing and
+ * profiling are only supported by the emulator itself.
+ */
+final class ClosureEngine {
+  private static final int GOTO = 0;
+  private static final int BRANCH = 1;
+  private static final int CALL = 2;
+  private static final int RETURN = 3;
+  private static final int RETURN_VOID = 4;
+
+  private final GlobalMemory memory;
+  private final EmulatorIO io;
+  private final Budget budget;
+  private final Block[] entries;
+  private final int[] frameSizes;
+  private final int[] instructions;
+  private final int maxFrameSize;
+
+  private long[][] frames = new long[64][];
+  private Block[] returnBlocks = new Block[64];
+  private int[] returnSlots = new int[64];
+
+  /**
+   * A straight-line instruction.
+   */
+  private interface Op {
+    void exec(long[] frame);
+  }
+
+  private static final class Block {
+    Op[] body;
+    int exit;
+    /** The predicate of a BRANCH, the result of a CALL (-1 if unused) or the value of a RETURN. */
+    int slot;
+    /** The successor, the false successor of a BRANCH or where a CALL continues. */
+    Block next;
+    Block taken;
+    /** The span of a jump back, charged when it is taken. */
+    int span;
+    int callee;
+    int[] args;
+  }
+
+  ClosureEngine(Bytecode[] functions, GlobalMemory memory, EmulatorIO io, Budget budget) {
+    this.memory = memory;
+    this.io = io;
+    this.budget = budget;
+    entries = new Block[functions.length];
+    frameSizes = new int[functions.length];
+    instructions = new int[functions.length];
+    int max = 0;
+    for (Bytecode b : functions) {
+      entries[b.index] = build(b);
+      frameSizes[b.index] = b.frameSize;
+      instructions[b.index] = b.instructions;
+      max = Math.max(max, b.frameSize);
+    }
+    maxFrameSize = max;
+  }
+
+  /**
+   * Runs the function with the given index, main, until it returns.
+   */
+  void run(int main) {
+    int depth = 0;
+    Block block = entries[main];
+    long[] frame = frame(0);
+
+    while (true) {
+      for (Op op : block.body) {
+        op.exec(frame);
+      }
+      switch (block.exit) {
+        case GOTO:
+          if (block.span != 0)
+            budget.charge(block.span);
+          block = block.next;
+          break;
+        case BRANCH:
+          if (frame[block.slot] == 0) {
+            block = block.next;
+            break;
+          }
+          if (block.span != 0)
+            budget.charge(block.span);
+          block = block.taken;
+          break;
+        case CALL: {
+          budget.charge(instructions[block.callee]);
+          if (depth + 1 == frames.length) {
+            frames = Arrays.copyOf(frames, frames.length * 2);
+            returnBlocks = Arrays.copyOf(returnBlocks, frames.length);
+            returnSlots = Arrays.copyOf(returnSlots, frames.length);
+          }
+          returnBlocks[depth] = block.next;
+          returnSlots[depth] = block.slot;
+          long[] calleeFrame = frame(++depth);
+          int[] args = block.args;
+          for (int j = 0; j < args.length; j++) {
+            calleeFrame[j] = frame[args[j]];
+          }
+          Arrays.fill(calleeFrame, args.length, frameSizes[block.callee], 0);
+          frame = calleeFrame;
+          block = entries[block.callee];
+          break;
+        }
+        default: {
+          long val = block.exit == RETURN ? frame[block.slot] : 0;
+          if (depth == 0)
+            return;
+          frame = frames[--depth];
+          if (returnSlots[depth] >= 0)
+            frame[returnSlots[depth]] = val;
+          block = returnBlocks[depth];
+          break;
+        }
+      }
+    }
+  }
+
+  private long[] frame(int depth) {
+    if (frames[depth] == null)
+      frames[depth] = new long[maxFrameSize];
+    return frames[depth];
+  }
+
+  /**
+   * Splits the code of a function into blocks and returns the entry block.
+   */
+  private Block build(Bytecode b) {
+    int[] code = b.code;
+    // Blocks start at 0, at jump targets and after every instruction that ends a block
+    boolean[] starts = new boolean[code.length + 1];
+    starts[0] = true;
+    for (int pc = 0; pc < code.length; pc += Bytecode.length(code, pc)) {
+      int next = pc + Bytecode.length(code, pc);
+      switch (code[pc]) {
+        case Bytecode.JUMP:
+          starts[code[pc + 2]] = true;
+          starts[next] = true;
+          break;
+        case Bytecode.GOTO:
+          starts[code[pc + 1]] = true;
+          starts[next] = true;
+          break;
+        case Bytecode.CALL:
+        case Bytecode.RETURN:
+        case Bytecode.RETURN_VOID:
+          starts[next] = true;
+          break;
+      }
+    }
+    Block[] blocks = new Block[code.length];
+    for (int pc = 0; pc < code.length; pc++) {
+      if (starts[pc])
+        blocks[pc] = new Block();
+    }
+
+    Block block = blocks[0];
+    var body = new ArrayList<Op>();
+    for (int pc = 0; pc < code.length; pc += Bytecode.length(code, pc)) {
+      if (blocks[pc] != null && blocks[pc] != block) {
+        if (block.body == null) {
+          // Falls through into the next block
+          block.next = blocks[pc];
+          finish(block, body, GOTO);
+        }
+        block = blocks[pc];
+      }
+      int next = pc + Bytecode.length(code, pc);
+      switch (code[pc]) {
+        case Bytecode.JUMP:
+          block.slot = code[pc + 1];
+          block.taken = blocks[code[pc + 2]];
+          block.span = code[pc + 3];
+          block.next = blocks[next];
+          finish(block, body, BRANCH);
+          break;
+        case Bytecode.GOTO:
+          block.next = blocks[code[pc + 1]];
+          block.span = code[pc + 2];
+          finish(block, body, GOTO);
+          break;
+        case Bytecode.CALL:
+          block.slot = code[pc + 1];
+          block.callee = code[pc + 2];
+          block.args = Arrays.copyOfRange(code, pc + 4, next);
+          block.next = blocks[next];
+          finish(block, body, CALL);
+          break;
+        case Bytecode.RETURN:
+          block.slot = code[pc + 1];
+          finish(block, body, RETURN);
+          break;
+        case Bytecode.RETURN_VOID:
+          finish(block, body, RETURN_VOID);
+          break;
+        case Bytecode.NOP:
+          break;
+        default:
+          body.add(op(b, pc));
+          break;
+      }
+    }
+    return blocks[0];
+  }
+
+  private static void finish(Block block, ArrayList<Op> body, int exit) {
+    block.exit = exit;
+    block.body = body.toArray(new Op[0]);
+    body.clear();
+  }
+
+  /**
+   * Returns the closure of a straight-line instruction.
+   */
+  private Op op(Bytecode b, int pc) {
+    int[] code = b.code;
+    int length = Bytecode.length(code, pc);
+    int dst = length > 1 ? code[pc + 1] : 0;
+    int x = length > 2 ? code[pc + 2] : 0;
+    int y = length > 3 ? code[pc + 3] : 0;
+    switch (code[pc]) {
+      case Bytecode.ADD:
+        return f -> f[dst] = f[x] + f[y];
+      case Bytecode.SUB:
+        return f -> f[dst] = f[x] - f[y];
+      case Bytecode.MUL:
+        return f -> f[dst] = f[x] * f[y];
+      case Bytecode.DIV:
+        return f -> f[dst] = f[x] / f[y];
+      case Bytecode.GE:
+        return f -> f[dst] = f[x] >= f[y] ? 1 : 0;
+      case Bytecode.GT:
+        return f -> f[dst] = f[x] > f[y] ? 1 : 0;
+      case Bytecode.LE:
+        return f -> f[dst] = f[x] <= f[y] ? 1 : 0;
+      case Bytecode.LT:
+        return f -> f[dst] = f[x] < f[y] ? 1 : 0;
+      case Bytecode.EQ:
+        return f -> f[dst] = f[x] == f[y] ? 1 : 0;
+      case Bytecode.NE:
+        return f -> f[dst] = f[x] != f[y] ? 1 : 0;
+      case Bytecode.CONST: {
+        long val = b.constants[x];
+        return f -> f[dst] = val;
+      }
+      case Bytecode.COPY:
+        return f -> f[dst] = f[x];
+      case Bytecode.NOT:
+        return f -> f[dst] = f[x] == 0 ? 1 : 0;
+      case Bytecode.ADDR: {
+        long address = b.constants[x];
+        return f -> f[dst] = address;
+      }
+      case Bytecode.ADDR_IDX: {
+        long base = b.constants[x];
+        return f -> f[dst] = base + 8 * f[y];
+      }
+      case Bytecode.LOAD:
+        return f -> f[dst] = load(f[x]);
+      case Bytecode.LOAD_BOOL:
+        return f -> f[dst] = load(f[x]) != 0 ? 1 : 0;
+      case Bytecode.STORE:
+        // dst is the stored value here
+        return f -> memory.store(f[x], f[dst]);
+      case Bytecode.READ_INT:
+        return f -> {
+          long val = readInt();
+          if (dst >= 0)
+            f[dst] = val;
+        };
+      case Bytecode.READ_CHAR:
+        return f -> {
+          long val = readChar();
+          if (dst >= 0)
+            f[dst] = val;
+        };
+      case Bytecode.PRINT_BOOL:
+        return f -> io.printBool(f[dst] != 0);
+      case Bytecode.PRINT_INT:
+        return f -> io.printInt(f[dst]);
+      case Bytecode.PRINT_CHAR:
+        return f -> io.printChar((char) f[dst]);
+      case Bytecode.PRINTLN:
+        return f -> io.println();
+      default:
+        throw new Error("Unknown opcode " + code[pc]);
+    }
+  }
+
+  private long load(long address) {
+    if (!memory.isInitialized(address))
+      io.println("Reading from uninitialized memory");
+    return memory.load(address);
+  }
+
+  private long readInt() {
+    try {
+      io.print("int?");
+      return io.readInt();
+    } catch (IOException e) {
+      throw new Error("Error in inputting Integer.");
+    }
+  }
+
+  private long readChar() {
+    try {
+      int val = io.readChar();
+      if (val == -1)
+        throw new Error("Reading past end of stream.");
+      return val;
+    } catch (IOException e) {
+      throw new Error("Error in inputting Integer.");
+    }
+  }
+}
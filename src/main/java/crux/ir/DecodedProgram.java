@@ -0,0 +1,68 @@
+package crux.ir;
+
+import java.util.*;
+import crux.ast.SymbolTable.Symbol;
+
+/**
+ * A {@link Program} decoded for the {@link Emulator}: the {@link Bytecode} of its functions and
+ * the layout of its global memory. Decoding assigns the frame slots of the IR variables, so a
+ * program should be decoded once; the result is never changed afterwards and can be shared by any
+ * number of emulators, also on different threads. Each of them gets its own memory, call stack,
+ * budget and I/O. Only the classes generated by the {@link JitCompiler} are shared between the
+ * runs, which is safe as they keep no state.
+ */
+public final class DecodedProgram {
+  final Bytecode[] functions;
+  final int mainIndex;
+  final int maxFrameSize;
+  /** The size of global memory in bytes. */
+  final long globalsSize;
+  /** A hash of the code, which tells whether a {@link Checkpoint} belongs to this program. */
+  final int fingerprint;
+  private JitCompiler jit;
+
+  public DecodedProgram(Program p) {
+    HashMap<Symbol, Long> offsetMap = new HashMap<>();
+    long offset = 0;
+    for (Iterator<GlobalDecl> glob_it = p.getGlobals(); glob_it.hasNext();) {
+      GlobalDecl g = glob_it.next();
+      offsetMap.put(g.getSymbol(), offset);
+      offset += ((IntegerConstant) g.getNumElement()).getValue() * 8;
+    }
+    globalsSize = offset;
+
+    // Number the functions first, so that calls can be bound while decoding
+    ArrayList<Function> funcs = new ArrayList<>();
+    HashMap<String, Integer> functionIndices = new HashMap<>();
+    for (Iterator<Function> func_it = p.getFunctions(); func_it.hasNext();) {
+      Function f = func_it.next();
+      functionIndices.put(f.getName(), funcs.size());
+      funcs.add(f);
+    }
+    functions = new Bytecode[funcs.size()];
+    int max = 0;
+    for (int i = 0; i < functions.length; i++) {
+      functions[i] = new Bytecode(funcs.get(i), offsetMap, functionIndices);
+      max = Math.max(max, functions[i].frameSize);
+    }
+    maxFrameSize = max;
+    mainIndex = functionIndices.get("main");
+
+    int hash = Long.hashCode(globalsSize);
+    for (Bytecode b : functions) {
+      hash = 31 * hash + b.function.getName().hashCode();
+      hash = 31 * hash + Arrays.hashCode(b.code);
+      hash = 31 * hash + Arrays.hashCode(b.constants);
+    }
+    fingerprint = hash;
+  }
+
+  /**
+   * Returns the compiler of the program, created by the first run that uses it.
+   */
+  synchronized JitCompiler jit() {
+    if (jit == null)
+      jit = new JitCompiler(functions);
+    return jit;
+  }
+}
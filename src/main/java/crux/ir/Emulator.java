@@ -2,266 +2,676 @@ package crux.ir;
 
 import java.util.*;
 import java.io.*;
-import crux.ir.insts.*;
-import crux.ast.SymbolTable.Symbol;
-import crux.ast.types.*;
+import java.time.Duration;
 
+/**
+ * Runs a {@link Program} on its decoded {@link Bytecode}. All values are plain longs: integers as
+ * they are and booleans as 0 (false) or 1 (true), both in the frames and in {@link GlobalMemory}.
+ * A boolean only becomes true/false again when it is printed by printBool or in the debug trace,
+ * so executing an instruction does not allocate.
+ */
 public class Emulator {
-  HashMap<String, Function> functions = new HashMap<>();
-  Stack<CallContext> stack = new Stack<>();
-  HashMap<Long, Long> globalMap = new HashMap<>();
-  HashMap<Symbol, Long> offsetMap = new HashMap<>();
+  final DecodedProgram program;
+  final Bytecode[] functions;
+  /**
+   * The call stack. A context is created the first time the stack gets that deep and is reused by
+   * every later call at the same depth, together with its frame.
+   */
+  CallContext[] calls = new CallContext[64];
+  int depth;
+  GlobalMemory memory;
 
-  BufferedReader br;
-  PrintStream out;
-  public static boolean DEBUG = false;
+  EmulatorIO io;
+  EmulatorProfile profile;
+  /** Receives the instructions executed, null unless tracing. */
+  EmulatorTrace trace;
+  boolean useJit = true;
+  /** The JIT of the last run, null if it was interpreted only. */
+  JitCompiler.Session jit;
+  boolean useClosures = false;
+  long instructionLimit = -1;
+  long timeLimit = -1;
+  Budget budget;
+  /**
+   * Set when the last run stopped at a limit with its whole state in the call stack, so that it can
+   * be resumed and checkpointed. calls[depth] then holds the function and pc to resume at, and all
+   * pcs on the stack are positions in the plain code.
+   */
+  boolean paused = false;
+
+  /**
+   * How a run ended: the program either finished or was stopped at one of the limits.
+   */
+  public enum Outcome {
+    FINISHED, INSTRUCTION_LIMIT, TIME_LIMIT, INTERRUPTED
+  }
 
   public Emulator(Program p, InputStream emulatorInput, OutputStream emulatorOutput) {
-    br = new BufferedReader(new InputStreamReader(emulatorInput));
-    out = new PrintStream(emulatorOutput);
+    this(new DecodedProgram(p), emulatorInput, emulatorOutput);
+  }
 
-    for (Iterator<Function> func_it = p.getFunctions(); func_it.hasNext();) {
-      Function f = func_it.next();
-      functions.put(f.getName(), f);
-    }
-    long offset = 0;
-    for (Iterator<GlobalDecl> glob_it = p.getGlobals(); glob_it.hasNext();) {
-      GlobalDecl g = glob_it.next();
-      offsetMap.put(g.getSymbol(), offset);
-      offset += ((IntegerConstant) g.getNumElement()).getValue() * 8;
-    }
+  /**
+   * Creates an emulator for a program that is already decoded, with a global memory of its own.
+   */
+  public Emulator(DecodedProgram program, InputStream emulatorInput, OutputStream emulatorOutput) {
+    this.program = program;
+    functions = program.functions;
+    io = new EmulatorIO(emulatorInput, emulatorOutput);
+    memory = new GlobalMemory(program.globalsSize);
   }
 
-  public void run() {
-    Function main = functions.get("main");
-    CallContext mainc = new CallContext(main, null, null);
-    stack.push(mainc);
-    while (!stack.isEmpty()) {
-      CallContext c = stack.peek();
-      if (c.pc == null) {
-        // Handle implicit return from void function
-        stack.pop();
-      } else {
-        c.pc.accept(c);
-      }
-    }
+  /**
+   * Makes {@link #run()} print every instruction it executes, together with the values involved,
+   * between the output of the program.
+   */
+  public void enableDebug() {
+    trace = new TextTrace(io::println);
   }
 
-  void debug(String msg) {
-    if (DEBUG)
-      out.println(msg);
+  /**
+   * Makes {@link #run()} write a binary trace of every instruction it executes, see
+   * {@link BinaryTrace}. {@link TraceDecoder} prints it as the lines of {@link #enableDebug()}.
+   */
+  public void enableTrace(OutputStream out) {
+    trace = new BinaryTrace(out);
   }
 
-  class CallContext extends InstVisitor {
-    Function f;
-    Instruction pc;
-    HashMap<Variable, Object> localMap;
-    LocalVar retval;
+  /**
+   * Makes {@link #run()} count the instructions it executes, see {@link EmulatorProfile}.
+   */
+  public void enableProfile() {
+    profile = new EmulatorProfile(functions, program.mainIndex);
+  }
 
-    CallContext(Function f, Object[] arguments, LocalVar retval) {
-      this.f = f;
-      pc = f.getStart();
-      localMap = new HashMap<>();
-      if (arguments != null) {
-        int index = 0;
-        for (LocalVar arg : f.getArguments()) {
-          localMap.put(arg, arguments[index++]);
-        }
-      }
-      this.retval = retval;
-    }
+  /**
+   * Makes {@link #run()} interpret all code, rather than compiling hot functions with the
+   * {@link JitCompiler}. Tracing and profiling always interpret.
+   */
+  public void disableJit() {
+    useJit = false;
+  }
 
-    public void visit(AddressAt i) {
-      Symbol base = i.getBase();
-      long address = offsetMap.get(base);
-      Value v = i.getOffset();
-      if (v != null) {
-        address += 8 * ((Long) localMap.get(v));
-      }
-      localMap.put(i.getDst(), address);
-      debug("AddressAt: " + i.getDst() + " = " + address);
-      pc = pc.getNext(0);
-    }
+  /**
+   * Makes {@link #run()} execute the program with the {@link ClosureEngine} instead. Tracing and
+   * profiling always use the emulator itself.
+   */
+  public void useClosureEngine() {
+    useClosures = true;
+  }
 
-    public void visit(BinaryOperator i) {
-      Object left = localMap.get(i.getLeftOperand());
-      Object right = localMap.get(i.getRightOperand());
-      Object result = null;
-      switch (i.getOperator()) {
-        case Add:
-          result = ((Long) left) + ((Long) right);
-          break;
-        case Sub:
-          result = ((Long) left) - ((Long) right);
-          break;
-        case Mul:
-          result = ((Long) left) * ((Long) right);
-          break;
-        case Div:
-          result = ((Long) left) / ((Long) right);
-          break;
-      }
-      localMap.put(i.getDst(), result);
-      debug("BinaryOperator: " + i.getDst() + "=" + left + i.getOperator() + right);
-      pc = pc.getNext(0);
-    }
+  /**
+   * Limits {@link #run()} to about the given number of instructions, see {@link Budget} for how
+   * they are counted.
+   */
+  public void setInstructionLimit(long instructions) {
+    instructionLimit = instructions;
+  }
 
-    public void visit(CompareInst i) {
-      Long left = (Long) localMap.get(i.getLeftOperand());
-      Long right = (Long) localMap.get(i.getRightOperand());
-      Boolean result = null;
-      switch (i.getPredicate()) {
-        case GE:
-          result = left >= right;
-          break;
-        case GT:
-          result = left > right;
-          break;
-        case LE:
-          result = left <= right;
-          break;
-        case LT:
-          result = left < right;
-          break;
-        case EQ:
-          result = left.equals(right);
-          break;
-        case NE:
-          result = !left.equals(right);
-          break;
-      }
-      localMap.put(i.getDst(), result);
-      debug("CompareInst: " + i.getDst() + "=" + left + i.getPredicate() + right);
-      pc = pc.getNext(0);
-    }
+  /**
+   * Limits {@link #run()} to the given wall-clock time.
+   */
+  public void setTimeLimit(Duration limit) {
+    timeLimit = limit.toNanos();
+  }
+
+  /**
+   * Returns the counts of the last run, or null if profiling is not enabled.
+   */
+  public EmulatorProfile getProfile() {
+    return profile;
+  }
 
-    public void visit(CopyInst i) {
-      Value srcval = i.getSrcValue();
-      Object val;
-      if (srcval instanceof IntegerConstant) {
-        val = Long.valueOf(((IntegerConstant) srcval).getValue());
-      } else if (srcval instanceof BooleanConstant) {
-        val = ((BooleanConstant) srcval).getValue();
+  /**
+   * Executes the decoded code of main until it returns or a limit is reached. The code, frame and
+   * pc of the running function are kept in locals; the call stack is only touched on calls and
+   * returns. Interrupting the thread stops the run as well.
+   * <p>
+   * If the last run of the interpreter stopped at a limit, or a checkpoint has been restored, the
+   * run continues from there instead, with new limits.
+   */
+  public Outcome run() {
+    if (paused && profile != null)
+      throw new IllegalStateException("A resumed run cannot be profiled");
+    budget = new Budget(instructionLimit, timeLimit);
+    jit = null;
+    try {
+      if (useClosures && trace == null && profile == null && !paused) {
+        new ClosureEngine(functions, memory, io, budget).run(program.mainIndex);
+        return Outcome.FINISHED;
+      }
+      if (useJit && trace == null && profile == null)
+        jit = program.jit().session(new JitRuntime(this));
+      if (paused) {
+        paused = false;
+        CallContext top = calls[depth];
+        for (int d = 0; d <= depth; d++) {
+          calls[d].pc = code(calls[d].b) == calls[d].b.code ? calls[d].pc
+              : calls[d].b.fusedPcs[calls[d].pc];
+        }
+        execute(top.b, 0, top.pc, jit);
       } else {
-        val = localMap.get(srcval);
+        calls[0] = new CallContext(program.maxFrameSize);
+        depth = 0;
+        execute(functions[program.mainIndex], 0, 0, jit);
       }
-
-      debug("CopyInst: " + i.getDstVar() + "=" + val);
-      localMap.put(i.getDstVar(), val);
-      pc = pc.getNext(0);
+      return Outcome.FINISHED;
+    } catch (Budget.Exhausted e) {
+      return e.outcome;
+    } finally {
+      if (trace != null)
+        trace.flush();
+      io.flush();
     }
+  }
 
-    public void visit(JumpInst i) {
-      Boolean pred = (Boolean) localMap.get(i.getPredicate());
-      debug("Jump: " + i.getPredicate() + "=" + pred);
-      pc = pred ? pc.getNext(1) : pc.getNext(0);
-    }
+  /**
+   * Runs a call of the function with the given index in the interpreter only. This is how compiled
+   * code continues once its calls are nested too deeply for the JVM stack.
+   */
+  long interpret(int function, long[] args) {
+    Bytecode b = functions[function];
+    long[] frame = nextFrame();
+    System.arraycopy(args, 0, frame, 0, args.length);
+    Arrays.fill(frame, args.length, b.frameSize, 0);
+    int base = depth;
+    long val = execute(b, base, 0, null);
+    depth = base - 1;
+    return val;
+  }
 
-    public void visit(LoadInst i) {
-      AddressVar var = i.getSrcAddress();
-      Long address = (Long) localMap.get(var);
-      Long value = globalMap.get(address);
-      if (value == null) {
-        out.println("Reading from uninitialized memory");
-        value = Long.valueOf(0);
-      }
+  /**
+   * Executes a call of b whose frame is the one of calls[base], with its arguments already in
+   * place, and returns its result. With a jit, calls of compiled functions and hot loops are left
+   * to the compiled code. A resumed run starts in the function on top of the stack, at pc.
+   */
+  private long execute(Bytecode b, int base, int pc, JitCompiler.Session jit) {
+    int[] code = code(b);
+    long[] frame = calls[depth].frame;
+    // Profiling counters of the running function and the number of instructions executed so far,
+    // both only used if profiling is enabled
+    long[] counts = profile != null ? profile.counts[b.index] : null;
+    long executed = 0;
 
-      Object val;
-      if (var.getType() instanceof IntType) {
-        val = value;
-      } else {
-        val = Boolean.valueOf(value != 0);
+    try {
+      while (true) {
+        if (counts != null) {
+          counts[pc]++;
+          executed++;
+        }
+        switch (code[pc]) {
+          case Bytecode.NOP:
+            if (trace != null)
+              trace.event(b, pc);
+            pc += 1;
+            break;
+          case Bytecode.ADD:
+          case Bytecode.SUB:
+          case Bytecode.MUL:
+          case Bytecode.DIV: {
+            long left = frame[code[pc + 2]];
+            long right = frame[code[pc + 3]];
+            long result;
+            switch (code[pc]) {
+              case Bytecode.ADD:
+                result = left + right;
+                break;
+              case Bytecode.SUB:
+                result = left - right;
+                break;
+              case Bytecode.MUL:
+                result = left * right;
+                break;
+              default:
+                result = left / right;
+                break;
+            }
+            frame[code[pc + 1]] = result;
+            if (trace != null)
+              trace.event(b, pc, left, right);
+            pc += 4;
+            break;
+          }
+          case Bytecode.GE:
+          case Bytecode.GT:
+          case Bytecode.LE:
+          case Bytecode.LT:
+          case Bytecode.EQ:
+          case Bytecode.NE: {
+            long left = frame[code[pc + 2]];
+            long right = frame[code[pc + 3]];
+            boolean result;
+            switch (code[pc]) {
+              case Bytecode.GE:
+                result = left >= right;
+                break;
+              case Bytecode.GT:
+                result = left > right;
+                break;
+              case Bytecode.LE:
+                result = left <= right;
+                break;
+              case Bytecode.LT:
+                result = left < right;
+                break;
+              case Bytecode.EQ:
+                result = left == right;
+                break;
+              default:
+                result = left != right;
+                break;
+            }
+            frame[code[pc + 1]] = result ? 1 : 0;
+            if (trace != null)
+              trace.event(b, pc, left, right);
+            pc += 4;
+            break;
+          }
+          case Bytecode.CONST:
+          case Bytecode.COPY: {
+            long val = code[pc] == Bytecode.CONST ? b.constants[code[pc + 2]] : frame[code[pc + 2]];
+            if (trace != null)
+              trace.event(b, pc, val);
+            frame[code[pc + 1]] = val;
+            pc += 3;
+            break;
+          }
+          case Bytecode.NOT: {
+            long result = frame[code[pc + 2]] == 0 ? 1 : 0;
+            frame[code[pc + 1]] = result;
+            if (trace != null)
+              trace.event(b, pc, result);
+            pc += 3;
+            break;
+          }
+          case Bytecode.JUMP: {
+            long pred = frame[code[pc + 1]];
+            if (trace != null)
+              trace.event(b, pc, pred);
+            if (pred == 0) {
+              pc += 4;
+              break;
+            }
+            if (counts != null)
+              counts[pc + 1]++;
+            if (code[pc + 3] != 0)
+              budget.charge(code[pc + 3]);
+            pc = code[pc + 2];
+            break;
+          }
+          case Bytecode.GOTO: {
+            // Not an instruction of the program
+            executed--;
+            int target = code[pc + 1];
+            if (code[pc + 2] != 0)
+              budget.charge(code[pc + 2]);
+            JitRuntime.Code compiled;
+            if (jit == null || target > pc || (compiled = jit.backedge(b.index)) == null) {
+              pc = target;
+              break;
+            }
+            // Continue the loop in compiled code, which then finishes the call. Its entries are the
+            // targets in the plain code.
+            jit.osrEntries++;
+            long val = compiled.enter(jit.runtime, frame, b.code[b.plainPcs[pc] + 1]);
+            if (depth == base)
+              return val;
+            CallContext caller = calls[--depth];
+            if (caller.retSlot >= 0)
+              caller.frame[caller.retSlot] = val;
+            b = caller.b;
+            code = code(b);
+            frame = caller.frame;
+            pc = caller.pc;
+            break;
+          }
+          case Bytecode.ADDR:
+          case Bytecode.ADDR_IDX: {
+            long address = b.constants[code[pc + 2]];
+            if (code[pc] == Bytecode.ADDR_IDX)
+              address += 8 * frame[code[pc + 3]];
+            frame[code[pc + 1]] = address;
+            if (trace != null)
+              trace.event(b, pc, address);
+            pc += code[pc] == Bytecode.ADDR_IDX ? 4 : 3;
+            break;
+          }
+          case Bytecode.LOAD:
+          case Bytecode.LOAD_BOOL: {
+            long address = frame[code[pc + 2]];
+            if (!memory.isInitialized(address))
+              io.println("Reading from uninitialized memory");
+            long value = memory.load(address);
+            long val = code[pc] == Bytecode.LOAD ? value : value != 0 ? 1 : 0;
+            if (trace != null)
+              trace.event(b, pc, val);
+            frame[code[pc + 1]] = val;
+            pc += 3;
+            break;
+          }
+          case Bytecode.STORE: {
+            long val = frame[code[pc + 1]];
+            long address = frame[code[pc + 2]];
+            if (trace != null)
+              trace.event(b, pc, address, val);
+            memory.store(address, val);
+            pc += 3;
+            break;
+          }
+          case Bytecode.CALL: {
+            int dst = code[pc + 1];
+            int nargs = code[pc + 3];
+            if (trace != null)
+              trace.call(b, pc, frame);
+            Bytecode callee = functions[code[pc + 2]];
+            budget.charge(callee.instructions);
+            long[] calleeFrame = push(b, pc + 4 + nargs, dst);
+            // Arguments occupy the first slots of the frame, see Function.assignSlots()
+            for (int j = 0; j < nargs; j++) {
+              calleeFrame[j] = frame[code[pc + 4 + j]];
+            }
+            Arrays.fill(calleeFrame, nargs, callee.frameSize, 0);
+            JitRuntime.Code compiled;
+            if (jit != null && (compiled = jit.call(callee.index)) != null) {
+              long val = compiled.enter(jit.runtime, calleeFrame, 0);
+              depth--;
+              if (dst >= 0)
+                frame[dst] = val;
+              pc += 4 + nargs;
+              break;
+            }
+            if (counts != null)
+              counts = profile.enter(code[pc + 2], executed);
+            b = callee;
+            code = code(b);
+            frame = calleeFrame;
+            pc = 0;
+            break;
+          }
+          case Bytecode.READ_INT:
+            if (trace != null)
+              trace.call(b, pc, frame);
+            try {
+              io.print("int?");
+              long val = io.readInt();
+              if (code[pc + 1] >= 0)
+                frame[code[pc + 1]] = val;
+            } catch (IOException e) {
+              throw new Error("Error in inputting Integer.");
+            }
+            pc += 2;
+            break;
+          case Bytecode.READ_CHAR:
+            if (trace != null)
+              trace.call(b, pc, frame);
+            try {
+              int val = io.readChar();
+              if (val == -1)
+                throw new Error("Reading past end of stream.");
+              if (code[pc + 1] >= 0)
+                frame[code[pc + 1]] = val;
+            } catch (IOException e) {
+              throw new Error("Error in inputting Integer.");
+            }
+            pc += 2;
+            break;
+          case Bytecode.PRINT_BOOL:
+            if (trace != null)
+              trace.call(b, pc, frame);
+            io.printBool(frame[code[pc + 1]] != 0);
+            pc += 2;
+            break;
+          case Bytecode.PRINT_INT:
+            if (trace != null)
+              trace.call(b, pc, frame);
+            io.printInt(frame[code[pc + 1]]);
+            pc += 2;
+            break;
+          case Bytecode.PRINT_CHAR:
+            if (trace != null)
+              trace.call(b, pc, frame);
+            io.printChar((char) frame[code[pc + 1]]);
+            pc += 2;
+            break;
+          case Bytecode.PRINTLN:
+            if (trace != null)
+              trace.call(b, pc, frame);
+            io.println();
+            pc += 1;
+            break;
+          case Bytecode.RETURN:
+          case Bytecode.RETURN_VOID: {
+            long val = 0;
+            if (code[pc] == Bytecode.RETURN) {
+              val = frame[code[pc + 1]];
+              if (trace != null)
+                trace.event(b, pc, val);
+            }
+            if (depth == base) {
+              if (counts != null)
+                profile.stop(executed);
+              return val;
+            }
+            CallContext caller = calls[--depth];
+            if (caller.retSlot >= 0)
+              caller.frame[caller.retSlot] = val;
+            if (counts != null)
+              counts = profile.leave(executed);
+            b = caller.b;
+            code = code(b);
+            frame = caller.frame;
+            pc = caller.pc;
+            break;
+          }
+          case Bytecode.CONST_ARITH: {
+            frame[code[pc + 1]] = b.constants[code[pc + 2]];
+            frame[code[pc + 4]] = arith(code[pc + 3], frame[code[pc + 5]], frame[code[pc + 6]]);
+            pc += 7;
+            break;
+          }
+          case Bytecode.CONST_COMPARE_JUMP:
+            frame[code[pc + 1]] = b.constants[code[pc + 2]];
+            pc += 3;
+            // The compare and jump follow as they are
+            frame[code[pc + 1]] =
+                compare(code[pc], frame[code[pc + 2]], frame[code[pc + 3]]) ? 1 : 0;
+            if (frame[code[pc + 5]] == 0) {
+              pc += 8;
+              break;
+            }
+            if (code[pc + 7] != 0)
+              budget.charge(code[pc + 7]);
+            pc = code[pc + 6];
+            break;
+          case Bytecode.GE_JUMP:
+          case Bytecode.GT_JUMP:
+          case Bytecode.LE_JUMP:
+          case Bytecode.LT_JUMP:
+          case Bytecode.EQ_JUMP:
+          case Bytecode.NE_JUMP: {
+            int op = code[pc] - Bytecode.GE_JUMP + Bytecode.GE;
+            frame[code[pc + 1]] = compare(op, frame[code[pc + 2]], frame[code[pc + 3]]) ? 1 : 0;
+            if (frame[code[pc + 5]] == 0) {
+              pc += 8;
+              break;
+            }
+            if (code[pc + 7] != 0)
+              budget.charge(code[pc + 7]);
+            pc = code[pc + 6];
+            break;
+          }
+          case Bytecode.ADDR_LOAD:
+          case Bytecode.ADDR_IDX_LOAD: {
+            // The LOAD follows as it is
+            int load = pc + 3;
+            long address = b.constants[code[pc + 2]];
+            if (code[pc] == Bytecode.ADDR_IDX_LOAD) {
+              address += 8 * frame[code[pc + 3]];
+              load++;
+            }
+            frame[code[pc + 1]] = address;
+            address = frame[code[load + 2]];
+            if (!memory.isInitialized(address))
+              io.println("Reading from uninitialized memory");
+            frame[code[load + 1]] = memory.load(address);
+            pc = load + 3;
+            break;
+          }
+          case Bytecode.ADDR_STORE:
+          case Bytecode.ADDR_IDX_STORE: {
+            int store = pc + 3;
+            long address = b.constants[code[pc + 2]];
+            if (code[pc] == Bytecode.ADDR_IDX_STORE) {
+              address += 8 * frame[code[pc + 3]];
+              store++;
+            }
+            frame[code[pc + 1]] = address;
+            memory.store(frame[code[store + 2]], frame[code[store + 1]]);
+            pc = store + 3;
+            break;
+          }
+          default:
+            throw new Error("Unknown opcode " + code[pc]);
+        }
       }
+    } catch (Budget.Exhausted e) {
+      // Stopped at a call or a jump back, which can simply be executed again. Without compiled
+      // code, the whole run is in the call stack then, so it can be resumed.
+      if (base == 0 && jit == null && profile == null)
+        pause(b, resumePc(code, pc));
+      throw e;
+    }
+  }
 
-      debug("LoadInst: " + i.getDst() + "=" + val);
-      localMap.put(i.getDst(), val);
-      pc = pc.getNext(0);
+  /**
+   * Returns the instruction to resume at when the budget ran out at pc: a jump in a
+   * superinstruction is executed on its own again.
+   */
+  private static int resumePc(int[] code, int pc) {
+    switch (code[pc]) {
+      case Bytecode.GE_JUMP:
+      case Bytecode.GT_JUMP:
+      case Bytecode.LE_JUMP:
+      case Bytecode.LT_JUMP:
+      case Bytecode.EQ_JUMP:
+      case Bytecode.NE_JUMP:
+        return pc + 4;
+      case Bytecode.CONST_COMPARE_JUMP:
+        return pc + 7;
+      default:
+        return pc;
     }
+  }
 
-    public void visit(NopInst i) {
-      // Do nothing
-      debug("Nop:");
-      pc = pc.getNext(0);
+  /**
+   * Records that the run stopped in b at pc and brings the pcs on the call stack to the plain code.
+   */
+  private void pause(Bytecode b, int pc) {
+    CallContext top = calls[depth];
+    top.b = b;
+    top.pc = pc;
+    for (int d = 0; d <= depth; d++) {
+      Bytecode f = calls[d].b;
+      if (code(f) == f.fused)
+        calls[d].pc = f.plainPcs[calls[d].pc];
     }
+    paused = true;
+  }
 
-    public void visit(StoreInst i) {
-      Value srcval = i.getSrcValue();
-      Object val = localMap.get(srcval);
-      AddressVar dst = i.getDestAddress();
-      Long address = (Long) localMap.get(dst);
-      debug("StoreInst: *" + address + "=" + val);
+  /**
+   * Returns the state of a run that stopped at one of its limits, to continue from with
+   * {@link #restore(Checkpoint)}. Only a run without compiled code can be checkpointed, see
+   * {@link #disableJit()}, and not while it is profiled.
+   */
+  public Checkpoint checkpoint() {
+    if (!paused)
+      throw new IllegalStateException("Only an interpreted run stopped at a limit can be saved");
+    return Checkpoint.save(this);
+  }
 
-      if (val instanceof Long) {
-        globalMap.put(address, (Long) val);
-      } else if (val instanceof Boolean) {
-        globalMap.put(address, ((Boolean) val) ? Long.valueOf(1) : Long.valueOf(0));
-      }
-      pc = pc.getNext(0);
+  /**
+   * Sets this emulator to the state of the checkpoint, with its global memory and call stack, and
+   * skips the input up to where it was. The next {@link #run()} continues from there. The
+   * checkpoint has to be of the same program, and the input has to start with what that run read.
+   */
+  public void restore(Checkpoint checkpoint) throws IOException {
+    checkpoint.restore(this);
+    paused = true;
+  }
+
+  /**
+   * Returns the code to interpret b with: the plain code if every instruction has to be seen, for
+   * tracing or profiling, and the fused code otherwise.
+   */
+  private int[] code(Bytecode b) {
+    return trace == null && profile == null ? b.fused : b.code;
+  }
+
+  private static long arith(int op, long left, long right) {
+    switch (op) {
+      case Bytecode.ADD:
+        return left + right;
+      case Bytecode.SUB:
+        return left - right;
+      case Bytecode.MUL:
+        return left * right;
+      default:
+        return left / right;
     }
+  }
 
-    public void visit(ReturnInst i) {
-      Object val = i.getReturnValue() != null ? localMap.get(i.getReturnValue()) : null;
-      debug("ReturnInst: " + val);
-      // Remove ourselves from the stack
-      stack.pop();
-      // Return value to caller
-      if (!stack.isEmpty()) {
-        CallContext caller = stack.peek();
-        if (retval != null)
-          caller.localMap.put(retval, val);
-      }
+  private static boolean compare(int op, long left, long right) {
+    switch (op) {
+      case Bytecode.GE:
+        return left >= right;
+      case Bytecode.GT:
+        return left > right;
+      case Bytecode.LE:
+        return left <= right;
+      case Bytecode.LT:
+        return left < right;
+      case Bytecode.EQ:
+        return left == right;
+      default:
+        return left != right;
     }
+  }
 
-    public void visit(CallInst i) {
-      List<LocalVar> params = i.getParams();
-      Object[] args = new Object[params.size()];
-      for (int j = 0; j < args.length; j++) {
-        args[j] = localMap.get(params.get(j));
-      }
+  /**
+   * Suspends the running call, which continues at pc when the callee returns its value to retSlot,
+   * and returns the frame for the callee.
+   */
+  private long[] push(Bytecode b, int pc, int retSlot) {
+    CallContext caller = calls[depth];
+    caller.b = b;
+    caller.pc = pc;
+    caller.retSlot = retSlot;
+    return nextFrame();
+  }
 
-      Symbol varCallee = i.getCallee();
-      String fName = varCallee.getName();
-      debug("Calling " + fName + " with " + Arrays.toString(args));
+  /**
+   * Returns the frame one level deeper than the current call, which becomes the current one.
+   */
+  private long[] nextFrame() {
+    if (++depth == calls.length)
+      calls = Arrays.copyOf(calls, depth * 2);
+    CallContext c = calls[depth];
+    if (c == null)
+      c = calls[depth] = new CallContext(program.maxFrameSize);
+    return c.frame;
+  }
 
-      if (fName.equals("readInt")) {
-        try {
-          out.print("int?");
-          String line = br.readLine();
-          localMap.put(i.mDestVar, Long.valueOf(line));
-        } catch (IOException e) {
-          throw new Error("Error in inputting Integer.");
-        }
-      } else if (fName.equals("readChar")) {
-        try {
-          int val = br.read();
-          if (val == -1)
-            throw new Error("Reading past end of stream.");
-          localMap.put(i.mDestVar, new Long(val));
-        } catch (IOException e) {
-          throw new Error("Error in inputting Integer.");
-        }
-      } else if (fName.equals("printBool")) {
-        out.print(args[0]);
-      } else if (fName.equals("printInt")) {
-        out.print(args[0]);
-      } else if (fName.equals("printChar")) {
-        out.print((char) ((Long) args[0]).longValue());
-      } else if (fName.equals("println")) {
-        out.println("");
-      } else {
-        Function f = functions.get(fName);
-        CallContext callee = new CallContext(f, args, (LocalVar) i.getDst());
-        stack.push(callee);
-      }
-      pc = pc.getNext(0);
-    }
+  /**
+   * One entry of the call stack: the frame of a call and, while it is suspended in a callee, where
+   * to continue and where to put the returned value.
+   */
+  static final class CallContext {
+    final long[] frame;
+    Bytecode b;
+    int pc;
+    int retSlot;
 
-    public void visit(UnaryNotInst i) {
-      Object left = localMap.get(i.getInner());
-      Object result = !((Boolean) left);
-      localMap.put(i.getDst(), result);
-      debug("UnaryNotInst: " + result);
-      pc = pc.getNext(0);
+    CallContext(int frameSize) {
+      frame = new long[frameSize];
     }
   }
 }
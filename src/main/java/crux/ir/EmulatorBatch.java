@@ -0,0 +1,117 @@
+package crux.ir;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+
+/**
+ * Runs one {@link DecodedProgram} on many inputs at once. Every input gets an {@link Emulator} of
+ * its own, so the runs share nothing but the decoded code and the classes compiled from it, and
+ * writes what the program prints to a result file next to the input, {@code <input>.result}.
+ * <p>
+ * The runs are spread over a fixed number of threads. Each is stopped by its own limits, and an
+ * error in one of them does not affect the others.
+ */
+public final class EmulatorBatch {
+  /**
+   * The stack of the threads, as much as the main thread gets on Linux. Compiled code uses the
+   * JVM stack, see {@link JitRuntime#STACK_LIMIT}.
+   */
+  private static final long THREAD_STACK_SIZE = 8L << 20;
+
+  private final DecodedProgram program;
+  private final int threads;
+
+  public EmulatorBatch(DecodedProgram program, int threads) {
+    if (threads < 1)
+      throw new IllegalArgumentException("threads must be positive: " + threads);
+    this.program = program;
+    this.threads = threads;
+  }
+
+  /**
+   * How the run of one input ended: either with an outcome or, if the program failed, with an
+   * error.
+   */
+  public static final class Result {
+    public final Path input;
+    public final Path output;
+    public final Emulator.Outcome outcome;
+    public final Throwable error;
+
+    Result(Path input, Path output, Emulator.Outcome outcome, Throwable error) {
+      this.input = input;
+      this.output = output;
+      this.outcome = outcome;
+      this.error = error;
+    }
+
+    public boolean isFinished() {
+      return outcome == Emulator.Outcome.FINISHED;
+    }
+  }
+
+  /**
+   * Returns the file the output of a run on input is written to.
+   */
+  public static Path resultFile(Path input) {
+    return input.resolveSibling(input.getFileName() + ".result");
+  }
+
+  /**
+   * Runs the program on every input, with each emulator set up by options before it runs, and
+   * returns the results in the order of the inputs. If the calling thread is interrupted, the runs
+   * in progress are interrupted as well and the rest are not started.
+   */
+  public List<Result> run(List<Path> inputs, Consumer<Emulator> options)
+      throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private int count = 0;
+
+      @Override
+      public synchronized Thread newThread(Runnable r) {
+        Thread t = new Thread(null, r, "emulator-" + ++count, THREAD_STACK_SIZE);
+        t.setDaemon(true);
+        return t;
+      }
+    });
+    try {
+      var futures = new ArrayList<Future<Result>>();
+      for (Path input : inputs) {
+        futures.add(executor.submit(() -> run(input, options)));
+      }
+      var results = new ArrayList<Result>();
+      for (Future<Result> f : futures) {
+        try {
+          results.add(f.get());
+        } catch (ExecutionException e) {
+          // run() reports the failures of the program itself
+          throw new RuntimeException(e.getCause());
+        }
+      }
+      return results;
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  private Result run(Path input, Consumer<Emulator> options) {
+    Path output = resultFile(input);
+    try (InputStream in = Files.newInputStream(input);
+        OutputStream out = Files.newOutputStream(output)) {
+      var emulator = new Emulator(program, in, out);
+      options.accept(emulator);
+      try {
+        return new Result(input, output, emulator.run(), null);
+      } catch (RuntimeException | Error e) {
+        return new Result(input, output, null, e);
+      }
+    } catch (IOException e) {
+      return new Result(input, output, null, e);
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package crux.ir;
+
+import java.io.*;
+import java.nio.charset.Charset;
+
+/**
+ * The input and output channel of an emulated program. Output is collected in a large buffer that
+ * is written out only when it is full, before the program reads input (so that prompts are visible)
+ * and when the program ends. Everything the emulator prints goes through here, so the bytes come
+ * out in the same order and encoding as with a plain {@link PrintStream}.
+ * <p>
+ * Input is read through a buffer as well. Lines and characters are split the way
+ * {@link BufferedReader#readLine()} and {@link BufferedReader#read()} do, and integers are decoded
+ * straight from the line without creating a String.
+ */
+final class EmulatorIO {
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final byte[] TRUE = {'t', 'r', 'u', 'e'};
+  private static final byte[] FALSE = {'f', 'a', 'l', 's', 'e'};
+
+  private final Charset charset = Charset.defaultCharset();
+  private final byte[] lineSeparator = System.lineSeparator().getBytes(charset);
+
+  private final OutputStream out;
+  private final byte[] outBuf = new byte[BUFFER_SIZE];
+  private int outPos = 0;
+
+  private final Reader in;
+  private final char[] inBuf = new char[BUFFER_SIZE];
+  private int inPos = 0;
+  private int inEnd = 0;
+  /** The number of characters read into the buffer so far. */
+  private long inRead = 0;
+  /** Set when the last line ended with '\r', so that a following '\n' belongs to it. */
+  private boolean skipLF = false;
+  private final StringBuilder line = new StringBuilder();
+
+  EmulatorIO(InputStream in, OutputStream out) {
+    this.in = new InputStreamReader(in, charset);
+    this.out = out;
+  }
+
+  void printInt(long val) {
+    if (outBuf.length - outPos < 20)
+      flush();
+    if (val == Long.MIN_VALUE) {
+      print(Long.toString(val));
+      return;
+    }
+    if (val < 0) {
+      outBuf[outPos++] = '-';
+      val = -val;
+    }
+    int end = outPos + digits(val);
+    for (int pos = end - 1; pos >= outPos; pos--) {
+      outBuf[pos] = (byte) ('0' + val % 10);
+      val /= 10;
+    }
+    outPos = end;
+  }
+
+  private static int digits(long val) {
+    int n = 1;
+    while (val >= 10) {
+      val /= 10;
+      n++;
+    }
+    return n;
+  }
+
+  void printBool(boolean val) {
+    write(val ? TRUE : FALSE);
+  }
+
+  void printChar(char c) {
+    if (c < 0x80) {
+      if (outPos == outBuf.length)
+        flush();
+      outBuf[outPos++] = (byte) c;
+    } else {
+      print(String.valueOf(c));
+    }
+  }
+
+  void println() {
+    write(lineSeparator);
+  }
+
+  void print(String s) {
+    write(s.getBytes(charset));
+  }
+
+  void println(String s) {
+    print(s);
+    println();
+  }
+
+  private void write(byte[] bytes) {
+    if (outBuf.length - outPos < bytes.length) {
+      flush();
+      if (bytes.length > outBuf.length) {
+        writeOut(bytes, bytes.length);
+        return;
+      }
+    }
+    System.arraycopy(bytes, 0, outBuf, outPos, bytes.length);
+    outPos += bytes.length;
+  }
+
+  void flush() {
+    if (outPos > 0) {
+      writeOut(outBuf, outPos);
+      outPos = 0;
+    }
+  }
+
+  private void writeOut(byte[] bytes, int length) {
+    try {
+      out.write(bytes, 0, length);
+      out.flush();
+    } catch (IOException e) {
+      // Like PrintStream, output errors are not reported to the program
+    }
+  }
+
+  /**
+   * Reads the next line and returns it as an integer. Throws a NumberFormatException, like
+   * {@link Long#parseLong(String)}, if the line is not an integer or there is no line left.
+   */
+  long readInt() throws IOException {
+    flush();
+    if (!readLine())
+      return Long.parseLong(null);
+
+    int len = line.length();
+    int pos = 0;
+    boolean negative = false;
+    if (len > 0 && (line.charAt(0) == '-' || line.charAt(0) == '+')) {
+      negative = line.charAt(0) == '-';
+      pos = 1;
+    }
+    // Up to 18 digits cannot overflow; anything else is left to Long.parseLong
+    if (pos == len || len - pos > 18)
+      return Long.parseLong(line.toString());
+    long val = 0;
+    for (; pos < len; pos++) {
+      char c = line.charAt(pos);
+      if (c < '0' || c > '9')
+        return Long.parseLong(line.toString());
+      val = val * 10 + (c - '0');
+    }
+    return negative ? -val : val;
+  }
+
+  /**
+   * Returns the next character, or -1 at the end of the input.
+   */
+  int readChar() throws IOException {
+    flush();
+    if (!fill())
+      return -1;
+    if (skipLF) {
+      skipLF = false;
+      if (inBuf[inPos] == '\n') {
+        inPos++;
+        if (!fill())
+          return -1;
+      }
+    }
+    return inBuf[inPos++];
+  }
+
+  /**
+   * Reads the characters up to the next line terminator into {@link #line}. Returns false if the
+   * input is already at its end.
+   */
+  private boolean readLine() throws IOException {
+    line.setLength(0);
+    if (!fill())
+      return false;
+    if (skipLF) {
+      skipLF = false;
+      if (inBuf[inPos] == '\n') {
+        inPos++;
+        if (!fill())
+          return false;
+      }
+    }
+    while (fill()) {
+      char c = inBuf[inPos++];
+      if (c == '\n')
+        return true;
+      if (c == '\r') {
+        skipLF = true;
+        return true;
+      }
+      line.append(c);
+    }
+    return true;
+  }
+
+  private boolean fill() throws IOException {
+    if (inPos < inEnd)
+      return true;
+    int n = in.read(inBuf, 0, inBuf.length);
+    if (n <= 0)
+      return false;
+    inPos = 0;
+    inEnd = n;
+    inRead += n;
+    return true;
+  }
+
+  /**
+   * Returns the number of characters the program has consumed so far.
+   */
+  long inputPosition() {
+    return inRead - (inEnd - inPos);
+  }
+
+  /**
+   * Returns whether a '\n' at the input position still belongs to the last line read.
+   */
+  boolean pendingLF() {
+    return skipLF;
+  }
+
+  /**
+   * Skips the given number of characters of the input, as if the program had consumed them, see
+   * {@link #inputPosition()}.
+   */
+  void skipInput(long position, boolean pendingLF) throws IOException {
+    for (long left = position; left > 0; left--) {
+      if (!fill())
+        throw new EOFException("Input ends before position " + position);
+      inPos++;
+    }
+    skipLF = pendingLF;
+  }
+}
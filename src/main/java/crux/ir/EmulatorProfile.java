@@ -0,0 +1,291 @@
+package crux.ir;
+
+import crux.ir.insts.JumpInst;
+import crux.printing.IRValueFormatter;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Execution counts of one emulator run, collected when profiling is enabled on the
+ * {@link Emulator}.
+ * <p>
+ * Every function has a counter array parallel to its {@link Bytecode#code}: counts[pc] is how
+ * often the instruction at pc was executed and, for a JUMP, counts[pc + 1] how often the jump was
+ * taken (the slot of its predicate operand is not otherwise used). Calls are recorded in a calling
+ * context tree with one node per call path, which gets the instructions executed in the function
+ * itself on that path. Exclusive totals, inclusive totals and the folded stacks all come from that
+ * tree once the run is over.
+ */
+public final class EmulatorProfile {
+  private final Bytecode[] functions;
+  final long[][] counts;
+  private final long[] invocations;
+  private final Node root;
+  private Node current;
+  /** The instruction count when the current node was last entered or left. */
+  private long mark = 0;
+  /**
+   * The function and pc of every IR instruction, built when first asked for, which may be by
+   * several threads of the code generator at once.
+   */
+  private volatile HashMap<Instruction, int[]> positions = null;
+
+  EmulatorProfile(Bytecode[] functions, int mainIndex) {
+    this.functions = functions;
+    counts = new long[functions.length][];
+    for (int i = 0; i < functions.length; i++) {
+      counts[i] = new long[functions[i].code.length];
+    }
+    invocations = new long[functions.length];
+    invocations[mainIndex] = 1;
+    root = current = new Node(mainIndex, null);
+  }
+
+  /**
+   * Records a call of the function with the given index after executed instructions in total and
+   * returns the counters of the callee.
+   */
+  long[] enter(int callee, long executed) {
+    current.self += executed - mark;
+    mark = executed;
+    if (current.children == null)
+      current.children = new Node[functions.length];
+    Node child = current.children[callee];
+    if (child == null)
+      child = current.children[callee] = new Node(callee, current);
+    invocations[callee]++;
+    current = child;
+    return counts[callee];
+  }
+
+  /**
+   * Records the return from the current function and returns the counters of the caller.
+   */
+  long[] leave(long executed) {
+    stop(executed);
+    current = current.parent;
+    return counts[current.function];
+  }
+
+  /**
+   * Attributes the instructions executed since the last call or return to the current function.
+   */
+  void stop(long executed) {
+    current.self += executed - mark;
+    mark = executed;
+  }
+
+  /**
+   * Returns how often an IR instruction was executed, or 0 if it is not part of the program.
+   */
+  public long count(Instruction inst) {
+    int[] position = position(inst);
+    return position == null ? 0 : counts[position[0]][position[1]];
+  }
+
+  /**
+   * Returns how often a jump went to its true target.
+   */
+  public long taken(JumpInst jump) {
+    int[] position = position(jump);
+    return position == null ? 0 : counts[position[0]][position[1] + 1];
+  }
+
+  private int[] position(Instruction inst) {
+    HashMap<Instruction, int[]> map = positions;
+    return (map != null ? map : positions()).get(inst);
+  }
+
+  private synchronized HashMap<Instruction, int[]> positions() {
+    if (positions == null) {
+      var map = new HashMap<Instruction, int[]>();
+      for (int f = 0; f < functions.length; f++) {
+        Bytecode b = functions[f];
+        for (int pc = 0; pc < b.code.length; pc++) {
+          if (b.source[pc] != null)
+            map.putIfAbsent(b.source[pc], new int[] {f, pc});
+        }
+      }
+      positions = map;
+    }
+    return positions;
+  }
+
+  /**
+   * Writes one line per call path with the number of instructions executed in its last function,
+   * e.g. {@code main;fib;fib 120}, the input format of flame graph tools.
+   */
+  public void writeFolded(PrintStream out) {
+    var path = new StringBuilder();
+    walk(new Visitor() {
+      final ArrayList<Integer> lengths = new ArrayList<>();
+
+      @Override
+      public void enter(Node n, long total) {
+        lengths.add(path.length());
+        if (n.parent != null)
+          path.append(';');
+        path.append(functions[n.function].function.getName());
+        if (n.self > 0)
+          out.println(path + " " + n.self);
+      }
+
+      @Override
+      public void leave(Node n) {
+        path.setLength(lengths.remove(lengths.size() - 1));
+      }
+    });
+  }
+
+  /**
+   * Writes the counts of every function and of every instruction as JSON. A function's exclusive
+   * total counts the instructions executed in the function itself, its inclusive total those of
+   * all the calls it made as well, where recursive calls are counted only once.
+   */
+  public void writeJson(PrintStream out) {
+    long[] exclusive = new long[functions.length];
+    long[] inclusive = new long[functions.length];
+    int[] active = new int[functions.length];
+    walk(new Visitor() {
+      @Override
+      public void enter(Node n, long total) {
+        exclusive[n.function] += n.self;
+        if (active[n.function]++ == 0)
+          inclusive[n.function] += total;
+      }
+
+      @Override
+      public void leave(Node n) {
+        active[n.function]--;
+      }
+    });
+
+    long sum = 0;
+    for (long n : exclusive) {
+      sum += n;
+    }
+    out.println("{");
+    out.printf("  \"instructions\": %d,%n", sum);
+    out.println("  \"functions\": [");
+    for (int f = 0; f < functions.length; f++) {
+      Bytecode b = functions[f];
+      out.println("    {");
+      out.printf("      \"name\": %s,%n", quote(b.function.getName()));
+      out.printf("      \"calls\": %d,%n", invocations[f]);
+      out.printf("      \"exclusive\": %d,%n", exclusive[f]);
+      out.printf("      \"inclusive\": %d,%n", inclusive[f]);
+      out.println("      \"instructions\": [");
+      var formatter = new IRValueFormatter();
+      int index = 0;
+      for (int pc = 0; pc < b.code.length; pc++) {
+        Instruction i = b.source[pc];
+        if (i == null || b.code[pc] == Bytecode.GOTO)
+          continue;
+        long count = counts[f][pc];
+        out.print(index == 0 ? "" : ",\n");
+        out.printf("        {\"index\": %d, \"inst\": %s, \"count\": %d", index++,
+            quote(i.format(formatter)), count);
+        if (b.code[pc] == Bytecode.JUMP) {
+          long taken = counts[f][pc + 1];
+          out.printf(", \"taken\": %d, \"notTaken\": %d", taken, count - taken);
+        }
+        out.print("}");
+      }
+      out.println();
+      out.println("      ]");
+      out.println(f + 1 < functions.length ? "    }," : "    }");
+    }
+    out.println("  ]");
+    out.println("}");
+  }
+
+  private static String quote(String s) {
+    var sb = new StringBuilder("\"");
+    for (char c : s.toCharArray()) {
+      if (c == '"' || c == '\\')
+        sb.append('\\').append(c);
+      else if (c < 0x20)
+        sb.append(String.format("\\u%04x", (int) c));
+      else
+        sb.append(c);
+    }
+    return sb.append('"').toString();
+  }
+
+  private interface Visitor {
+    /** Called before the children of n, with the instructions executed on n and below. */
+    void enter(Node n, long total);
+
+    void leave(Node n);
+  }
+
+  /**
+   * Visits the calling context tree depth first. The tree is as deep as the deepest recursion of
+   * the program, so it is walked with an explicit stack.
+   */
+  private void walk(Visitor v) {
+    computeTotals();
+    var stack = new ArrayList<Node>();
+    var next = new ArrayList<Integer>();
+    stack.add(root);
+    next.add(0);
+    v.enter(root, root.total);
+    while (!stack.isEmpty()) {
+      int top = stack.size() - 1;
+      Node n = stack.get(top);
+      int i = next.get(top);
+      while (n.children != null && i < n.children.length && n.children[i] == null)
+        i++;
+      if (n.children == null || i == n.children.length) {
+        v.leave(n);
+        stack.remove(top);
+        next.remove(top);
+        continue;
+      }
+      next.set(top, i + 1);
+      Node child = n.children[i];
+      stack.add(child);
+      next.add(0);
+      v.enter(child, child.total);
+    }
+  }
+
+  private void computeTotals() {
+    // In breadth-first order every node comes after its parent, so going through the nodes
+    // backwards adds each subtree to its parent once it is complete.
+    var order = new ArrayList<Node>();
+    order.add(root);
+    for (int k = 0; k < order.size(); k++) {
+      Node n = order.get(k);
+      n.total = n.self;
+      if (n.children != null) {
+        for (Node child : n.children) {
+          if (child != null)
+            order.add(child);
+        }
+      }
+    }
+    for (int k = order.size() - 1; k > 0; k--) {
+      Node n = order.get(k);
+      n.parent.total += n.total;
+    }
+  }
+
+  /**
+   * A node of the calling context tree.
+   */
+  private static final class Node {
+    final int function;
+    final Node parent;
+    Node[] children;
+    long self;
+    long total;
+
+    Node(int function, Node parent) {
+      this.function = function;
+      this.parent = parent;
+    }
+  }
+}
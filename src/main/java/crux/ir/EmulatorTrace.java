@@ -0,0 +1,73 @@
+package crux.ir;
+
+/**
+ * Receives an event for every instruction the {@link Emulator} executes while tracing, with the
+ * values the instruction worked on. The emulator only checks whether it has a trace at all, so a
+ * run without one does no work for it.
+ * <p>
+ * Events carry no text. The instruction at pc in the code of b tells what the values are, and
+ * {@link #values(Bytecode, int)} tells how many:
+ *
+ * <pre>
+ * NOP                          none
+ * ADD ... DIV, GE ... NE       left, right
+ * CONST, COPY, LOAD, LOAD_BOOL the value
+ * NOT                          the result
+ * JUMP                         the predicate
+ * ADDR, ADDR_IDX               the address
+ * STORE                        address, value
+ * RETURN                       the returned value
+ * CALL, builtins               the arguments
+ * </pre>
+ *
+ * GOTO and RETURN_VOID are not traced.
+ */
+interface EmulatorTrace {
+  void event(Bytecode b, int pc);
+
+  void event(Bytecode b, int pc, long x);
+
+  void event(Bytecode b, int pc, long x, long y);
+
+  /**
+   * A call of a function or builtin, whose arguments are in their slots of frame.
+   */
+  void call(Bytecode b, int pc, long[] frame);
+
+  /**
+   * Called once the run is over.
+   */
+  void flush();
+
+  /**
+   * Returns the number of values of the events of the instruction at pc.
+   */
+  static int values(Bytecode b, int pc) {
+    switch (b.code[pc]) {
+      case Bytecode.NOP:
+        return 0;
+      case Bytecode.ADD:
+      case Bytecode.SUB:
+      case Bytecode.MUL:
+      case Bytecode.DIV:
+      case Bytecode.GE:
+      case Bytecode.GT:
+      case Bytecode.LE:
+      case Bytecode.LT:
+      case Bytecode.EQ:
+      case Bytecode.NE:
+      case Bytecode.STORE:
+        return 2;
+      case Bytecode.CALL:
+      case Bytecode.READ_INT:
+      case Bytecode.READ_CHAR:
+      case Bytecode.PRINT_BOOL:
+      case Bytecode.PRINT_INT:
+      case Bytecode.PRINT_CHAR:
+      case Bytecode.PRINTLN:
+        return ((crux.ir.insts.CallInst) b.source[pc]).getParams().size();
+      default:
+        return 1;
+    }
+  }
+}
@@ -84,6 +84,13 @@ public final class Function implements Formattable, java.io.Serializable {
    */
 
   public HashMap<Instruction, String> assignLabels(int count[]) {
+    return assignLabels("L", count);
+  }
+
+  /**
+   * Assigns labels like {@link #assignLabels(int[])}, each the prefix followed by its number.
+   */
+  public HashMap<Instruction, String> assignLabels(String prefix, int count[]) {
     HashMap<Instruction, String> labelMap = new HashMap<>();
     Stack<Instruction> tovisit = new Stack<>();
     HashSet<Instruction> discovered = new HashSet<>();
@@ -97,14 +104,14 @@ public final class Function implements Formattable, java.io.Serializable {
         if (discovered.contains(child)) {
           // Found the node for a second time...need a label for merge points
           if (!labelMap.containsKey(child)) {
-            labelMap.put(child, "L" + (++count[0]));
+            labelMap.put(child, prefix + (++count[0]));
           }
         } else {
           discovered.add(child);
           tovisit.push(child);
           // Need a label for jump targets also
           if (childIdx == 1 && !labelMap.containsKey(child)) {
-            labelMap.put(child, "L" + (++count[0]));
+            labelMap.put(child, prefix + (++count[0]));
           }
         }
       }
@@ -112,6 +119,41 @@ public final class Function implements Formattable, java.io.Serializable {
     return labelMap;
   }
 
+  /**
+   * This function gives every LocalVar and AddressVar used in the CFG a dense index, so that an
+   * interpreter can keep the values of a call in a fixed-size array instead of a map. The arguments
+   * are numbered first, in order, followed by the other variables in the order they are discovered.
+   * The size of the returned map is the number of slots a frame of this function needs.
+   */
+
+  public IdentityHashMap<Variable, Integer> assignSlots() {
+    IdentityHashMap<Variable, Integer> slotMap = new IdentityHashMap<>();
+    for (LocalVar arg : mArgs) {
+      slotMap.putIfAbsent(arg, slotMap.size());
+    }
+    Stack<Instruction> tovisit = new Stack<>();
+    HashSet<Instruction> discovered = new HashSet<>();
+    if (getStart() != null) {
+      tovisit.push(getStart());
+      discovered.add(getStart());
+    }
+    while (!tovisit.isEmpty()) {
+      Instruction inst = tovisit.pop();
+      if (inst.mDestVar != null)
+        slotMap.putIfAbsent(inst.mDestVar, slotMap.size());
+      for (Value v : inst.mOperands) {
+        if (v instanceof Variable)
+          slotMap.putIfAbsent((Variable) v, slotMap.size());
+      }
+      for (int childIdx = 0; childIdx < inst.numNext(); childIdx++) {
+        Instruction child = inst.getNext(childIdx);
+        if (discovered.add(child))
+          tovisit.push(child);
+      }
+    }
+    return slotMap;
+  }
+
   @Override
   public String format(java.util.function.Function<Value, String> valueFormatter) {
     var funcName = getName();
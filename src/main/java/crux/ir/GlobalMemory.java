@@ -0,0 +1,108 @@
+package crux.ir;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The global memory of an emulated program. Addresses are byte addresses as computed by
+ * {@link crux.ir.insts.AddressAt}, all globals are laid out back to back starting at 0 and every
+ * element takes 8 bytes. The words live in one contiguous array and a bitmap records which of them
+ * have been written, so that reads from uninitialized memory can still be reported.
+ * <p>
+ * Addresses outside of the declared globals (e.g. from an out of bounds array index) are kept in a
+ * map, the same way all of memory used to be.
+ */
+final class GlobalMemory {
+  private final long[] words;
+  private final long[] written;
+  private final HashMap<Long, Long> outside = new HashMap<>();
+
+  GlobalMemory(long bytes) {
+    long numWords = bytes / 8;
+    if (numWords > Integer.MAX_VALUE - 8)
+      throw new Error("Globals too large for the emulator: " + bytes + " bytes");
+    words = new long[(int) numWords];
+    written = new long[(words.length + 63) / 64];
+  }
+
+  boolean isInitialized(long address) {
+    long index = address >> 3;
+    if (index >= 0 && index < words.length)
+      return (written[(int) index >> 6] & (1L << index)) != 0;
+    return outside.containsKey(address);
+  }
+
+  /**
+   * Returns the word at the address, or 0 if it was never written.
+   */
+  long load(long address) {
+    long index = address >> 3;
+    if (index >= 0 && index < words.length)
+      return words[(int) index];
+    return outside.getOrDefault(address, 0L);
+  }
+
+  void store(long address, long value) {
+    long index = address >> 3;
+    if (index >= 0 && index < words.length) {
+      words[(int) index] = value;
+      written[(int) index >> 6] |= 1L << index;
+    } else {
+      outside.put(address, value);
+    }
+  }
+
+  /**
+   * Writes the words that have been written, as runs of consecutive words, followed by the
+   * addresses outside of the globals. Unwritten memory is skipped a bitmap word at a time, so this
+   * takes time and space in proportion to the memory used.
+   */
+  void save(DataOutput out) throws IOException {
+    int index = 0;
+    while (index < words.length) {
+      if (written[index >> 6] >>> index == 0) {
+        // Nothing else written in this bitmap word
+        index = (index | 63) + 1;
+        continue;
+      }
+      if ((written[index >> 6] & (1L << index)) == 0) {
+        index++;
+        continue;
+      }
+      int start = index;
+      while (index < words.length && (written[index >> 6] & (1L << index)) != 0) {
+        index++;
+      }
+      out.writeInt(start);
+      out.writeInt(index - start);
+      for (int i = start; i < index; i++) {
+        out.writeLong(words[i]);
+      }
+    }
+    out.writeInt(-1);
+    out.writeInt(outside.size());
+    for (Map.Entry<Long, Long> e : outside.entrySet()) {
+      out.writeLong(e.getKey());
+      out.writeLong(e.getValue());
+    }
+  }
+
+  /**
+   * Writes the words saved by {@link #save(DataOutput)} back into this memory.
+   */
+  void restore(DataInput in) throws IOException {
+    for (int start = in.readInt(); start >= 0; start = in.readInt()) {
+      int length = in.readInt();
+      if (length < 0 || start + length > words.length)
+        throw new IOException("Saved memory does not fit the globals");
+      for (int i = start; i < start + length; i++) {
+        store(8L * i, in.readLong());
+      }
+    }
+    for (int n = in.readInt(); n > 0; n--) {
+      long address = in.readLong();
+      store(address, in.readLong());
+    }
+  }
+}
@@ -0,0 +1,583 @@
+package crux.ir;
+
+import org.objectweb.asm.ClassTooLargeException;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodTooLargeException;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import java.util.HashMap;
+import java.util.TreeSet;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * The second tier of the {@link Emulator}: translates the {@link Bytecode} of a hot function into
+ * a JVM class, which the JVM then compiles to machine code like any other. A function is compiled
+ * once it has been called {@link #CALL_THRESHOLD} times or has taken {@link #BACKEDGE_THRESHOLD}
+ * backward GOTOs, which is how every loop closes.
+ * <p>
+ * Every variable becomes a long local and global memory is reached through the {@link JitRuntime}
+ * of the run. The class of a function has two entry points:
+ *
+ * <pre>
+ * {@code
+ * public static long call(JitRuntime rt, long arg1, ..., long argn)
+ * public long enter(JitRuntime rt, long[] frame, int pc)
+ * }
+ * </pre>
+ *
+ * Compiled code calls other functions through call(), so their classes are generated when the JVM
+ * first resolves such a call. The interpreter uses enter(), with pc 0 for a call or with the target
+ * of a backward GOTO to continue a running loop in compiled code.
+ * <p>
+ * A function that cannot be compiled (the JVM limits the size of a method) gets a class whose
+ * call() goes back to the interpreter.
+ * <p>
+ * There is one compiler per {@link DecodedProgram}, and the runs of the program, which may be on
+ * different threads, share its classes. Each run counts calls and backedges in a {@link Session}
+ * of its own.
+ */
+final class JitCompiler {
+  static final int CALL_THRESHOLD = 1000;
+  static final int BACKEDGE_THRESHOLD = 10000;
+  /** A long takes two of the 255 parameter slots of a method, the runtime one. */
+  static final int MAX_ARGS = 127;
+
+  private static final String PACKAGE = "crux/jit/";
+  private static final String RUNTIME = Type.getInternalName(JitRuntime.class);
+  private static final String CODE = Type.getInternalName(JitRuntime.Code.class);
+  private static final String ENTER = "(L" + RUNTIME + ";[JI)J";
+
+  private final Bytecode[] functions;
+  private final HashMap<String, Integer> indices = new HashMap<>();
+  private final Loader loader = new Loader();
+  private final JitRuntime.Code[] compiled;
+  /** Functions whose class goes back to the interpreter, set while the loader is locked. */
+  private final boolean[] interpreted;
+
+  JitCompiler(Bytecode[] functions) {
+    this.functions = functions;
+    for (Bytecode b : functions) {
+      indices.put(b.function.getName(), b.index);
+    }
+    compiled = new JitRuntime.Code[functions.length];
+    interpreted = new boolean[functions.length];
+  }
+
+  /**
+   * Starts the JIT of a run with the given runtime.
+   */
+  Session session(JitRuntime runtime) {
+    return new Session(runtime);
+  }
+
+  /**
+   * Returns the compiled code of the function, or null if it is to be interpreted. The code is
+   * shared by all runs, as it gets the state of a run from its {@link JitRuntime}.
+   */
+  private synchronized JitRuntime.Code compile(int function) {
+    if (compiled[function] == null && !interpreted[function]) {
+      try {
+        Class<?> c = loader.loadClass(className(functions[function]).replace('/', '.'));
+        if (!interpreted[function])
+          compiled[function] = (JitRuntime.Code) c.getConstructor().newInstance();
+      } catch (ReflectiveOperationException e) {
+        throw new Error(
+            "Cannot load compiled function " + functions[function].function.getName(), e);
+      }
+    }
+    return compiled[function];
+  }
+
+  /**
+   * The JIT of one run: how often it has called its functions and taken their backedges, and the
+   * code it got so far. The counts are per run, so a function is only compiled if it is hot in
+   * one of them.
+   */
+  final class Session {
+    final JitRuntime runtime;
+    private final int[] calls = new int[functions.length];
+    private final int[] backedges = new int[functions.length];
+    private final JitRuntime.Code[] code = new JitRuntime.Code[functions.length];
+    private final boolean[] interpreted = new boolean[functions.length];
+    /** How often the interpreter continued a loop in compiled code. */
+    int osrEntries = 0;
+
+    private Session(JitRuntime runtime) {
+      this.runtime = runtime;
+    }
+
+    /**
+     * Counts a call of the function from the interpreter and returns its compiled code, or null if
+     * it is to be interpreted.
+     */
+    JitRuntime.Code call(int function) {
+      if (code[function] == null && !interpreted[function]
+          && ++calls[function] >= CALL_THRESHOLD)
+        compile(function);
+      return code[function];
+    }
+
+    /**
+     * Counts a backward GOTO in the function and returns its compiled code, or null if it is to be
+     * interpreted.
+     */
+    JitRuntime.Code backedge(int function) {
+      if (code[function] == null && !interpreted[function]
+          && ++backedges[function] >= BACKEDGE_THRESHOLD)
+        compile(function);
+      return code[function];
+    }
+
+    private void compile(int function) {
+      code[function] = JitCompiler.this.compile(function);
+      interpreted[function] = code[function] == null;
+    }
+
+    /**
+     * Returns whether the run got compiled code for the function from the interpreter.
+     */
+    boolean isCompiled(int function) {
+      return code[function] != null;
+    }
+  }
+
+  /**
+   * Returns whether the function got a class that goes back to the interpreter, as it could not be
+   * compiled.
+   */
+  synchronized boolean isStub(int function) {
+    return interpreted[function];
+  }
+
+  private static String className(Bytecode b) {
+    return PACKAGE + b.function.getName();
+  }
+
+  private static String callDescriptor(int nargs) {
+    return "(L" + RUNTIME + ";" + "J".repeat(nargs) + ")J";
+  }
+
+  /**
+   * Defines the class of a function the first time it is asked for.
+   */
+  private final class Loader extends ClassLoader {
+    Loader() {
+      super(JitCompiler.class.getClassLoader());
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+      Integer index = name.startsWith("crux.jit.") ? indices.get(name.substring(9)) : null;
+      if (index == null)
+        throw new ClassNotFoundException(name);
+      Bytecode b = functions[index];
+      byte[] bytes = null;
+      // A method has at most 65535 locals, each variable takes two
+      if (4 + 2 * b.frameSize <= 0xFFFF) {
+        try {
+          bytes = new Translator(b).translate();
+        } catch (MethodTooLargeException | ClassTooLargeException e) {
+          bytes = null;
+        }
+      }
+      if (bytes == null) {
+        interpreted[index] = true;
+        bytes = stub(b);
+      }
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+
+  private static ClassWriter classWriter() {
+    return new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+      @Override
+      protected String getCommonSuperClass(String type1, String type2) {
+        // The generated code never merges different reference types
+        return "java/lang/Object";
+      }
+    };
+  }
+
+  /**
+   * Generates the class of a function that is not compiled.
+   */
+  private static byte[] stub(Bytecode b) {
+    var cw = classWriter();
+    cw.visit(V11, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className(b), null, "java/lang/Object", null);
+    int nargs = b.function.getArguments().size();
+    if (nargs <= MAX_ARGS) {
+      var mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "call", callDescriptor(nargs), null, null);
+      mv.visitCode();
+      mv.visitVarInsn(ALOAD, 0);
+      pushInt(mv, b.instructions);
+      mv.visitMethodInsn(INVOKEVIRTUAL, RUNTIME, "charge", "(I)V", false);
+      mv.visitVarInsn(ALOAD, 0);
+      interpret(mv, b.index, nargs, 1);
+      mv.visitInsn(LRETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    }
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  /**
+   * Emits a call of {@link JitRuntime#interpret}, with the runtime already on the stack and the
+   * arguments in nargs long locals from the given one on.
+   */
+  private static void interpret(MethodVisitor mv, int function, int nargs, int firstLocal) {
+    pushInt(mv, function);
+    pushInt(mv, nargs);
+    mv.visitIntInsn(NEWARRAY, T_LONG);
+    for (int j = 0; j < nargs; j++) {
+      mv.visitInsn(DUP);
+      pushInt(mv, j);
+      mv.visitVarInsn(LLOAD, firstLocal + 2 * j);
+      mv.visitInsn(LASTORE);
+    }
+    mv.visitMethodInsn(INVOKEVIRTUAL, RUNTIME, "interpret", "(I[J)J", false);
+  }
+
+  private static void pushInt(MethodVisitor mv, int val) {
+    if (val >= -1 && val <= 5)
+      mv.visitInsn(ICONST_0 + val);
+    else if (val >= Byte.MIN_VALUE && val <= Byte.MAX_VALUE)
+      mv.visitIntInsn(BIPUSH, val);
+    else if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE)
+      mv.visitIntInsn(SIPUSH, val);
+    else
+      mv.visitLdcInsn(val);
+  }
+
+  private static void pushLong(MethodVisitor mv, long val) {
+    if (val == 0 || val == 1)
+      mv.visitInsn(LCONST_0 + (int) val);
+    else
+      mv.visitLdcInsn(val);
+  }
+
+  /**
+   * Generates the class of one function.
+   */
+  private final class Translator {
+    private final Bytecode b;
+    private final int[] code;
+    private final int nargs;
+    /** The entries of enter(): the start and every target of a backward GOTO. */
+    private final TreeSet<Integer> entries = new TreeSet<>();
+    /** The estimated stack use of call(), see {@link JitRuntime#enter(int)}. */
+    private final int cost;
+    private MethodVisitor mv;
+    private Label[] labels;
+    private int rtLocal;
+    private int firstLocal;
+    private boolean countsStack;
+
+    Translator(Bytecode b) {
+      this.b = b;
+      code = b.code;
+      nargs = b.function.getArguments().size();
+      cost = 64 + 16 * b.frameSize;
+      entries.add(0);
+      for (int pc = 0; pc < code.length; pc += Bytecode.length(code, pc)) {
+        if (code[pc] == Bytecode.GOTO && code[pc + 1] <= pc)
+          entries.add(code[pc + 1]);
+      }
+    }
+
+    byte[] translate() {
+      var cw = classWriter();
+      cw.visit(V11, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className(b), null, "java/lang/Object",
+          new String[] {CODE});
+
+      mv = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+      mv.visitCode();
+      mv.visitVarInsn(ALOAD, 0);
+      mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+      mv.visitInsn(RETURN);
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+
+      if (nargs <= MAX_ARGS) {
+        mv = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "call", callDescriptor(nargs), null, null);
+        translateCall();
+      }
+      mv = cw.visitMethod(ACC_PUBLIC, "enter", ENTER, null, null);
+      translateEnter();
+
+      cw.visitEnd();
+      return cw.toByteArray();
+    }
+
+    private void translateCall() {
+      labels = new Label[code.length];
+      rtLocal = 0;
+      firstLocal = 1;
+      countsStack = true;
+      mv.visitCode();
+      // The interpreter charges the calls it makes itself, compiled code when they arrive
+      charge(b.instructions);
+      // Too deep for the JVM stack: run this call in the interpreter
+      Label body = new Label();
+      mv.visitVarInsn(ALOAD, rtLocal);
+      pushInt(mv, cost);
+      mv.visitMethodInsn(INVOKEVIRTUAL, RUNTIME, "enter", "(I)Z", false);
+      mv.visitJumpInsn(IFNE, body);
+      mv.visitVarInsn(ALOAD, rtLocal);
+      interpret(mv, b.index, nargs, firstLocal);
+      leaveAndReturn();
+      mv.visitLabel(body);
+      // Variables start out as 0, like the slots of an interpreter frame
+      for (int slot = nargs; slot < b.frameSize; slot++) {
+        mv.visitInsn(LCONST_0);
+        mv.visitVarInsn(LSTORE, local(slot));
+      }
+      translateBody();
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    }
+
+    private void translateEnter() {
+      rtLocal = 1;
+      firstLocal = 4;
+      countsStack = false;
+      mv.visitCode();
+      for (int slot = 0; slot < b.frameSize; slot++) {
+        mv.visitVarInsn(ALOAD, 2);
+        pushInt(mv, slot);
+        mv.visitInsn(LALOAD);
+        mv.visitVarInsn(LSTORE, local(slot));
+      }
+      labels = new Label[code.length];
+      int[] keys = entries.stream().mapToInt(Integer::intValue).toArray();
+      Label[] targets = new Label[keys.length];
+      for (int j = 0; j < keys.length; j++) {
+        targets[j] = label(keys[j]);
+      }
+      Label invalid = new Label();
+      mv.visitVarInsn(ILOAD, 3);
+      mv.visitLookupSwitchInsn(invalid, keys, targets);
+      mv.visitLabel(invalid);
+      mv.visitTypeInsn(NEW, "java/lang/IllegalArgumentException");
+      mv.visitInsn(DUP);
+      mv.visitMethodInsn(INVOKESPECIAL, "java/lang/IllegalArgumentException", "<init>", "()V",
+          false);
+      mv.visitInsn(ATHROW);
+      translateBody();
+      mv.visitMaxs(0, 0);
+      mv.visitEnd();
+    }
+
+    private int local(int slot) {
+      return firstLocal + 2 * slot;
+    }
+
+    private Label label(int pc) {
+      if (labels[pc] == null)
+        labels[pc] = new Label();
+      return labels[pc];
+    }
+
+    private void load(int slot) {
+      mv.visitVarInsn(LLOAD, local(slot));
+    }
+
+    private void store(int slot) {
+      mv.visitVarInsn(LSTORE, local(slot));
+    }
+
+    private void charge(int instructions) {
+      mv.visitVarInsn(ALOAD, rtLocal);
+      pushInt(mv, instructions);
+      runtime("charge", "(I)V");
+    }
+
+    private void runtime(String method, String descriptor) {
+      mv.visitMethodInsn(INVOKEVIRTUAL, RUNTIME, method, descriptor, false);
+    }
+
+    /**
+     * Returns the long on the stack from the function.
+     */
+    private void leaveAndReturn() {
+      if (countsStack) {
+        mv.visitVarInsn(ALOAD, rtLocal);
+        pushInt(mv, cost);
+        runtime("leave", "(I)V");
+      }
+      mv.visitInsn(LRETURN);
+    }
+
+    /**
+     * Pushes 1 if the jump emitted by branch is taken and 0 if not.
+     */
+    private void toLong(int branch) {
+      Label one = new Label();
+      Label done = new Label();
+      mv.visitJumpInsn(branch, one);
+      mv.visitInsn(LCONST_0);
+      mv.visitJumpInsn(GOTO, done);
+      mv.visitLabel(one);
+      mv.visitInsn(LCONST_1);
+      mv.visitLabel(done);
+    }
+
+    private void translateBody() {
+      for (int pc = 0; pc < code.length; pc += Bytecode.length(code, pc)) {
+        if (labels[pc] != null || entries.contains(pc))
+          mv.visitLabel(label(pc));
+        switch (code[pc]) {
+          case Bytecode.NOP:
+            break;
+          case Bytecode.ADD:
+          case Bytecode.SUB:
+          case Bytecode.MUL:
+          case Bytecode.DIV: {
+            load(code[pc + 2]);
+            load(code[pc + 3]);
+            int[] ops = {LADD, LSUB, LMUL, LDIV};
+            mv.visitInsn(ops[code[pc] - Bytecode.ADD]);
+            store(code[pc + 1]);
+            break;
+          }
+          case Bytecode.GE:
+          case Bytecode.GT:
+          case Bytecode.LE:
+          case Bytecode.LT:
+          case Bytecode.EQ:
+          case Bytecode.NE: {
+            load(code[pc + 2]);
+            load(code[pc + 3]);
+            mv.visitInsn(LCMP);
+            int[] branches = {IFGE, IFGT, IFLE, IFLT, IFEQ, IFNE};
+            toLong(branches[code[pc] - Bytecode.GE]);
+            store(code[pc + 1]);
+            break;
+          }
+          case Bytecode.CONST:
+            pushLong(mv, b.constants[code[pc + 2]]);
+            store(code[pc + 1]);
+            break;
+          case Bytecode.COPY:
+            load(code[pc + 2]);
+            store(code[pc + 1]);
+            break;
+          case Bytecode.NOT:
+            load(code[pc + 2]);
+            mv.visitInsn(LCONST_0);
+            mv.visitInsn(LCMP);
+            toLong(IFEQ);
+            store(code[pc + 1]);
+            break;
+          case Bytecode.JUMP:
+            load(code[pc + 1]);
+            mv.visitInsn(LCONST_0);
+            mv.visitInsn(LCMP);
+            if (code[pc + 3] == 0) {
+              mv.visitJumpInsn(IFNE, label(code[pc + 2]));
+            } else {
+              Label notTaken = new Label();
+              mv.visitJumpInsn(IFEQ, notTaken);
+              charge(code[pc + 3]);
+              mv.visitJumpInsn(GOTO, label(code[pc + 2]));
+              mv.visitLabel(notTaken);
+            }
+            break;
+          case Bytecode.GOTO:
+            if (code[pc + 2] != 0)
+              charge(code[pc + 2]);
+            mv.visitJumpInsn(GOTO, label(code[pc + 1]));
+            break;
+          case Bytecode.ADDR:
+            pushLong(mv, b.constants[code[pc + 2]]);
+            store(code[pc + 1]);
+            break;
+          case Bytecode.ADDR_IDX:
+            pushLong(mv, b.constants[code[pc + 2]]);
+            pushLong(mv, 8);
+            load(code[pc + 3]);
+            mv.visitInsn(LMUL);
+            mv.visitInsn(LADD);
+            store(code[pc + 1]);
+            break;
+          case Bytecode.LOAD:
+          case Bytecode.LOAD_BOOL:
+            mv.visitVarInsn(ALOAD, rtLocal);
+            load(code[pc + 2]);
+            runtime(code[pc] == Bytecode.LOAD ? "load" : "loadBool", "(J)J");
+            store(code[pc + 1]);
+            break;
+          case Bytecode.STORE:
+            mv.visitVarInsn(ALOAD, rtLocal);
+            load(code[pc + 2]);
+            load(code[pc + 1]);
+            runtime("store", "(JJ)V");
+            break;
+          case Bytecode.CALL: {
+            int dst = code[pc + 1];
+            Bytecode callee = functions[code[pc + 2]];
+            int n = code[pc + 3];
+            mv.visitVarInsn(ALOAD, rtLocal);
+            if (n <= MAX_ARGS) {
+              for (int j = 0; j < n; j++) {
+                load(code[pc + 4 + j]);
+              }
+              mv.visitMethodInsn(INVOKESTATIC, className(callee), "call", callDescriptor(n), false);
+            } else {
+              pushInt(mv, callee.index);
+              pushInt(mv, n);
+              mv.visitIntInsn(NEWARRAY, T_LONG);
+              for (int j = 0; j < n; j++) {
+                mv.visitInsn(DUP);
+                pushInt(mv, j);
+                load(code[pc + 4 + j]);
+                mv.visitInsn(LASTORE);
+              }
+              runtime("interpret", "(I[J)J");
+            }
+            if (dst >= 0)
+              store(dst);
+            else
+              mv.visitInsn(POP2);
+            break;
+          }
+          case Bytecode.READ_INT:
+          case Bytecode.READ_CHAR:
+            mv.visitVarInsn(ALOAD, rtLocal);
+            runtime(code[pc] == Bytecode.READ_INT ? "readInt" : "readChar", "()J");
+            if (code[pc + 1] >= 0)
+              store(code[pc + 1]);
+            else
+              mv.visitInsn(POP2);
+            break;
+          case Bytecode.PRINT_BOOL:
+          case Bytecode.PRINT_INT:
+          case Bytecode.PRINT_CHAR: {
+            mv.visitVarInsn(ALOAD, rtLocal);
+            load(code[pc + 1]);
+            String[] names = {"printBool", "printInt", "printChar"};
+            runtime(names[code[pc] - Bytecode.PRINT_BOOL], "(J)V");
+            break;
+          }
+          case Bytecode.PRINTLN:
+            mv.visitVarInsn(ALOAD, rtLocal);
+            runtime("println", "()V");
+            break;
+          case Bytecode.RETURN:
+            load(code[pc + 1]);
+            leaveAndReturn();
+            break;
+          case Bytecode.RETURN_VOID:
+            mv.visitInsn(LCONST_0);
+            leaveAndReturn();
+            break;
+          default:
+            throw new Error("Unknown opcode " + code[pc]);
+        }
+      }
+    }
+  }
+}
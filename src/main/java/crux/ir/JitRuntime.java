@@ -0,0 +1,117 @@
+package crux.ir;
+
+import java.io.IOException;
+
+/**
+ * What the classes generated by {@link JitCompiler} call into: global memory, the builtin
+ * functions and the interpreter. The generated classes are defined by a class loader of their own,
+ * so they can only use public members; nothing else should call these methods.
+ * <p>
+ * Every method behaves exactly like the corresponding opcode in {@link Emulator}, down to the
+ * messages, so compiled and interpreted code can be mixed freely.
+ */
+public final class JitRuntime {
+  /**
+   * How much JVM stack the compiled calls in progress may use, in bytes. Deeper calls continue in
+   * the interpreter, which keeps its call stack on the heap.
+   */
+  static final long STACK_LIMIT = 256 * 1024;
+
+  private final Emulator emulator;
+  private final GlobalMemory memory;
+  private final EmulatorIO io;
+  private final Budget budget;
+  private long stack = 0;
+
+  JitRuntime(Emulator emulator) {
+    this.emulator = emulator;
+    memory = emulator.memory;
+    io = emulator.io;
+    budget = emulator.budget;
+  }
+
+  /**
+   * The entry of a compiled function from the interpreter.
+   */
+  public interface Code {
+    /**
+     * Runs the function with its variables set from frame, starting at pc (0 or the target of a
+     * backedge), and returns its result (0 for a void function).
+     */
+    long enter(JitRuntime rt, long[] frame, int pc);
+  }
+
+  /**
+   * Called on entry of a compiled function with its estimated stack use. Returns false if the call
+   * should go to the interpreter instead; {@link #leave(int)} must be called either way.
+   */
+  public boolean enter(int cost) {
+    stack += cost;
+    return stack <= STACK_LIMIT;
+  }
+
+  public void leave(int cost) {
+    stack -= cost;
+  }
+
+  /**
+   * Charges a call or a jump back, see {@link Budget}.
+   */
+  public void charge(int instructions) {
+    budget.charge(instructions);
+  }
+
+  public long interpret(int function, long[] args) {
+    return emulator.interpret(function, args);
+  }
+
+  public long load(long address) {
+    if (!memory.isInitialized(address))
+      io.println("Reading from uninitialized memory");
+    return memory.load(address);
+  }
+
+  public long loadBool(long address) {
+    return load(address) != 0 ? 1 : 0;
+  }
+
+  public void store(long address, long val) {
+    memory.store(address, val);
+  }
+
+  public long readInt() {
+    try {
+      io.print("int?");
+      return io.readInt();
+    } catch (IOException e) {
+      throw new Error("Error in inputting Integer.");
+    }
+  }
+
+  public long readChar() {
+    try {
+      int val = io.readChar();
+      if (val == -1)
+        throw new Error("Reading past end of stream.");
+      return val;
+    } catch (IOException e) {
+      throw new Error("Error in inputting Integer.");
+    }
+  }
+
+  public void printBool(long val) {
+    io.printBool(val != 0);
+  }
+
+  public void printInt(long val) {
+    io.printInt(val);
+  }
+
+  public void printChar(long val) {
+    io.printChar((char) val);
+  }
+
+  public void println() {
+    io.println();
+  }
+}
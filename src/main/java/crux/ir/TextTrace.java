@@ -0,0 +1,109 @@
+package crux.ir;
+
+import java.util.*;
+import java.util.function.Consumer;
+import crux.ir.insts.*;
+import crux.ast.types.*;
+
+/**
+ * Prints the events of an {@link EmulatorTrace} as the lines of the debug trace, such as
+ * {@code BinaryOperator: %3=1+2}. This is what --debug-emulator shows between the output of the
+ * program, and what {@link TraceDecoder} turns a binary trace back into.
+ */
+final class TextTrace implements EmulatorTrace {
+  private final Consumer<String> out;
+
+  TextTrace(Consumer<String> out) {
+    this.out = out;
+  }
+
+  @Override
+  public void event(Bytecode b, int pc) {
+    out.accept("Nop:");
+  }
+
+  @Override
+  public void event(Bytecode b, int pc, long x) {
+    Instruction source = b.source[pc];
+    switch (b.code[pc]) {
+      case Bytecode.CONST:
+      case Bytecode.COPY: {
+        CopyInst i = (CopyInst) source;
+        out.accept("CopyInst: " + i.getDstVar() + "=" + show(i.getSrcValue().getType(), x));
+        break;
+      }
+      case Bytecode.NOT:
+        out.accept("UnaryNotInst: " + (x != 0));
+        break;
+      case Bytecode.JUMP:
+        out.accept("Jump: " + ((JumpInst) source).getPredicate() + "=" + (x != 0));
+        break;
+      case Bytecode.ADDR:
+      case Bytecode.ADDR_IDX:
+        out.accept("AddressAt: " + ((AddressAt) source).getDst() + " = " + x);
+        break;
+      case Bytecode.LOAD:
+      case Bytecode.LOAD_BOOL: {
+        LoadInst i = (LoadInst) source;
+        out.accept("LoadInst: " + i.getDst() + "=" + show(i.getSrcAddress().getType(), x));
+        break;
+      }
+      case Bytecode.RETURN: {
+        LocalVar ret = ((ReturnInst) source).getReturnValue();
+        out.accept("ReturnInst: " + show(ret.getType(), x));
+        break;
+      }
+      default:
+        throw new Error("Unexpected trace event for opcode " + b.code[pc]);
+    }
+  }
+
+  @Override
+  public void event(Bytecode b, int pc, long x, long y) {
+    Instruction source = b.source[pc];
+    switch (b.code[pc]) {
+      case Bytecode.STORE: {
+        StoreInst i = (StoreInst) source;
+        out.accept("StoreInst: *" + x + "=" + show(i.getSrcValue().getType(), y));
+        break;
+      }
+      case Bytecode.ADD:
+      case Bytecode.SUB:
+      case Bytecode.MUL:
+      case Bytecode.DIV: {
+        BinaryOperator i = (BinaryOperator) source;
+        out.accept("BinaryOperator: " + i.getDst() + "=" + x + i.getOperator() + y);
+        break;
+      }
+      default: {
+        CompareInst i = (CompareInst) source;
+        out.accept("CompareInst: " + i.getDst() + "=" + x + i.getPredicate() + y);
+        break;
+      }
+    }
+  }
+
+  @Override
+  public void call(Bytecode b, int pc, long[] frame) {
+    CallInst i = (CallInst) b.source[pc];
+    List<LocalVar> params = i.getParams();
+    String[] shown = new String[params.size()];
+    Iterator<Type> paramTypes = ((FuncType) i.getCallee().getType()).getArgs().iterator();
+    for (int j = 0; j < shown.length; j++) {
+      shown[j] = show(paramTypes.next(), frame[b.argumentSlot(pc, j)]);
+    }
+    out.accept("Calling " + i.getCallee().getName() + " with " + Arrays.toString(shown));
+  }
+
+  @Override
+  public void flush() {}
+
+  /**
+   * Booleans are kept as 0/1 in the frames; show them the way the program would print them.
+   */
+  static String show(Type t, long val) {
+    if (t instanceof BoolType)
+      return String.valueOf(val != 0);
+    return String.valueOf(val);
+  }
+}
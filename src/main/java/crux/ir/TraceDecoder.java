@@ -0,0 +1,95 @@
+package crux.ir;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Prints a trace written by {@link BinaryTrace} in the text of the debug trace, one line per
+ * event, see {@link TextTrace}. The trace only holds indices into the decoded code, so it has to
+ * be decoded with the program it was recorded from. Unlike --debug-emulator, the lines are not
+ * mixed with the output of the program.
+ */
+public final class TraceDecoder {
+  private final DecodedProgram program;
+
+  public TraceDecoder(DecodedProgram program) {
+    this.program = program;
+  }
+
+  public void decode(InputStream trace, PrintStream out) throws IOException {
+    var in = new BufferedInputStream(trace);
+    byte[] magic = in.readNBytes(BinaryTrace.MAGIC.length);
+    if (!Arrays.equals(magic, BinaryTrace.MAGIC))
+      throw new IOException("Not an emulator trace");
+    var text = new TextTrace(out::println);
+    long[] values = new long[8];
+    long[][] frames = new long[program.functions.length][];
+
+    while (true) {
+      int first = in.read();
+      if (first == -1)
+        break;
+      int function = (int) get(in, first);
+      if (function < 0 || function >= program.functions.length)
+        throw new IOException("Bad function index " + function + " in trace");
+      Bytecode b = program.functions[function];
+      int pc = (int) get(in, in.read());
+      if (pc < 0 || pc >= b.code.length || b.source[pc] == null)
+        throw new IOException("Bad pc " + pc + " of " + b.function.getName() + " in trace");
+      int n = EmulatorTrace.values(b, pc);
+      if (n > values.length)
+        values = new long[Math.max(n, 2 * values.length)];
+      for (int j = 0; j < n; j++) {
+        long v = get(in, in.read());
+        values[j] = (v >>> 1) ^ -(v & 1);
+      }
+      switch (b.code[pc]) {
+        case Bytecode.CALL:
+        case Bytecode.READ_INT:
+        case Bytecode.READ_CHAR:
+        case Bytecode.PRINT_BOOL:
+        case Bytecode.PRINT_INT:
+        case Bytecode.PRINT_CHAR:
+        case Bytecode.PRINTLN: {
+          // TextTrace reads the arguments from their slots
+          if (frames[function] == null)
+            frames[function] = new long[b.frameSize];
+          for (int j = 0; j < n; j++) {
+            frames[function][b.argumentSlot(pc, j)] = values[j];
+          }
+          text.call(b, pc, frames[function]);
+          break;
+        }
+        default:
+          if (n == 0)
+            text.event(b, pc);
+          else if (n == 1)
+            text.event(b, pc, values[0]);
+          else
+            text.event(b, pc, values[0], values[1]);
+          break;
+      }
+    }
+    out.flush();
+  }
+
+  /**
+   * Reads the rest of a varint whose first byte is given.
+   */
+  private static long get(InputStream in, int first) throws IOException {
+    long val = 0;
+    int shift = 0;
+    int b = first;
+    while (true) {
+      if (b == -1)
+        throw new EOFException("Truncated trace");
+      val |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+        return val;
+      shift += 7;
+      if (shift > 63)
+        throw new IOException("Bad varint in trace");
+      b = in.read();
+    }
+  }
+}
@@ -0,0 +1,110 @@
+package crux;
+
+import crux.ast.ParseTreeLower;
+import crux.ast.types.TypeChecker;
+import crux.ir.ASTLower;
+import crux.ir.Program;
+import crux.pt.CruxLexer;
+import crux.pt.CruxParser;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * The programs the tests and benchmarks run: the ones in src/test/resources/crux/bench by their
+ * name, the IR stage tests, sources of their own and a generated program of any size, compiled
+ * to IR.
+ */
+public final class TestPrograms {
+  /**
+   * The programs in src/test/resources/crux/bench the tests run. bigloops and logic are only
+   * timed by the benchmarks.
+   */
+  public static final List<String> BENCH = List.of("loops", "fib", "ackermann", "print", "arith");
+
+  private TestPrograms() {}
+
+  /**
+   * Returns the names of the IR stage tests, which {@link #compile} and {@link #input} accept.
+   */
+  public static List<String> stageTests() throws IOException {
+    var loader = TestPrograms.class.getClassLoader();
+    try (var index = Objects.requireNonNull(loader.getResourceAsStream("crux/stages/ir/index.txt"))) {
+      return new String(index.readAllBytes(), StandardCharsets.UTF_8).lines()
+          .filter(line -> line.endsWith(".crx"))
+          .map(line -> "stages/ir/" + line.substring(0, line.length() - 4))
+          .collect(Collectors.toList());
+    }
+  }
+
+  /**
+   * Returns the resource of a program: a bench program by its name, anything else by its path
+   * below crux/.
+   */
+  private static String resource(String name, String extension) {
+    return name.contains("/") ? String.format("crux/%s.%s", name, extension)
+        : String.format("crux/bench/%s.%s", name, extension);
+  }
+
+  /**
+   * Returns the input of a program, empty if it has none.
+   */
+  public static byte[] input(String name) throws IOException {
+    var loader = TestPrograms.class.getClassLoader();
+    try (var in = loader.getResourceAsStream(resource(name, "in"))) {
+      return in == null ? new byte[0] : in.readAllBytes();
+    }
+  }
+
+  public static Program compile(String name) throws IOException {
+    var loader = TestPrograms.class.getClassLoader();
+    var resource = resource(name, "crx");
+    try (var in = Objects.requireNonNull(loader.getResourceAsStream(resource))) {
+      return compile(CharStreams.fromStream(in), resource);
+    }
+  }
+
+  /**
+   * Compiles the source of a program, named by where it came from in errors.
+   */
+  public static Program compile(CharStream source, String where) {
+    var parser = new CruxParser(new CommonTokenStream(new CruxLexer(source)));
+    var ast = new ParseTreeLower(System.err).lower(parser.program());
+    var typeChecker = new TypeChecker();
+    typeChecker.check(ast);
+    if (!typeChecker.getErrors().isEmpty())
+      throw new IllegalStateException(where + ": " + typeChecker.getErrors());
+    return new ASTLower().lower(ast);
+  }
+
+  /**
+   * Compiles a program written out in a test.
+   */
+  public static Program compileSource(String source) {
+    return compile(CharStreams.fromString(source), "source");
+  }
+
+  /**
+   * Returns the source of a program with the given number of functions, each a loop over a global
+   * array with some arithmetic in it.
+   */
+  public static String generated(int functions) {
+    var sb = new StringBuilder("int g[64];\n");
+    for (int f = 0; f < functions; f++) {
+      sb.append("int f").append(f).append("(int x, int y) {\n")
+          .append("  int i;\n  int s;\n  s = 0;\n  i = 0;\n")
+          .append("  loop {\n    if (i >= x) {\n      break;\n    }\n")
+          .append("    s = s + g[i - (i / 64) * 64] * y + i / ").append(f % 7 + 3).append(";\n")
+          .append("    g[i - (i / 64) * 64] = s;\n")
+          .append("    i = i + 1;\n  }\n  return s;\n}\n");
+    }
+    sb.append("void main() {\n  printInt(f0(10, 3));\n}\n");
+    return sb.toString();
+  }
+}
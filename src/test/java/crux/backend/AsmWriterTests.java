@@ -0,0 +1,67 @@
+package crux.backend;
+
+import crux.TestPrograms;
+import crux.ir.Program;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+final class AsmWriterTests {
+  /**
+   * The writer puts out every line as its text, including across the ends of its buffer, which a
+   * program of 200 functions fills several times.
+   */
+  @Test
+  public void writesEveryLineAsItsText() throws Exception {
+    Program p = TestPrograms.compileSource(TestPrograms.generated(200));
+    Assembly assembly = new CodeGen(p).assemble();
+    var expected = new StringBuilder();
+    for (AsmLine line : assembly.lines) {
+      expected.append(line).append('\n');
+    }
+    var out = new ByteArrayOutputStream();
+    var writer = new AsmWriter(out);
+    writer.write(assembly);
+    writer.flush();
+    Assertions.assertTrue(out.size() > 1 << 17, "only " + out.size() + " bytes");
+    Assertions.assertEquals(expected.toString(), out.toString(StandardCharsets.US_ASCII));
+  }
+
+  /**
+   * The code generator writes to a stream it is given, and the program comes out the same as the
+   * assembly it built.
+   */
+  @Test
+  public void genCodeWritesToTheGivenStream() throws Exception {
+    Program p = TestPrograms.compile("loops");
+    var out = new ByteArrayOutputStream();
+    var codegen = new CodeGen(p);
+    codegen.setOutput(out);
+    codegen.genCode();
+    var expected = new StringBuilder();
+    for (AsmLine line : new CodeGen(p).assemble().lines) {
+      expected.append(line).append('\n');
+    }
+    Assertions.assertEquals(expected.toString(), out.toString(StandardCharsets.US_ASCII));
+    Assertions.assertTrue(expected.indexOf("    .globl main\nmain:\n") >= 0);
+  }
+
+  @Test
+  public void operandsAreInAttSyntax() {
+    Assertions.assertEquals("%r11", Operand.of(Register.R11).toString());
+    Assertions.assertEquals("%al", Operand.lowByte(Register.RAX).toString());
+    Assertions.assertEquals("$-3", Operand.immediate(-3).toString());
+    Assertions.assertEquals("-16(%rbp)", Operand.memory(-16, Register.RBP).toString());
+    Assertions.assertEquals("(%rbx, %rcx, 8)",
+        Operand.memory(0, Register.RBX, Register.RCX, 8).toString());
+    Assertions.assertEquals("8(%rbx, %rcx)",
+        Operand.memory(8, Register.RBX, Register.RCX, 1).toString());
+    Assertions.assertEquals("a@GOTPCREL(%rip)", Operand.rip("a", true).toString());
+    Assertions.assertEquals("a(%rip)", Operand.rip("a", false).toString());
+    Assertions.assertEquals("    jle L3",
+        AsmLine.conditional(AsmLine.Op.J, AsmLine.Condition.G.negate(), Operand.symbol("L3"))
+            .toString());
+  }
+}
@@ -0,0 +1,64 @@
+package crux.backend;
+
+import crux.TestPrograms;
+import crux.ir.Emulator;
+import crux.ir.EmulatorProfile;
+import crux.ir.Function;
+import crux.ir.Program;
+
+import java.io.*;
+import java.util.Iterator;
+
+/**
+ * Counts the jumps the code generated at -O1 executes on the programs in
+ * src/test/resources/crux/bench, by default all but arith, with the blocks in depth-first order,
+ * laid out by {@link BlockLayout} with its static estimates and laid out by a profile of the same
+ * run. This is not a unit test, run it by hand after {@code mvn test-compile}:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;antlr4-runtime.jar&gt;:&lt;asm.jar&gt; crux.backend.BlockLayoutBenchmark [program...]
+ * </pre>
+ *
+ * The counts come from an emulator run with profiling on the program's input, so they are exact
+ * for the code that is emitted, returns aside. Each column has the jumps executed and how many of
+ * them were taken.
+ */
+final class BlockLayoutBenchmark {
+  static final String[] PROGRAMS = {"loops", "bigloops", "fib", "ackermann", "print", "logic"};
+
+  public static void main(String[] args) throws IOException {
+    String[] programs = args.length > 0 ? args : PROGRAMS;
+    System.out.printf("%-10s %21s %21s %21s%n", "", "depth first", "static", "profile");
+    for (String name : programs) {
+      Program p = TestPrograms.compile(name);
+      var emulator = new Emulator(p, new ByteArrayInputStream(TestPrograms.input(name)),
+          OutputStream.nullOutputStream());
+      emulator.enableProfile();
+      emulator.run();
+      EmulatorProfile profile = emulator.getProfile();
+
+      var jumps = new long[3][2];
+      for (Iterator<Function> it = p.getFunctions(); it.hasNext();) {
+        Function f = it.next();
+        var fusion = new BranchFusion(new Liveness(f));
+        var selection = new InstructionSelection(new Liveness(f, fusion), fusion, true);
+        var liveness = new Liveness(f, fusion, selection);
+        var measured = new BlockLayout(liveness, fusion, profile);
+        var estimated = new BlockLayout(liveness, fusion, null);
+        add(jumps[0], measured.jumps(liveness.order));
+        add(jumps[1], measured.jumps(estimated.order));
+        add(jumps[2], measured.jumps(measured.order));
+      }
+      System.out.printf("%-10s", name);
+      for (long[] j : jumps) {
+        System.out.printf(" %10d %10d", j[0], j[1]);
+      }
+      System.out.println();
+    }
+  }
+
+  private static void add(long[] total, long[] jumps) {
+    total[0] += jumps[0];
+    total[1] += jumps[1];
+  }
+}
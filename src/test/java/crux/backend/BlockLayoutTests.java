@@ -0,0 +1,64 @@
+package crux.backend;
+
+import crux.TestPrograms;
+import crux.ir.Emulator;
+import crux.ir.Function;
+import crux.ir.Program;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+
+final class BlockLayoutTests {
+  /**
+   * The layout only reorders the instructions: every one of them is emitted exactly once, and the
+   * function still starts with its first instruction.
+   */
+  @Test
+  public void layoutKeepsEveryInstructionAndTheEntry() throws Exception {
+    for (Program p : RegisterAllocationTests.codegenTests()) {
+      for (Iterator<Function> it = p.getFunctions(); it.hasNext();) {
+        Function f = it.next();
+        var fusion = new BranchFusion(new Liveness(f));
+        var liveness = new Liveness(f, fusion);
+        var layout = new BlockLayout(liveness, fusion, null);
+        Assertions.assertEquals(liveness.order.size(), layout.order.size(), f.getName());
+        Assertions.assertEquals(liveness.order.size(), new HashSet<>(layout.order).size());
+        if (!layout.order.isEmpty())
+          Assertions.assertSame(liveness.order.get(0), layout.order.get(0), f.getName());
+      }
+    }
+  }
+
+  /**
+   * Rotating the loops of the loops benchmark saves a jump per iteration over the depth-first
+   * order, in the jumps executed on the profiled run, and no more are taken.
+   */
+  @Test
+  public void rotatedLoopsExecuteFewerJumps() throws Exception {
+    Program p = TestPrograms.compile("loops");
+    var emulator = new Emulator(p, new ByteArrayInputStream(TestPrograms.input("loops")),
+        OutputStream.nullOutputStream());
+    emulator.enableProfile();
+    Assertions.assertEquals(Emulator.Outcome.FINISHED, emulator.run());
+    var before = new long[2];
+    var after = new long[2];
+    for (Iterator<Function> it = p.getFunctions(); it.hasNext();) {
+      Function f = it.next();
+      var fusion = new BranchFusion(new Liveness(f));
+      var liveness = new Liveness(f, fusion);
+      var layout = new BlockLayout(liveness, fusion, emulator.getProfile());
+      long[] dfs = layout.jumps(liveness.order);
+      long[] laid = layout.jumps(layout.order);
+      for (int i = 0; i < 2; i++) {
+        before[i] += dfs[i];
+        after[i] += laid[i];
+      }
+    }
+    Assertions.assertTrue(after[0] < before[0] * 3 / 4, after[0] + " of " + before[0]);
+    Assertions.assertTrue(after[1] <= before[1], after[1] + " of " + before[1]);
+  }
+}
@@ -0,0 +1,41 @@
+package crux.backend;
+
+import crux.ir.Function;
+import crux.ir.Program;
+import crux.ir.insts.CompareInst;
+import crux.ir.insts.JumpInst;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Iterator;
+
+final class BranchFusionTests {
+  /**
+   * Every comparison of the code generation tests that only decides a jump has to turn into a
+   * branch on the flags, so that no jump is left to test a boolean a comparison just produced.
+   */
+  @Test
+  public void comparisonsFeedingJumpsAreFused() throws Exception {
+    int fused = 0;
+    for (Program p : RegisterAllocationTests.codegenTests()) {
+      for (Iterator<Function> it = p.getFunctions(); it.hasNext();) {
+        Function f = it.next();
+        var fusion = new BranchFusion(new Liveness(f));
+        var liveness = new Liveness(f, fusion);
+        for (int k = 0; k < liveness.order.size(); k++) {
+          var inst = liveness.order.get(k);
+          if (inst instanceof CompareInst && fusion.isFused(inst))
+            fused++;
+          if (inst instanceof JumpInst && k > 0
+              && liveness.order.get(k - 1) instanceof CompareInst) {
+            var compare = (CompareInst) liveness.order.get(k - 1);
+            int predicate = liveness.indexOf(((JumpInst) inst).getPredicate());
+            Assertions.assertFalse(compare.getDst() == ((JumpInst) inst).getPredicate()
+                && !liveness.liveOut(k).get(predicate), f.getName() + ": " + compare);
+          }
+        }
+      }
+    }
+    Assertions.assertTrue(fused > 0);
+  }
+}
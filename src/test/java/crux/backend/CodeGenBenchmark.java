@@ -0,0 +1,93 @@
+package crux.backend;
+
+import crux.TestPrograms;
+import crux.ir.Program;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Times the code generator on a generated program of about 100k lines of assembly, split into
+ * building the {@link Assembly} and writing it out, and how building it scales with the number of
+ * functions generated at a time. This is not a unit test, run it by hand after
+ * {@code mvn test-compile}:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;antlr4-runtime.jar&gt;:&lt;asm.jar&gt; crux.backend.CodeGenBenchmark [functions] [runs] [jobs]
+ * </pre>
+ *
+ * The program has the given number of functions, 2000 by default, each a loop over a global array
+ * with some arithmetic in it. It is built with 1, 2, 4 and so on jobs up to the given number,
+ * the number of processors by default, and every build has to come out the same as the one with a single job. The assembly
+ * is written to a file in the temporary directory. The median of the runs after the first few is
+ * reported.
+ */
+final class CodeGenBenchmark {
+  private static final int WARMUP = 3;
+
+  public static void main(String[] args) throws IOException {
+    int functions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    Program p = TestPrograms.compileSource(TestPrograms.generated(functions));
+    File file = File.createTempFile("codegen", ".s");
+    file.deleteOnExit();
+
+    int processors = args.length > 2 ? Integer.parseInt(args[2])
+        : Runtime.getRuntime().availableProcessors();
+    var jobs = new ArrayList<Integer>();
+    for (int j = 1; j < processors; j *= 2) {
+      jobs.add(j);
+    }
+    jobs.add(processors);
+
+    List<AsmLine> sequential = null;
+    double single = 0;
+    for (int j : jobs) {
+      var build = new long[runs];
+      var write = new long[runs];
+      int lines = 0;
+      for (int r = 0; r < WARMUP + runs; r++) {
+        long start = System.nanoTime();
+        var codegen = new CodeGen(p);
+        codegen.setJobs(j);
+        Assembly assembly = codegen.assemble();
+        long built = System.nanoTime();
+        try (var out = new FileOutputStream(file)) {
+          var writer = new AsmWriter(out);
+          writer.write(assembly);
+          writer.flush();
+        }
+        long written = System.nanoTime();
+        lines = assembly.size();
+        if (sequential == null)
+          sequential = assembly.lines;
+        else if (!text(assembly.lines).equals(text(sequential)))
+          throw new AssertionError("the code with " + j + " jobs is not the same");
+        if (r >= WARMUP) {
+          build[r - WARMUP] = built - start;
+          write[r - WARMUP] = written - built;
+        }
+      }
+      Arrays.sort(build);
+      Arrays.sort(write);
+      double median = build[runs / 2] / 1e6;
+      if (j == 1) {
+        single = median;
+        System.out.printf("%d functions, %d lines, %d bytes%n", functions, lines, file.length());
+        System.out.printf("write %8.2f ms%n", write[runs / 2] / 1e6);
+      }
+      System.out.printf("assemble with %2d jobs %8.2f ms, %.2fx%n", j, median, single / median);
+    }
+  }
+
+  private static String text(List<AsmLine> lines) {
+    var sb = new StringBuilder();
+    for (AsmLine line : lines) {
+      line.appendTo(sb);
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,34 @@
+package crux.backend;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+final class DivisionTests {
+  /**
+   * The magic numbers have to give the quotient idiv gives for every dividend, including the
+   * extremes, for small divisors of both signs and for random ones.
+   */
+  @Test
+  public void magicNumbersDivideLikeIdiv() {
+    var random = new Random(20);
+    for (int i = 0; i < 3000; i++) {
+      long d = i < 2000 ? i - 1000 : i % 2 == 0 ? random.nextInt() : random.nextLong();
+      if (Math.abs(d) < 2 || d == Long.MIN_VALUE)
+        continue;
+      long[] dividends = {0, 1, -1, d, -d, d - 1, d + 1, Long.MAX_VALUE, Long.MIN_VALUE,
+          Long.MIN_VALUE + 1, random.nextLong(), random.nextInt()};
+      for (long n : dividends) {
+        Assertions.assertEquals(n / d, Division.divide(n, d), n + " / " + d);
+      }
+    }
+  }
+
+  @Test
+  public void magicNumberOfSevenIsTheKnownOne() {
+    Division seven = Division.by(7);
+    Assertions.assertEquals(0x4924924924924925L, seven.multiplier);
+    Assertions.assertEquals(1, seven.shift);
+  }
+}
@@ -0,0 +1,111 @@
+package crux.backend;
+
+import crux.TestPrograms;
+import crux.backend.AsmLine.Condition;
+import crux.backend.AsmLine.Op;
+import crux.ir.Emulator;
+import crux.ir.Program;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+final class ElfWriterTests {
+  private static byte[] encode(AsmLine... lines) {
+    var assembly = new Assembly();
+    for (AsmLine line : lines) {
+      assembly.add(line);
+    }
+    return new Encoder(assembly).text;
+  }
+
+  private static byte[] bytes(int... values) {
+    byte[] bytes = new byte[values.length];
+    for (int b = 0; b < values.length; b++) {
+      bytes[b] = (byte) values[b];
+    }
+    return bytes;
+  }
+
+  /**
+   * The encodings are those gas picks, including the forms %rbp, %r12 and %r13 need as a base.
+   */
+  @Test
+  public void instructionsEncodeAsGasDoes() {
+    var r10 = Operand.of(Register.R10);
+    Assertions.assertArrayEquals(bytes(0x48, 0x89, 0xc7),
+        encode(AsmLine.instruction(Op.MOVQ, Operand.of(Register.RAX), Operand.of(Register.RDI))));
+    Assertions.assertArrayEquals(bytes(0x4c, 0x8b, 0x55, 0xf0),
+        encode(AsmLine.instruction(Op.MOVQ, Operand.memory(-16, Register.RBP), r10)));
+    Assertions.assertArrayEquals(bytes(0x49, 0x83, 0xc2, 0x01),
+        encode(AsmLine.instruction(Op.ADDQ, Operand.immediate(1), r10)));
+    Assertions.assertArrayEquals(bytes(0x48, 0x8d, 0x04, 0xcb),
+        encode(AsmLine.instruction(Op.LEAQ, Operand.memory(0, Register.RBX, Register.RCX, 8),
+            Operand.of(Register.RAX))));
+    Assertions.assertArrayEquals(bytes(0x4d, 0x8b, 0x6c, 0x24, 0x08),
+        encode(AsmLine.instruction(Op.MOVQ, Operand.memory(8, Register.R12),
+            Operand.of(Register.R13))));
+    Assertions.assertArrayEquals(bytes(0x49, 0x8b, 0x45, 0x00),
+        encode(AsmLine.instruction(Op.MOVQ, Operand.memory(0, Register.R13),
+            Operand.of(Register.RAX))));
+    Assertions.assertArrayEquals(bytes(0x0f, 0x9c, 0xc0, 0xc3),
+        encode(AsmLine.conditional(Op.SET, Condition.L, Operand.lowByte(Register.RAX)),
+            AsmLine.instruction(Op.RET)));
+  }
+
+  /** A branch over a number of 4-byte loads. */
+  private static byte[] branchOver(int loads) {
+    var lines = new AsmLine[loads + 2];
+    lines[0] = AsmLine.conditional(Op.J, Condition.E, Operand.symbol("L1"));
+    for (int n = 1; n <= loads; n++) {
+      lines[n] = AsmLine.instruction(Op.MOVQ, Operand.memory(-8, Register.RBP),
+          Operand.of(Register.RAX));
+    }
+    lines[loads + 1] = AsmLine.label("L1");
+    return encode(lines);
+  }
+
+  /**
+   * A jump starts out short and becomes long only where its label is out of reach of a byte.
+   */
+  @Test
+  public void jumpsAreLongOnlyWhenTheyHaveTo() {
+    Assertions.assertArrayEquals(bytes(0x74, 31 * 4), Arrays.copyOf(branchOver(31), 2));
+    Assertions.assertArrayEquals(bytes(0x0f, 0x84, 32 * 4, 0, 0, 0),
+        Arrays.copyOf(branchOver(32), 6));
+  }
+
+  /**
+   * The object of a program links with the runtime into an executable that prints what the
+   * emulator does.
+   */
+  @Test
+  public void objectLinksWithTheRuntime(@TempDir Path dir) throws Exception {
+    Program p = TestPrograms.compile("fib");
+    byte[] input = TestPrograms.input("fib");
+    var expected = new ByteArrayOutputStream();
+    new Emulator(p, new ByteArrayInputStream(input), expected).run();
+
+    Path object = dir.resolve("fib.o");
+    Path executable = dir.resolve("fib");
+    var codegen = new CodeGen(TestPrograms.compile("fib"));
+    codegen.setObjectOutput(true);
+    codegen.setOutput(object);
+    codegen.genCode();
+    Process build = new ProcessBuilder("gcc", object.toString(), "src/runtime/runtime.c", "-o",
+        executable.toString()).inheritIO().start();
+    Assertions.assertEquals(0, build.waitFor(), "linking failed");
+
+    Process run = new ProcessBuilder(executable.toString()).start();
+    run.getOutputStream().write(input);
+    run.getOutputStream().close();
+    String actual = new String(run.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+    run.waitFor();
+    Assertions.assertEquals(expected.toString(StandardCharsets.UTF_8), actual);
+  }
+}
@@ -0,0 +1,60 @@
+package crux.backend;
+
+import crux.TestPrograms;
+import crux.ir.Program;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+final class FunctionCodeGenTests {
+  private static String text(Assembly assembly) {
+    var sb = new StringBuilder();
+    for (AsmLine line : assembly.lines) {
+      line.appendTo(sb);
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Functions generated at the same time come out in the order of the source, with the same code
+   * and the same report as when they are generated one after the other.
+   */
+  @Test
+  public void parallelCodeIsTheSameAsSequential() {
+    Program p = TestPrograms.compileSource(TestPrograms.generated(200));
+    String[] code = new String[2];
+    String[] report = new String[2];
+    for (int run = 0; run < 2; run++) {
+      var codegen = new CodeGen(p);
+      codegen.setJobs(run == 0 ? 1 : 4);
+      var out = new ByteArrayOutputStream();
+      codegen.setAllocationReport(new PrintStream(out, true, StandardCharsets.UTF_8));
+      code[run] = text(codegen.assemble());
+      report[run] = out.toString(StandardCharsets.UTF_8);
+    }
+    Assertions.assertEquals(code[0], code[1]);
+    Assertions.assertEquals(report[0], report[1]);
+    Assertions.assertTrue(report[1].startsWith("f0: "), report[1]);
+  }
+
+  /**
+   * The labels within a function are numbered from 1 and named after it, so they cannot clash
+   * with the labels of other functions or with the functions themselves.
+   */
+  @Test
+  public void labelsAreLocalToTheirFunction() throws Exception {
+    Assembly assembly = new CodeGen(TestPrograms.compile("ackermann")).assemble();
+    String function = null;
+    for (AsmLine line : assembly.lines) {
+      if (line.kind == AsmLine.Kind.GLOBAL)
+        function = line.name;
+      else if (line.kind == AsmLine.Kind.LABEL && !line.name.equals(function))
+        Assertions.assertTrue(line.name.startsWith(".L" + function + "."), line.name);
+    }
+    Assertions.assertTrue(text(assembly).contains(".Lack.1:"));
+  }
+}
@@ -0,0 +1,105 @@
+package crux.backend;
+
+import crux.TestPrograms;
+import crux.ir.Function;
+import crux.ir.Program;
+import crux.ir.Variable;
+import crux.ir.insts.CopyInst;
+import crux.ir.insts.LoadInst;
+import crux.ir.insts.StoreInst;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+final class InstructionSelectionTests {
+  /**
+   * The instructions folded into a tree must not be read from anywhere else, since they no longer
+   * write their variable, and the code generation tests are expected to fold some constants into
+   * immediates.
+   */
+  @Test
+  public void foldedInstructionsAreOnlyReadByTheirTree() throws Exception {
+    int constants = 0;
+    for (Program p : RegisterAllocationTests.codegenTests()) {
+      for (Iterator<Function> it = p.getFunctions(); it.hasNext();) {
+        Function f = it.next();
+        var fusion = new BranchFusion(new Liveness(f));
+        var selection = new InstructionSelection(new Liveness(f, fusion), fusion, true);
+        var liveness = new Liveness(f, fusion, selection);
+        var unwritten = new HashSet<Variable>();
+        for (var inst : liveness.order) {
+          if (selection.isFolded(inst)) {
+            Assertions.assertNull(selection.tree(inst));
+            if (inst instanceof CopyInst) {
+              unwritten.add(((CopyInst) inst).getDstVar());
+              if (!(((CopyInst) inst).getSrcValue() instanceof Variable))
+                constants++;
+            }
+          }
+        }
+        for (int k = 0; k < liveness.order.size(); k++) {
+          for (int u : liveness.uses(k)) {
+            Assertions.assertFalse(unwritten.contains(liveness.variables.get(u)),
+                f.getName() + ": " + liveness.variables.get(u));
+          }
+        }
+      }
+    }
+    Assertions.assertTrue(constants > 0);
+  }
+
+  /**
+   * The loads and stores of array elements in the code generation tests should take the address
+   * of the element in the instruction, rather than compute it into a register first.
+   */
+  @Test
+  public void arrayElementsAreAddressedByTheirAccess() throws Exception {
+    int indexed = 0;
+    for (Program p : RegisterAllocationTests.codegenTests()) {
+      for (Iterator<Function> it = p.getFunctions(); it.hasNext();) {
+        Function f = it.next();
+        var fusion = new BranchFusion(new Liveness(f));
+        var selection = new InstructionSelection(new Liveness(f, fusion), fusion, true);
+        for (var inst : new Liveness(f, fusion, selection).order) {
+          Tree t = selection.tree(inst);
+          if (t == null || !(inst instanceof StoreInst || inst instanceof LoadInst))
+            continue;
+          Tree address = t.kid(inst instanceof StoreInst ? 1 : 0);
+          if (address.tile[Tile.Goal.ADDR.ordinal()] == Tile.ADDR_INDEX)
+            indexed++;
+        }
+      }
+    }
+    Assertions.assertTrue(indexed > 0);
+  }
+
+  /**
+   * The arrays the matrix product of the loops benchmark indexes in its loops get their addresses
+   * hoisted, and the instructions that index them read the hoisted addresses.
+   */
+  @Test
+  public void arraysIndexedInLoopsHaveTheirAddressesHoisted() throws Exception {
+    Program p = TestPrograms.compile("loops");
+    for (Iterator<Function> it = p.getFunctions(); it.hasNext();) {
+      Function f = it.next();
+      if (!f.getName().equals("multiply"))
+        continue;
+      var fusion = new BranchFusion(new Liveness(f));
+      var selection = new InstructionSelection(new Liveness(f, fusion), fusion, true, false);
+      var names = new HashSet<String>();
+      for (var global : selection.hoisted()) {
+        names.add(global.getName());
+      }
+      Assertions.assertEquals(Set.of("a", "b", "c"), names);
+      var liveness = new Liveness(f, fusion, selection);
+      Assertions.assertEquals(f.getArguments().size() + 3, liveness.definedOnEntry());
+      for (int v = 0; v < liveness.definedOnEntry(); v++) {
+        Assertions.assertEquals(v >= f.getArguments().size(), liveness.isHoisted(v));
+        Assertions.assertTrue(liveness.liveIn(0).get(v) || v < f.getArguments().size());
+      }
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package crux.backend;
+
+import crux.TestPrograms;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Times the executables built from the programs in src/test/resources/crux/bench and counts the
+ * instructions the code generator emitted for them. This is not a unit test, run it by hand from
+ * the project directory after {@code mvn test-compile}, with gcc on the path:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;antlr4-runtime.jar&gt;:&lt;asm.jar&gt; crux.backend.NativeBenchmark [-O0|-O1|-O2] [--no-pic] [runs] [program...]
+ * </pre>
+ *
+ * The code is generated at -O1 unless given otherwise, position independent unless --no-pic is
+ * given, and linked with src/runtime/runtime.c. Every executable runs on the program's input a
+ * few times to warm up the caches, then the median wall-clock time of the remaining runs is
+ * reported, starting the process included.
+ */
+final class NativeBenchmark {
+  static final String[] PROGRAMS = {"loops", "bigloops", "fib", "ackermann", "print"};
+  private static final int WARMUP = 2;
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    int level = 1;
+    boolean pic = true;
+    int k = 0;
+    for (; k < args.length && args[k].startsWith("-"); k++) {
+      switch (args[k]) {
+        case "-O0":
+        case "-O1":
+        case "-O2":
+          level = args[k].charAt(2) - '0';
+          break;
+        case "--no-pic":
+          pic = false;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + args[k]);
+      }
+    }
+    int runs = k < args.length ? Integer.parseInt(args[k]) : 5;
+    String[] programs = k + 1 < args.length ? Arrays.copyOfRange(args, k + 1, args.length)
+        : PROGRAMS;
+    Path dir = Files.createTempDirectory("native");
+    for (String name : programs) {
+      var codegen = new CodeGen(TestPrograms.compile(name));
+      codegen.setOptimizationLevel(level);
+      codegen.setPositionIndependent(pic);
+      Assembly assembly = codegen.assemble();
+      int instructions = 0;
+      for (AsmLine line : assembly.lines) {
+        if (line.kind == AsmLine.Kind.INSTRUCTION)
+          instructions++;
+      }
+      Path source = dir.resolve(name + ".s");
+      Path executable = dir.resolve(name);
+      try (var out = new FileOutputStream(source.toFile())) {
+        var writer = new AsmWriter(out);
+        writer.write(assembly);
+        writer.flush();
+      }
+      Process build = new ProcessBuilder("gcc", source.toString(), "src/runtime/runtime.c", "-o",
+          executable.toString()).redirectErrorStream(true).start();
+      String messages = new String(build.getInputStream().readAllBytes());
+      if (build.waitFor() != 0)
+        throw new IllegalStateException("Building " + name + " failed:\n" + messages);
+
+      byte[] input = TestPrograms.input(name);
+      long[] times = new long[runs];
+      for (int i = 0; i < WARMUP + runs; i++) {
+        long start = System.nanoTime();
+        run(executable, input);
+        if (i >= WARMUP)
+          times[i - WARMUP] = System.nanoTime() - start;
+      }
+      Arrays.sort(times);
+      System.out.printf("%-10s %5d instructions %8.3f ms%n", name, instructions,
+          times[runs / 2] / 1e6);
+      Files.delete(source);
+      Files.delete(executable);
+    }
+    Files.delete(dir);
+  }
+
+  private static void run(Path executable, byte[] input) throws IOException, InterruptedException {
+    Process run = new ProcessBuilder(executable.toString())
+        .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+    try (var in = run.getOutputStream()) {
+      in.write(input);
+    }
+    // The exit status is whatever main left in %eax
+    run.waitFor();
+  }
+}
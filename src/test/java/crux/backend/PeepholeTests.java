@@ -0,0 +1,88 @@
+package crux.backend;
+
+import crux.TestPrograms;
+import crux.backend.AsmLine.Condition;
+import crux.backend.AsmLine.Op;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+final class PeepholeTests {
+  private static final Operand RAX = Operand.of(Register.RAX);
+  private static final Operand RCX = Operand.of(Register.RCX);
+  private static final Operand RDI = Operand.of(Register.RDI);
+  private static final Operand R10 = Operand.of(Register.R10);
+  private static final Operand SLOT = Operand.memory(-16, Register.RBP);
+
+  private static AsmLine line(Op op, Operand... operands) {
+    return AsmLine.instruction(op, operands);
+  }
+
+  private static List<String> run(AsmLine... lines) {
+    var code = new ArrayList<>(List.of(lines));
+    new Peephole(EnumSet.allOf(Peephole.Rule.class)).run(code);
+    var text = new ArrayList<String>();
+    for (AsmLine l : code) {
+      text.add(l.toString().trim());
+    }
+    return text;
+  }
+
+  /**
+   * A value stored to a slot is not loaded back, and a copy through a scratch register that is
+   * overwritten next goes straight to its destination.
+   */
+  @Test
+  public void storedValuesAreNotReloaded() {
+    Assertions.assertEquals(List.of("movq %r10, -16(%rbp)", "addq $1, %r10"),
+        run(line(Op.MOVQ, R10, SLOT), line(Op.MOVQ, SLOT, R10),
+            line(Op.ADDQ, Operand.immediate(1), R10)));
+    Assertions.assertEquals(List.of("movq %rax, %rdi", "call f"),
+        run(line(Op.MOVQ, RAX, RCX), line(Op.MOVQ, RCX, RDI), AsmLine.call("f", 1)));
+  }
+
+  /**
+   * A copy is kept where the register it goes through is read afterwards, here as an argument of
+   * the call.
+   */
+  @Test
+  public void copiesToRegistersThatAreReadAreKept() {
+    Assertions.assertEquals(List.of("movq %rax, %rcx", "movq %rcx, %rdi", "call f"),
+        run(line(Op.MOVQ, RAX, RCX), line(Op.MOVQ, RCX, RDI), AsmLine.call("f", 4)));
+  }
+
+  /**
+   * A zero is loaded with xor only where the flags it clobbers are not read. A jump to the next
+   * label goes away and a branch over a jump becomes the opposite branch.
+   */
+  @Test
+  public void flagsAndBranches() {
+    var cmp = line(Op.CMPQ, RCX, RDI);
+    var zero = line(Op.MOVQ, Operand.immediate(0), RAX);
+    Assertions.assertEquals(
+        List.of("cmpq %rcx, %rdi", "movq $0, %rax", "jl L1", "xorq %rax, %rax", "L1:"),
+        run(cmp, zero, AsmLine.conditional(Op.J, Condition.L, Operand.symbol("L1")), zero,
+            line(Op.JMP, Operand.symbol("L1")), AsmLine.label("L1")));
+    Assertions.assertEquals(List.of("cmpq %rcx, %rdi", "jle L2", "L1:"),
+        run(cmp, AsmLine.conditional(Op.J, Condition.G, Operand.symbol("L1")),
+            line(Op.JMP, Operand.symbol("L2")), AsmLine.label("L1")));
+  }
+
+  /**
+   * At -O0 every value goes through a slot, so most of the loads the peephole pass takes out are
+   * of a value just stored.
+   */
+  @Test
+  public void stackCodeGetsShorter() throws Exception {
+    var codegen = new CodeGen(TestPrograms.compile("loops"));
+    codegen.setOptimizationLevel(0);
+    codegen.setPeepholeRules(List.of());
+    Assembly plain = codegen.assemble();
+    codegen.setPeepholeRules(List.of("store-reload", "copy-propagation"));
+    Assembly optimized = codegen.assemble();
+    int before = plain.instructions(0, plain.size());
+    int after = optimized.instructions(0, optimized.size());
+    Assertions.assertTrue(after < before * 19 / 20, after + " of " + before);
+  }
+}
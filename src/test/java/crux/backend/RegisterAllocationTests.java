@@ -0,0 +1,135 @@
+package crux.backend;
+
+import crux.ir.Function;
+import crux.ir.Program;
+import crux.ir.Variable;
+import crux.ir.insts.CallInst;
+import crux.ir.insts.CopyInst;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+final class RegisterAllocationTests {
+  /**
+   * Allocates the functions of every code generation test and checks the result against the live
+   * variables: no two variables that are live at the same time may share a register, and no value
+   * that is live across a call may be in a caller-saved register.
+   */
+  @Test
+  public void linearScanKeepsLiveVariablesApart() throws Exception {
+    for (Program p : codegenTests()) {
+      for (Iterator<Function> it = p.getFunctions(); it.hasNext();) {
+        var liveness = new Liveness(it.next());
+        check(liveness, new LinearScan(liveness).allocate());
+      }
+    }
+  }
+
+  @Test
+  public void graphColoringKeepsLiveVariablesApart() throws Exception {
+    for (Program p : codegenTests()) {
+      for (Iterator<Function> it = p.getFunctions(); it.hasNext();) {
+        var liveness = new Liveness(it.next());
+        check(liveness, new GraphColoring(liveness).allocate());
+      }
+    }
+  }
+
+  /**
+   * The copies ASTLower emits for assignments mostly connect variables that do not interfere, so
+   * graph coloring has to get rid of most of them.
+   */
+  @Test
+  public void graphColoringCoalescesCopies() throws Exception {
+    int moves = 0;
+    int eliminated = 0;
+    for (Program p : codegenTests()) {
+      for (Iterator<Function> it = p.getFunctions(); it.hasNext();) {
+        var liveness = new Liveness(it.next());
+        var allocation = new GraphColoring(liveness).allocate();
+        for (int k = 0; k < liveness.order.size(); k++) {
+          if (liveness.order.get(k) instanceof CopyInst && liveness.uses(k).length == 1) {
+            moves++;
+            Variable src = liveness.variables.get(liveness.uses(k)[0]);
+            Variable dst = liveness.variables.get(liveness.def(k));
+            if (allocation.location(src).equals(allocation.location(dst)))
+              eliminated++;
+          }
+        }
+      }
+    }
+    Assertions.assertTrue(eliminated * 10 >= moves * 9, eliminated + " of " + moves);
+  }
+
+  private static void check(Liveness liveness, Allocation allocation) {
+    String function = liveness.function.getName();
+    for (int k = 0; k < liveness.order.size(); k++) {
+      var live = (BitSet) liveness.liveOut(k).clone();
+      if (liveness.def(k) >= 0)
+        live.set(liveness.def(k));
+      assertDistinct(liveness, allocation, live, function);
+      assertDistinct(liveness, allocation, liveness.liveIn(k), function);
+      if (liveness.order.get(k) instanceof CallInst) {
+        for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+          Register r = allocation.register(liveness.variables.get(v));
+          if (v != liveness.def(k) && r != null)
+            Assertions.assertTrue(r.isCalleeSaved(), function + ": " + r);
+        }
+      }
+    }
+  }
+
+  private static void assertDistinct(Liveness liveness, Allocation allocation, BitSet live,
+      String function) {
+    var used = new HashMap<Register, Variable>();
+    for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+      Variable var = liveness.variables.get(v);
+      Register r = allocation.register(var);
+      if (r != null) {
+        Variable other = used.put(r, var);
+        Assertions.assertNull(other, function + ": " + var + " and " + other + " share " + r);
+      }
+    }
+  }
+
+  /**
+   * Reads the IR of the code generation tests. The instruction graphs are deserialized
+   * recursively, which takes more stack than a test thread has.
+   */
+  static List<Program> codegenTests() throws Exception {
+    var programs = new ArrayList<Program>();
+    var failure = new Exception[1];
+    var reader = new Thread(null, () -> {
+      try {
+        programs.addAll(readCodegenTests());
+      } catch (Exception e) {
+        failure[0] = e;
+      }
+    }, "reader", 256 << 20);
+    reader.start();
+    reader.join();
+    if (failure[0] != null)
+      throw failure[0];
+    return programs;
+  }
+
+  private static List<Program> readCodegenTests() throws IOException, ClassNotFoundException {
+    var loader = RegisterAllocationTests.class.getClassLoader();
+    var programs = new ArrayList<Program>();
+    try (var index = loader.getResourceAsStream("crux/stages/codegen/index.txt")) {
+      for (String line : new String(index.readAllBytes(), StandardCharsets.UTF_8).split("\n")) {
+        if (!line.trim().endsWith(".crx"))
+          continue;
+        String name = line.trim().replace(".crx", ".ser");
+        try (var in = new ObjectInputStream(
+            loader.getResourceAsStream("crux/stages/codegen/" + name))) {
+          programs.add((Program) in.readObject());
+        }
+      }
+    }
+    return programs;
+  }
+}
@@ -0,0 +1,59 @@
+package crux.ir;
+
+import crux.TestPrograms;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+final class BytecodeFusionTests {
+  /**
+   * Profiling interprets the plain code, so a profiled run has to end exactly like an interpreted
+   * one on the fused code: with the same output, and at an instruction limit at the same point.
+   */
+  @Test
+  public void fusedCodeMatchesPlainCode() throws IOException {
+    var names = new ArrayList<>(TestPrograms.stageTests());
+    names.addAll(TestPrograms.BENCH);
+    for (String name : names) {
+      var program = new DecodedProgram(TestPrograms.compile(name));
+      byte[] input = TestPrograms.input(name);
+      if (input.length == 0)
+        input = "20000\n".getBytes(StandardCharsets.US_ASCII);
+      for (long limit : new long[] {-1, 1000}) {
+        Assertions.assertEquals(output(program, input, true, limit),
+            output(program, input, false, limit), name + " with limit " + limit);
+      }
+    }
+  }
+
+  @Test
+  public void fusedCodeHasNoNops() throws IOException {
+    var program = new DecodedProgram(TestPrograms.compile("loops"));
+    for (Bytecode b : program.functions) {
+      for (int pc = 0; pc < b.fused.length; pc += Bytecode.length(b.code, b.plainPcs[pc])) {
+        Assertions.assertNotEquals(Bytecode.NOP, b.fused[pc]);
+      }
+    }
+  }
+
+  private static String output(DecodedProgram program, byte[] input, boolean plain, long limit) {
+    var out = new ByteArrayOutputStream();
+    var emulator = new Emulator(program, new ByteArrayInputStream(input), out);
+    emulator.disableJit();
+    if (plain)
+      emulator.enableProfile();
+    if (limit >= 0)
+      emulator.setInstructionLimit(limit);
+    String end;
+    try {
+      end = emulator.run().toString();
+    } catch (Error | RuntimeException e) {
+      // Some stage tests end in a runtime error on purpose
+      end = e.getMessage();
+    }
+    return out.toString(StandardCharsets.UTF_8) + end;
+  }
+}
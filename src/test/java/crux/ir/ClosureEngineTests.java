@@ -0,0 +1,82 @@
+package crux.ir;
+
+import crux.TestPrograms;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+final class ClosureEngineTests {
+  private static Emulator emulator(String source, String input, OutputStream out) {
+    var emulator = new Emulator(TestPrograms.compileSource(source),
+        new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII)), out);
+    emulator.useClosureEngine();
+    return emulator;
+  }
+
+  private static String run(String source, String input) {
+    var out = new ByteArrayOutputStream();
+    Assertions.assertEquals(Emulator.Outcome.FINISHED, emulator(source, input, out).run());
+    return out.toString(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * A block that ends without a jump, as a then-branch does where it meets the code after the if,
+   * goes on with the block that follows it.
+   */
+  @Test
+  public void blocksFallThroughToTheNext() {
+    String source = "void main() {\n  int i;\n  i = 0;\n"
+        + "  loop {\n    if (i >= 6) {\n      break;\n    }\n"
+        + "    if (i - (i / 2) * 2 == 0) {\n      printInt(i);\n    } else {\n"
+        + "      printChar(45);\n    }\n"
+        + "    if (i >= 3) {\n      printChar(33);\n    }\n"
+        + "    i = i + 1;\n  }\n  println();\n}\n";
+    Assertions.assertEquals("0-2-!4!-!\n", run(source, ""));
+  }
+
+  /**
+   * Break, continue and a return from inside a loop each leave their block by a GOTO of their own,
+   * and a loop that never ends is still stopped by the instruction limit, which the GOTO back
+   * charges.
+   */
+  @Test
+  public void gotosLeaveLoops() {
+    String source = "int count(int n) {\n  int i;\n  int j;\n  int s;\n  i = 0;\n  s = 0;\n"
+        + "  loop {\n    i = i + 1;\n    if (i > n) {\n      break;\n    }\n"
+        + "    if (i - (i / 3) * 3 == 0) {\n      continue;\n    }\n"
+        + "    j = 0;\n    loop {\n      if (j >= i) {\n        break;\n      }\n"
+        + "      s = s + 1;\n      j = j + 1;\n    }\n  }\n  return s;\n}\n"
+        + "int root(int n) {\n  int i;\n  i = 0;\n"
+        + "  loop {\n    if (i * i >= n) {\n      return i;\n    }\n"
+        + "    if (i > n) {\n      break;\n    }\n    i = i + 1;\n  }\n  return 0;\n}\n"
+        + "void main() {\n  printInt(count(10));\n  printInt(root(50));\n}\n";
+    Assertions.assertEquals("378", run(source, ""));
+
+    var endless = emulator("void main() {\n  int i;\n  i = 1;\n"
+        + "  loop {\n    if (i == 0) {\n      break;\n    }\n    i = i + 1;\n  }\n}\n",
+        "", OutputStream.nullOutputStream());
+    endless.setInstructionLimit(100000);
+    Assertions.assertEquals(Emulator.Outcome.INSTRUCTION_LIMIT, endless.run());
+  }
+
+  /**
+   * The builtins read and print like in the emulator, including the prompt of readInt and the
+   * message about reading uninitialized memory, and reading past the input is an error.
+   */
+  @Test
+  public void builtinsBehaveAsInTheEmulator() {
+    String source = "int g[2];\nvoid main() {\n  int a;\n  int c;\n"
+        + "  a = readInt();\n  c = readChar();\n"
+        + "  printInt(a * 2);\n  printChar(c);\n  printBool(a > 40);\n  printBool(a < 0);\n"
+        + "  println();\n  g[0] = 7;\n  printInt(g[0] + g[1]);\n  println();\n"
+        + "  c = readChar();\n}\n";
+    var out = new ByteArrayOutputStream();
+    var emulator = emulator(source, "21\nx", out);
+    var error = Assertions.assertThrows(Error.class, emulator::run);
+    Assertions.assertEquals("Reading past end of stream.", error.getMessage());
+    Assertions.assertEquals("int?42xfalsefalse\nReading from uninitialized memory\n7\n",
+        out.toString(StandardCharsets.UTF_8));
+  }
+}
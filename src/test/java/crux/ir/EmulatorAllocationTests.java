@@ -0,0 +1,42 @@
+package crux.ir;
+
+import crux.TestPrograms;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+final class EmulatorAllocationTests {
+  /**
+   * Runs the same loop for a short and a long trip count. Since executing an instruction must not
+   * allocate, both runs have to allocate about the same number of bytes. The JIT is disabled, as
+   * compiling the loop allocates in the long run only.
+   */
+  @Test
+  public void arithmeticDoesNotAllocate() throws IOException {
+    var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assertions.assertTrue(threads.isThreadAllocatedMemorySupported());
+    var p = TestPrograms.compile("arith");
+
+    // Warm up, so that class loading and lazy initialization is not counted.
+    allocatedBytes(threads, p, 100000);
+    long shortRun = allocatedBytes(threads, p, 1000);
+    long longRun = allocatedBytes(threads, p, 1000000);
+
+    // The long run executes about 20 million more instructions.
+    Assertions.assertTrue(longRun - shortRun < 4096, String.format(
+        "%d bytes allocated for 1000 iterations, %d for 1000000", shortRun, longRun));
+  }
+
+  private static long allocatedBytes(com.sun.management.ThreadMXBean threads, Program p, int n) {
+    var in = new ByteArrayInputStream((n + "\n").getBytes(StandardCharsets.US_ASCII));
+    var emulator = new Emulator(p, in, OutputStream.nullOutputStream());
+    emulator.disableJit();
+    long id = Thread.currentThread().getId();
+    long before = threads.getThreadAllocatedBytes(id);
+    emulator.run();
+    return threads.getThreadAllocatedBytes(id) - before;
+  }
+}
@@ -0,0 +1,44 @@
+package crux.ir;
+
+import crux.TestPrograms;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+final class EmulatorBatchTests {
+  /**
+   * Runs arith on many inputs at once, long enough for its loop to be compiled in the middle of
+   * the runs. Every result has to match a run of its own, so the runs must not see each other's
+   * memory or output.
+   */
+  @Test
+  public void batchMatchesSeparateRuns(@TempDir Path dir) throws Exception {
+    var program = new DecodedProgram(TestPrograms.compile("arith"));
+    var inputs = new ArrayList<Path>();
+    for (int i = 0; i < 16; i++) {
+      Path input = dir.resolve("arith" + i + ".in");
+      Files.writeString(input, (1000 + 20000 * i) + "\n");
+      inputs.add(input);
+    }
+
+    var results = new EmulatorBatch(program, 4).run(inputs, e -> {});
+    Assertions.assertEquals(inputs.size(), results.size());
+    for (int i = 0; i < inputs.size(); i++) {
+      var r = results.get(i);
+      Assertions.assertEquals(inputs.get(i), r.input);
+      Assertions.assertNull(r.error);
+      Assertions.assertTrue(r.isFinished());
+      var in = new ByteArrayInputStream(Files.readAllBytes(r.input));
+      var out = new ByteArrayOutputStream();
+      new Emulator(program, in, out).run();
+      Assertions.assertEquals(out.toString(StandardCharsets.UTF_8),
+          Files.readString(EmulatorBatch.resultFile(r.input)), r.input.toString());
+    }
+  }
+}
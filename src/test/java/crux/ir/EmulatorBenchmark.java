@@ -0,0 +1,111 @@
+package crux.ir;
+
+import crux.TestPrograms;
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ * Times the emulator on the programs in src/test/resources/crux/bench. This is not a unit test, run
+ * it by hand after {@code mvn test-compile}:
+ *
+ * <pre>
+ * java -cp target/classes:target/test-classes:&lt;antlr4-runtime.jar&gt;:&lt;asm.jar&gt; crux.ir.EmulatorBenchmark [--profile|--no-jit|--closure|--map-frames] [--stages] [runs] [program...]
+ * </pre>
+ *
+ * Every program is run a few times to warm up the JVM, then the median wall-clock time of the
+ * remaining runs is reported. The JIT specializes the interpreter loop to whatever it ran first, so
+ * for numbers that can be compared between versions, time one program per JVM. With --profile the
+ * programs run with {@link Emulator#enableProfile()}, to measure the cost of profiling, with
+ * --no-jit they are only interpreted and with --closure they run on the {@link ClosureEngine}.
+ * --map-frames runs them on the {@link MapFrameEmulator} instead, the baseline of the slot-indexed
+ * frames. Since then the interpreter has also moved from the instruction graph to bytecode, so
+ * against --no-jit this measures all of that, not only the frames.
+ * <p>
+ * --stages times the IR stage tests in src/test/resources/crux/stages/ir instead, each with its
+ * input, and reports their total as well.
+ */
+public final class EmulatorBenchmark {
+  public static final String[] PROGRAMS = {"loops", "fib", "ackermann", "print"};
+  static final int WARMUP = 3;
+
+  static boolean profile = false;
+  static boolean jit = true;
+  static boolean closures = false;
+  static boolean mapFrames = false;
+
+  public static void main(String[] args) throws IOException {
+    boolean stages = false;
+    int k = 0;
+    for (; k < args.length && args[k].startsWith("--"); k++) {
+      switch (args[k]) {
+        case "--profile":
+          profile = true;
+          break;
+        case "--no-jit":
+          jit = false;
+          break;
+        case "--closure":
+          closures = true;
+          break;
+        case "--map-frames":
+          mapFrames = true;
+          break;
+        case "--stages":
+          stages = true;
+          break;
+        default:
+          throw new IllegalArgumentException("Unknown option " + args[k]);
+      }
+    }
+    int runs = k < args.length ? Integer.parseInt(args[k]) : 5;
+    String[] programs = k + 1 < args.length ? Arrays.copyOfRange(args, k + 1, args.length)
+        : stages ? TestPrograms.stageTests().toArray(new String[0]) : PROGRAMS;
+    double total = 0;
+    for (String name : programs) {
+      Program p = TestPrograms.compile(name);
+      byte[] input = TestPrograms.input(name);
+      long[] times = new long[runs];
+      for (int i = 0; i < WARMUP + runs; i++) {
+        long start = System.nanoTime();
+        run(p, input);
+        if (i >= WARMUP)
+          times[i - WARMUP] = System.nanoTime() - start;
+      }
+      Arrays.sort(times);
+      System.out.printf("%-10s %8.3f ms%n", name, times[runs / 2] / 1e6);
+      total += times[runs / 2] / 1e6;
+    }
+    if (stages)
+      System.out.printf("%-10s %8.3f ms%n", "total", total);
+  }
+
+  static void run(Program p) {
+    run(p, new byte[0]);
+  }
+
+  static void run(Program p, byte[] input) {
+    if (mapFrames) {
+      try {
+        new MapFrameEmulator(p, new ByteArrayInputStream(input), OutputStream.nullOutputStream())
+            .run();
+      } catch (Error | RuntimeException e) {
+        // Some stage tests end in a runtime error on purpose
+      }
+      return;
+    }
+    var emulator =
+        new Emulator(p, new ByteArrayInputStream(input), OutputStream.nullOutputStream());
+    if (profile)
+      emulator.enableProfile();
+    if (!jit)
+      emulator.disableJit();
+    if (closures)
+      emulator.useClosureEngine();
+    try {
+      emulator.run();
+    } catch (Error | RuntimeException e) {
+      // Some stage tests end in a runtime error on purpose
+    }
+  }
+}
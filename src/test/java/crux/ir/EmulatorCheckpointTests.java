@@ -0,0 +1,151 @@
+package crux.ir;
+
+import crux.Driver;
+import crux.TestPrograms;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+final class EmulatorCheckpointTests {
+  /**
+   * Runs every program in slices of a few thousand instructions, each in a new emulator restored
+   * from the checkpoint of the last one. Together the slices have to print what a single run does,
+   * which also covers reading input across slices.
+   */
+  @Test
+  public void slicedRunsMatchOneRun() throws IOException {
+    var names = new ArrayList<>(TestPrograms.stageTests());
+    names.addAll(TestPrograms.BENCH);
+    for (String name : names) {
+      var program = new DecodedProgram(TestPrograms.compile(name));
+      byte[] input = TestPrograms.input(name);
+      if (input.length == 0)
+        input = "2000\n".getBytes(StandardCharsets.US_ASCII);
+
+      var out = new ByteArrayOutputStream();
+      var emulator = new Emulator(program, new ByteArrayInputStream(input), out);
+      String end = end(emulator);
+      String expected = out + end;
+
+      var sliced = new StringBuilder();
+      Checkpoint checkpoint = null;
+      while (true) {
+        out = new ByteArrayOutputStream();
+        emulator = new Emulator(program, new ByteArrayInputStream(input), out);
+        emulator.disableJit();
+        emulator.setInstructionLimit(3000);
+        if (checkpoint != null)
+          emulator.restore(checkpoint);
+        end = end(emulator);
+        sliced.append(out);
+        if (!end.equals(Emulator.Outcome.INSTRUCTION_LIMIT.toString())) {
+          sliced.append(end);
+          break;
+        }
+        var saved = new ByteArrayOutputStream();
+        emulator.checkpoint().write(saved);
+        checkpoint = Checkpoint.read(new ByteArrayInputStream(saved.toByteArray()));
+      }
+      Assertions.assertEquals(expected, sliced.toString(), name);
+    }
+  }
+
+  @Test
+  public void checkpointNeedsInterpretedRun() throws IOException {
+    var program = new DecodedProgram(TestPrograms.compile("loops"));
+    var in = new ByteArrayInputStream(new byte[0]);
+    var emulator = new Emulator(program, in, OutputStream.nullOutputStream());
+    Assertions.assertThrows(IllegalStateException.class, emulator::checkpoint);
+    emulator.setInstructionLimit(1000000);
+    Assertions.assertEquals(Emulator.Outcome.INSTRUCTION_LIMIT, emulator.run());
+    Assertions.assertThrows(IllegalStateException.class, emulator::checkpoint);
+
+    emulator = new Emulator(program, in, OutputStream.nullOutputStream());
+    emulator.disableJit();
+    emulator.setInstructionLimit(1000);
+    Assertions.assertEquals(Emulator.Outcome.INSTRUCTION_LIMIT, emulator.run());
+    var checkpoint = emulator.checkpoint();
+    var other = new DecodedProgram(TestPrograms.compile("fib"));
+    Assertions.assertThrows(IOException.class,
+        () -> new Emulator(other, in, OutputStream.nullOutputStream()).restore(checkpoint));
+  }
+
+  /**
+   * With the closure engine asked for, a run to be checkpointed is still interpreted, so it stops
+   * at the limit and saves a checkpoint that a second run continues from to the end.
+   */
+  @Test
+  public void closureEngineIsNotUsedWithCheckpoints(@TempDir Path dir) throws IOException {
+    byte[] input = TestPrograms.input("loops");
+    var whole = new ByteArrayOutputStream();
+    new Emulator(TestPrograms.compile("loops"), new ByteArrayInputStream(input), whole).run();
+
+    Path checkpoint = dir.resolve("loops.checkpoint");
+    var out = new ByteArrayOutputStream();
+    var err = new ByteArrayOutputStream();
+    var driver = driver(input, out, err);
+    driver.setEmulatorInstructionLimit(1000);
+    driver.setEmulatorCheckpointFile(checkpoint.toString());
+    driver.run();
+    Assertions.assertEquals("Emulator stopped: INSTRUCTION_LIMIT" + System.lineSeparator(),
+        err.toString(StandardCharsets.UTF_8));
+    Assertions.assertTrue(Files.size(checkpoint) > 0);
+
+    driver = driver(input, out, err);
+    driver.setEmulatorRestoreFile(checkpoint.toString());
+    driver.run();
+    Assertions.assertEquals(whole.toString(StandardCharsets.UTF_8),
+        out.toString(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * A profiled run cannot be checkpointed or restored, so asking for both is an error before
+   * anything runs.
+   */
+  @Test
+  public void profiledRunsAreNotCheckpointed(@TempDir Path dir) throws IOException {
+    Path checkpoint = dir.resolve("loops.checkpoint");
+    for (boolean restore : new boolean[] {false, true}) {
+      var out = new ByteArrayOutputStream();
+      var err = new ByteArrayOutputStream();
+      var driver = driver(TestPrograms.input("loops"), out, err);
+      driver.setEmulatorProfilePrefix(dir.resolve("loops").toString());
+      if (restore)
+        driver.setEmulatorRestoreFile(checkpoint.toString());
+      else
+        driver.setEmulatorCheckpointFile(checkpoint.toString());
+      driver.run();
+      Assertions.assertEquals(
+          "Cannot profile a checkpointed or restored emulator run" + System.lineSeparator(),
+          err.toString(StandardCharsets.UTF_8));
+      Assertions.assertEquals("", out.toString(StandardCharsets.UTF_8));
+      Assertions.assertFalse(Files.exists(checkpoint));
+    }
+  }
+
+  private static Driver driver(byte[] input, OutputStream out, OutputStream err)
+      throws IOException {
+    var loader = EmulatorCheckpointTests.class.getClassLoader();
+    var driver = new Driver(new PrintStream(out, true, StandardCharsets.UTF_8),
+        new PrintStream(err, true, StandardCharsets.UTF_8));
+    driver.setInputStream(loader.getResourceAsStream("crux/bench/loops.crx"));
+    driver.setEmulatorInput(new ByteArrayInputStream(input));
+    driver.enableClosureEmulator();
+    return driver;
+  }
+
+  private static String end(Emulator emulator) {
+    try {
+      return emulator.run().toString();
+    } catch (Error | RuntimeException e) {
+      // Some stage tests end in a runtime error on purpose
+      return e.getMessage();
+    }
+  }
+}
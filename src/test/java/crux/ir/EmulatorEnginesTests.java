@@ -0,0 +1,45 @@
+package crux.ir;
+
+import crux.TestPrograms;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+final class EmulatorEnginesTests {
+  /**
+   * Every bench program has to print the same whether it is interpreted, partly compiled by the
+   * JIT or run on the closure engine. They run long enough for their hot functions and loops to be
+   * compiled.
+   */
+  @TestFactory
+  public List<DynamicTest> enginesMatchInterpreter() {
+    var tests = new ArrayList<DynamicTest>();
+    for (String name : TestPrograms.BENCH) {
+      tests.add(DynamicTest.dynamicTest(name, () -> {
+        var program = new DecodedProgram(TestPrograms.compile(name));
+        String interpreted = output(program, Emulator::disableJit);
+        Assertions.assertEquals(interpreted, output(program, e -> {}), "jit");
+        Assertions.assertEquals(interpreted, output(program, e -> {
+          e.disableJit();
+          e.useClosureEngine();
+        }), "closures");
+      }));
+    }
+    return tests;
+  }
+
+  private static String output(DecodedProgram program, Consumer<Emulator> engine) {
+    var in = new ByteArrayInputStream("200000\n".getBytes(StandardCharsets.US_ASCII));
+    var out = new ByteArrayOutputStream();
+    var emulator = new Emulator(program, in, out);
+    engine.accept(emulator);
+    emulator.run();
+    return out.toString(StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,64 @@
+package crux.ir;
+
+import crux.TestPrograms;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+
+final class EmulatorLimitsTests {
+  private static final String[] ENGINES = {"interpreter", "jit", "closures"};
+
+  @Test
+  public void instructionLimitStopsLoop() throws IOException {
+    var p = TestPrograms.compile("limits/spin");
+    for (String engine : ENGINES) {
+      var emulator = emulator(p, engine, "0\n");
+      emulator.setInstructionLimit(10000000);
+      Assertions.assertEquals(Emulator.Outcome.INSTRUCTION_LIMIT, emulator.run(), engine);
+    }
+  }
+
+  @Test
+  public void instructionLimitStopsRecursion() throws IOException {
+    var p = TestPrograms.compile("limits/spin");
+    for (String engine : ENGINES) {
+      var emulator = emulator(p, engine, "1\n");
+      emulator.setInstructionLimit(1000000);
+      Assertions.assertEquals(Emulator.Outcome.INSTRUCTION_LIMIT, emulator.run(), engine);
+    }
+  }
+
+  @Test
+  public void timeLimitStopsLoop() throws IOException {
+    var p = TestPrograms.compile("limits/spin");
+    for (String engine : ENGINES) {
+      var emulator = emulator(p, engine, "0\n");
+      emulator.setTimeLimit(Duration.ofMillis(100));
+      Assertions.assertEquals(Emulator.Outcome.TIME_LIMIT, emulator.run(), engine);
+    }
+  }
+
+  @Test
+  public void programWithinLimitsFinishes() throws IOException {
+    var p = TestPrograms.compile("fib");
+    for (String engine : ENGINES) {
+      var emulator = emulator(p, engine, "");
+      emulator.setInstructionLimit(100000000);
+      emulator.setTimeLimit(Duration.ofSeconds(60));
+      Assertions.assertEquals(Emulator.Outcome.FINISHED, emulator.run(), engine);
+    }
+  }
+
+  private static Emulator emulator(Program p, String engine, String input) {
+    var in = new ByteArrayInputStream(input.getBytes(StandardCharsets.US_ASCII));
+    var emulator = new Emulator(p, in, OutputStream.nullOutputStream());
+    if (!engine.equals("jit"))
+      emulator.disableJit();
+    if (engine.equals("closures"))
+      emulator.useClosureEngine();
+    return emulator;
+  }
+}
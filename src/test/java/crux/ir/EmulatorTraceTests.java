@@ -0,0 +1,53 @@
+package crux.ir;
+
+import crux.TestPrograms;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+final class EmulatorTraceTests {
+  /**
+   * Traces every IR stage test both ways. The decoded binary trace has to read exactly like the
+   * lines of the text trace, which covers every kind of event, negative values and calls with
+   * arguments.
+   */
+  @Test
+  public void decodedTraceMatchesTextTrace() throws IOException {
+    for (String name : TestPrograms.stageTests()) {
+      var program = new DecodedProgram(TestPrograms.compile(name));
+      byte[] input = TestPrograms.input(name);
+
+      var lines = new ArrayList<String>();
+      var text = new Emulator(program, new ByteArrayInputStream(input),
+          OutputStream.nullOutputStream());
+      text.trace = new TextTrace(lines::add);
+      run(text);
+
+      var trace = new ByteArrayOutputStream();
+      var binary = new Emulator(program, new ByteArrayInputStream(input),
+          OutputStream.nullOutputStream());
+      binary.enableTrace(trace);
+      run(binary);
+      var decoded = new ByteArrayOutputStream();
+      new TraceDecoder(program).decode(new ByteArrayInputStream(trace.toByteArray()),
+          new PrintStream(decoded, true, StandardCharsets.UTF_8));
+
+      var expected = new StringBuilder();
+      for (String line : lines) {
+        expected.append(line).append(System.lineSeparator());
+      }
+      Assertions.assertEquals(expected.toString(), decoded.toString(StandardCharsets.UTF_8), name);
+    }
+  }
+
+  private static void run(Emulator emulator) {
+    try {
+      emulator.run();
+    } catch (Error | RuntimeException e) {
+      // Some stage tests end in a runtime error on purpose
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package crux.ir;
+
+import crux.TestPrograms;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+final class JitCompilerTests {
+  private static int index(DecodedProgram program, String function) {
+    for (Bytecode b : program.functions) {
+      if (b.function.getName().equals(function))
+        return b.index;
+    }
+    throw new IllegalArgumentException(function);
+  }
+
+  /** Runs the program with the JIT and returns the emulator, with the session of the run. */
+  private static Emulator run(DecodedProgram program, StringBuilder output) {
+    var out = new ByteArrayOutputStream();
+    var emulator = new Emulator(program, InputStream.nullInputStream(), out);
+    Assertions.assertEquals(Emulator.Outcome.FINISHED, emulator.run());
+    output.append(out.toString(StandardCharsets.UTF_8));
+    return emulator;
+  }
+
+  /**
+   * A function is compiled once it has been called {@link JitCompiler#CALL_THRESHOLD} times, and
+   * not before.
+   */
+  @Test
+  public void functionsAreCompiledAtTheCallThreshold() {
+    String source = "int twice(int x) {\n  return x + x;\n}\n"
+        + "int once(int x) {\n  return x;\n}\n"
+        + "void main() {\n  int i;\n  int s;\n  i = 0;\n  s = 0;\n"
+        + "  loop {\n    if (i >= " + JitCompiler.CALL_THRESHOLD + ") {\n      break;\n    }\n"
+        + "    s = s + twice(i);\n    i = i + 1;\n  }\n"
+        + "  printInt(s + once(1));\n}\n";
+    var program = new DecodedProgram(TestPrograms.compileSource(source));
+    var output = new StringBuilder();
+    JitCompiler.Session jit = run(program, output).jit;
+    Assertions.assertTrue(jit.isCompiled(index(program, "twice")));
+    Assertions.assertFalse(jit.isCompiled(index(program, "once")));
+    long n = JitCompiler.CALL_THRESHOLD;
+    Assertions.assertEquals(String.valueOf(n * (n - 1) + 1), output.toString());
+  }
+
+  /**
+   * A loop in main, which is only called once, goes on in compiled code after
+   * {@link JitCompiler#BACKEDGE_THRESHOLD} iterations, and then finishes the call there.
+   */
+  @Test
+  public void hotLoopsContinueInCompiledCode() {
+    String source = "void main() {\n  int i;\n  int s;\n  i = 0;\n  s = 0;\n"
+        + "  loop {\n    if (i >= 100000) {\n      break;\n    }\n"
+        + "    s = s + i;\n    i = i + 1;\n  }\n  printInt(s);\n}\n";
+    var program = new DecodedProgram(TestPrograms.compileSource(source));
+    var output = new StringBuilder();
+    JitCompiler.Session jit = run(program, output).jit;
+    Assertions.assertEquals(1, jit.osrEntries);
+    Assertions.assertTrue(jit.isCompiled(index(program, "main")));
+    Assertions.assertEquals("4999950000", output.toString());
+
+    var interpreted = new Emulator(program, InputStream.nullInputStream(),
+        OutputStream.nullOutputStream());
+    interpreted.disableJit();
+    interpreted.run();
+    Assertions.assertNull(interpreted.jit);
+  }
+
+  /**
+   * A function too large for a JVM method gets a stub that goes back to the interpreter, and the
+   * program still runs to the same end.
+   */
+  @Test
+  public void oversizedFunctionsGetAStub() {
+    var source = new StringBuilder("int big(int x) {\n");
+    for (int k = 0; k < 6000; k++) {
+      source.append("  x = x * 3 + ").append(k).append(";\n");
+    }
+    source.append("  return x;\n}\n")
+        .append("void main() {\n  int i;\n  int s;\n  i = 0;\n  s = 0;\n")
+        .append("  loop {\n    if (i >= ").append(JitCompiler.CALL_THRESHOLD + 10)
+        .append(") {\n      break;\n    }\n")
+        .append("    s = s + big(i);\n    i = i + 1;\n  }\n  printInt(s);\n}\n");
+    var program = new DecodedProgram(TestPrograms.compileSource(source.toString()));
+    var output = new StringBuilder();
+    JitCompiler.Session jit = run(program, output).jit;
+    int big = index(program, "big");
+    Assertions.assertTrue(program.jit().isStub(big));
+    Assertions.assertFalse(jit.isCompiled(big));
+
+    var interpreted = new ByteArrayOutputStream();
+    var emulator = new Emulator(program, InputStream.nullInputStream(), interpreted);
+    emulator.disableJit();
+    emulator.run();
+    Assertions.assertEquals(interpreted.toString(StandardCharsets.UTF_8), output.toString());
+  }
+}